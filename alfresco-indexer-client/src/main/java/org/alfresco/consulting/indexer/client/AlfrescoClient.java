@@ -1,6 +1,7 @@
 package org.alfresco.consulting.indexer.client;
 
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -16,6 +17,42 @@ public interface AlfrescoClient {
    */
   AlfrescoResponse fetchNodes(long lastTransactionId, long lastAclChangesetId, AlfrescoFilters filters) throws
       AlfrescoDownException;
+
+  /**
+   * Fetches the next page of nodes changed in Alfresco; pages are bounded by a number of nodes, so that
+   * transactions touching many nodes are split across several of them.
+   *
+   * @param cursor
+   *         {@link ChangesCursor#INITIAL}, or the cursor of the previous page (see {@link AlfrescoResponse#getCursor()})
+   * @return an {@link AlfrescoResponse}
+   */
+  AlfrescoResponse fetchNodes(String cursor, AlfrescoFilters filters) throws AlfrescoDownException;
+
+  /**
+   * Fetches the next page of nodes changed in a partition of the Alfresco logs, so that several partitions can
+   * be crawled in parallel without overlapping.
+   *
+   * @param cursor
+   *         the cursor of the previous page, or the start of the partition (see {@link ChangesCursor})
+   * @param toTransactionId
+   *         last transaction of the partition
+   * @param toAclChangesetId
+   *         last ACL changeset of the partition
+   * @return an {@link AlfrescoResponse}, whose cursor stops after the end of the partition
+   */
+  AlfrescoResponse fetchNodes(String cursor, long toTransactionId, long toAclChangesetId, AlfrescoFilters filters)
+      throws AlfrescoDownException;
+
+  /**
+   * Fetches the next page of the live nodes in Alfresco, ordered by node id, to index them from scratch
+   * without replaying every change.
+   *
+   * @param afterNodeId
+   *         0, or the last node id of the previous page (see {@link AlfrescoResponse#getLastNodeId()})
+   * @return an {@link AlfrescoResponse}, whose cursor is where to follow the changes from once the snapshot
+   *         is complete
+   */
+  AlfrescoResponse fetchSnapshot(long afterNodeId, AlfrescoFilters filters) throws AlfrescoDownException;
   
   /**
    * Fetches Node Info from Alfresco for a given node.
@@ -33,6 +70,14 @@ public interface AlfrescoClient {
    */
   Map<String, Object> fetchMetadata(String nodeUuid) throws AlfrescoDownException;
 
+  /**
+   * Fetches metadata from Alfresco for several nodes in one round trip.
+   * @param nodeUuids
+   *        the UUIDs of the nodes
+   * @return the metadata of each node, keyed by UUID; nodes which do not exist in Alfresco are missing
+   */
+  Map<String, Map<String, Object>> fetchMetadataBatch(Collection<String> nodeUuids) throws AlfrescoDownException;
+
   /**
    * Fetches authorities for the provided username.
    * @param username
@@ -53,4 +98,9 @@ public interface AlfrescoClient {
    * @return Document Binary Content
    */
   InputStream fetchContent(String contentUrlPath);
+
+  /**
+   * Releases the HTTP connections held by this client; it must not be used afterwards.
+   */
+  void close();
 }
@@ -22,6 +22,9 @@ public class AlfrescoFilters {
 	
 	private Map<String, String> metadataFilters;
 	
+	// Left out of the JSON when not set, so that Alfresco's default applies
+	private Boolean includeSubtypes;
+	
 	public AlfrescoFilters(){
 		siteFilters = Sets.newHashSet();
 		typeFilters = Sets.newHashSet();
@@ -50,6 +53,18 @@ public class AlfrescoFilters {
 		return metadataFilters;
 	}
 	
+	/**
+	 * @return whether the type filters also match all the subtypes of the given types, null to use Alfresco's
+	 *         default (indexer.changes.includeSubtypes)
+	 */
+	public Boolean getIncludeSubtypes() {
+		return includeSubtypes;
+	}
+	
+	public void setIncludeSubtypes(Boolean includeSubtypes) {
+		this.includeSubtypes = includeSubtypes;
+	}
+	
 	public void addSiteFilter(String site){
 		siteFilters.add(site);
 	}
@@ -1,21 +1,46 @@
 package org.alfresco.consulting.indexer.client;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
-public class AlfrescoResponse {
-  private final long lastTransactionId;
-  private final long lastAclChangesetId;
-  private final String storeId;
-  private final String storeProtocol;
+public class AlfrescoResponse implements Closeable {
+  /**
+   * Document field holding the details of the node, when the client includes them (see
+   * {@link #getDetails(Map)})
+   */
+  public static final String DETAILS = "details";
+
+  private static final String LAST_TXN_ID = "last_txn_id";
+  private static final String LAST_ACL_CS_ID = "last_acl_changeset_id";
+  private static final String CURSOR = "cursor";
+  private static final String HEAD_TXN_ID = "head_txn_id";
+  private static final String HEAD_ACL_CS_ID = "head_acl_changeset_id";
+  private static final String LAST_NODE_ID = "last_node_id";
+
+  private long lastTransactionId;
+  private long lastAclChangesetId;
+  private String cursor;
+  private long headTransactionId;
+  private long headAclChangesetId;
+  private long lastNodeId;
+  private String storeId;
+  private String storeProtocol;
   private final Iterable<Map<String, Object>> documents;
+  private StreamingDocuments pendingStream;
 
   public AlfrescoResponse(long lastTransactionId, long lastAclChangesetId, String storeId,
                           String storeProtocol, Iterable<Map<String, Object>> documents) {
+    this(lastTransactionId, lastAclChangesetId, null, storeId, storeProtocol, documents);
+  }
+
+  public AlfrescoResponse(long lastTransactionId, long lastAclChangesetId, String cursor, String storeId,
+                          String storeProtocol, Iterable<Map<String, Object>> documents) {
     this.lastTransactionId = lastTransactionId;
     this.lastAclChangesetId = lastAclChangesetId;
+    this.cursor = cursor;
     this.storeId = storeId;
     this.storeProtocol = storeProtocol;
     this.documents = documents;
@@ -25,31 +50,135 @@ public class AlfrescoResponse {
     this(lastTransactionId, lastAclChangesetId, "", "", Collections.<Map<String, Object>>emptyList());
   }
 
+  /**
+   * Streaming response: documents are decoded lazily while being iterated, the remaining fields are
+   * resolved from the payload once the documents have been consumed.
+   */
+  AlfrescoResponse(StreamingDocuments documents) {
+    this.documents = documents;
+    this.pendingStream = documents;
+  }
+
   public long getLastTransactionId() {
+    resolveStream();
     return lastTransactionId;
   }
 
   public long getLastAclChangesetId() {
+    resolveStream();
     return lastAclChangesetId;
   }
 
+  /**
+   * @return the cursor to fetch the next page of changes from; when Alfresco does not provide one, the cursor
+   *         following the last transaction and ACL changeset ids
+   */
+  public String getCursor() {
+    resolveStream();
+    if (cursor == null || cursor.isEmpty()) {
+      return ChangesCursor.fromLastIds(lastTransactionId, lastAclChangesetId);
+    }
+    return cursor;
+  }
+
+  /**
+   * @return the last transaction in Alfresco when the response was rendered (0 if not provided), to split the
+   *         transaction log in partitions
+   */
+  public long getHeadTransactionId() {
+    resolveStream();
+    return headTransactionId;
+  }
+
+  /**
+   * @return the last ACL changeset in Alfresco when the response was rendered (0 if not provided)
+   */
+  public long getHeadAclChangesetId() {
+    resolveStream();
+    return headAclChangesetId;
+  }
+
+  void setHeads(long headTransactionId, long headAclChangesetId) {
+    this.headTransactionId = headTransactionId;
+    this.headAclChangesetId = headAclChangesetId;
+  }
+
+  /**
+   * @return the id of the last node of a snapshot page, to fetch the next page after it; it does not move
+   *         once the snapshot is complete (0 if not provided)
+   */
+  public long getLastNodeId() {
+    resolveStream();
+    return lastNodeId;
+  }
+
+  void setLastNodeId(long lastNodeId) {
+    this.lastNodeId = lastNodeId;
+  }
+
   public String getStoreId() {
+    resolveStream();
     return storeId;
   }
 
   public String getStoreProtocol() {
+    resolveStream();
     return storeProtocol;
   }
 
+  /**
+   * Documents of a streamed response can only be iterated once; fetching any other field of the
+   * response before the documents have been iterated buffers them in memory.
+   */
   public Iterable<Map<String,Object>> getDocuments() {
     return documents;
   }
 
   public List<Map<String, Object>> getDocumentList() {
+    if (documents instanceof List) {
+      return Collections.unmodifiableList((List<Map<String, Object>>) documents);
+    }
     List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
     for (Map<String, Object> m : documents) {
       list.add(m);
     }
     return list;
   }
-}
\ No newline at end of file
+
+  /**
+   * @param document
+   *         one of the {@link #getDocuments() documents}
+   * @return the details embedded in the document, the same as {@link AlfrescoClient#fetchMetadata(String)}
+   *         returns; null if the client does not include them, or the node no longer exists
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String, Object> getDetails(Map<String, Object> document) {
+    Object details = document.get(DETAILS);
+    return details instanceof Map ? (Map<String, Object>) details : null;
+  }
+
+  /**
+   * Releases the HTTP connection of a streamed response whose documents have not been fully consumed.
+   */
+  @Override
+  public void close() {
+    if (documents instanceof StreamingDocuments) {
+      ((StreamingDocuments) documents).close();
+    }
+  }
+
+  private void resolveStream() {
+    if (pendingStream != null) {
+      pendingStream.drain();
+      lastTransactionId = pendingStream.getLong(LAST_TXN_ID, 0L);
+      lastAclChangesetId = pendingStream.getLong(LAST_ACL_CS_ID, 0L);
+      cursor = pendingStream.getString(CURSOR);
+      headTransactionId = pendingStream.getLong(HEAD_TXN_ID, 0L);
+      headAclChangesetId = pendingStream.getLong(HEAD_ACL_CS_ID, 0L);
+      lastNodeId = pendingStream.getLong(LAST_NODE_ID, 0L);
+      storeId = pendingStream.getString(StreamingDocuments.STORE_ID);
+      storeProtocol = pendingStream.getString(StreamingDocuments.STORE_PROTOCOL);
+      pendingStream = null;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Non-blocking companion of {@link AlfrescoClient}: calls return immediately and the futures complete once
+ * Alfresco answered, so that a few threads can keep many requests in flight.
+ *
+ * Futures fail with an {@link AlfrescoDownException} or an {@link AlfrescoParseException}, wrapped in an
+ * {@link java.util.concurrent.ExecutionException} when retrieved through {@code get()}.
+ */
+public interface AsyncAlfrescoClient {
+  /**
+   * Fetches nodes from Alfresco which has changed since the provided ids.
+   *
+   * @see AlfrescoClient#fetchNodes(long, long, AlfrescoFilters)
+   */
+  ListenableFuture<AlfrescoResponse> fetchNodes(long lastTransactionId, long lastAclChangesetId, AlfrescoFilters filters);
+
+  /**
+   * Fetches the next page of nodes changed in Alfresco.
+   *
+   * @see AlfrescoClient#fetchNodes(String, AlfrescoFilters)
+   */
+  ListenableFuture<AlfrescoResponse> fetchNodes(String cursor, AlfrescoFilters filters);
+
+  /**
+   * Fetches the next page of nodes changed in a partition of the Alfresco logs.
+   *
+   * @see AlfrescoClient#fetchNodes(String, long, long, AlfrescoFilters)
+   */
+  ListenableFuture<AlfrescoResponse> fetchNodes(String cursor, long toTransactionId, long toAclChangesetId,
+      AlfrescoFilters filters);
+
+  /**
+   * Fetches the next page of the live nodes in Alfresco.
+   *
+   * @see AlfrescoClient#fetchSnapshot(long, AlfrescoFilters)
+   */
+  ListenableFuture<AlfrescoResponse> fetchSnapshot(long afterNodeId, AlfrescoFilters filters);
+
+  /**
+   * Fetches Node Info from Alfresco for a given node.
+   *
+   * @see AlfrescoClient#fetchNode(String)
+   */
+  ListenableFuture<AlfrescoResponse> fetchNode(String nodeUuid);
+
+  /**
+   * Fetches metadata from Alfresco for a given node.
+   *
+   * @see AlfrescoClient#fetchMetadata(String)
+   */
+  ListenableFuture<Map<String, Object>> fetchMetadata(String nodeUuid);
+
+  /**
+   * Fetches metadata from Alfresco for several nodes in one round trip.
+   *
+   * @see AlfrescoClient#fetchMetadataBatch(Collection)
+   */
+  ListenableFuture<Map<String, Map<String, Object>>> fetchMetadataBatch(Collection<String> nodeUuids);
+
+  /**
+   * Fetches Document Binary Content. The content is spooled to a temporary file before the future completes,
+   * the file being deleted once the stream is closed.
+   *
+   * @param contentUrlPath URL of the content
+   * @return Document Binary Content, empty when Alfresco sent no entity
+   */
+  ListenableFuture<InputStream> fetchContent(String contentUrlPath);
+
+  /**
+   * Releases the HTTP connections and I/O threads held by this client; it must not be used afterwards.
+   */
+  void close();
+}
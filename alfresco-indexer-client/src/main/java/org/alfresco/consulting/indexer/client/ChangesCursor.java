@@ -0,0 +1,43 @@
+package org.alfresco.consulting.indexer.client;
+
+import com.google.common.base.Strings;
+
+/**
+ * Builds the cursors given to {@link AlfrescoClient#fetchNodes(String, AlfrescoFilters)}. The cursors taken from
+ * {@link AlfrescoResponse#getCursor()} are opaque: they are handed back to Alfresco as they are.
+ *
+ * The cursors built here only hold the last transaction and ACL changeset fully indexed, as a
+ * "lastTxnId|lastAclChangesetId" pair (the form recorded before cursors existed); they are sent to Alfresco as
+ * cursors too, and Alfresco resumes right after them, one page of nodes at a time.
+ */
+public final class ChangesCursor {
+  private static final String LAST_IDS_SEPARATOR = "|";
+
+  /**
+   * Cursor starting at the beginning of both logs.
+   */
+  public static final String INITIAL = fromLastIds(0, 0);
+
+  private ChangesCursor() {
+  }
+
+  /**
+   * @param lastTransactionId
+   *         the id of the last transaction fully indexed
+   * @param lastAclChangesetId
+   *         the id of the last ACL changeset fully indexed
+   * @return the cursor starting right after them
+   */
+  public static String fromLastIds(long lastTransactionId, long lastAclChangesetId) {
+    return lastTransactionId + LAST_IDS_SEPARATOR + lastAclChangesetId;
+  }
+
+  /**
+   * Reads a cursor previously recorded by a client, either given by Alfresco or built from the last ids.
+   *
+   * @return the cursor to resume from; {@link #INITIAL} when nothing was recorded
+   */
+  public static String fromRecorded(String recorded) {
+    return Strings.isNullOrEmpty(recorded) ? INITIAL : recorded;
+  }
+}
@@ -0,0 +1,233 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Single-pass view over the "docs" array of a /node/changes payload, decoding one document at a time
+ * straight from the HTTP stream. The top-level fields found before and after the array are kept aside,
+ * so that they can be read once all documents have been pulled (see {@link #drain()}); documents not pulled
+ * yet by then are buffered, to be iterated afterwards.
+ *
+ * The underlying HTTP response (or the file the asynchronous client spooled it to) is released as soon as the
+ * payload is exhausted, or by {@link #close()} when the caller gives up before that.
+ */
+class StreamingDocuments implements Iterable<Map<String, Object>>, Closeable {
+  static final String DOCS = "docs";
+  static final String STORE_ID = "store_id";
+  static final String STORE_PROTOCOL = "store_protocol";
+
+  private static final Logger logger = LoggerFactory.getLogger(StreamingDocuments.class);
+
+  private final HttpEntity entity;
+  private final Closeable resource;
+  private final JsonReader reader;
+  private final Gson gson;
+  private final JsonParser parser = new JsonParser();
+  private final JsonObject fields = new JsonObject();
+  private final String defaultStoreId;
+  private final String defaultStoreProtocol;
+  private final LinkedList<Map<String, Object>> buffered = new LinkedList<Map<String, Object>>();
+
+  private boolean iterated;
+  private boolean hasDocs;
+  private boolean inDocs;
+  private boolean finished;
+  private boolean closed;
+
+  StreamingDocuments(CloseableHttpResponse response, Gson gson, String storeId, String storeProtocol)
+      throws IOException {
+    this(response.getEntity(), response, gson, storeId, storeProtocol);
+  }
+
+  /**
+   * @param resource
+   *         released along with the payload, e.g. the HTTP response the entity belongs to
+   */
+  StreamingDocuments(HttpEntity entity, Closeable resource, Gson gson, String storeId, String storeProtocol)
+      throws IOException {
+    this.entity = entity;
+    this.resource = resource;
+    this.gson = gson;
+    this.defaultStoreId = storeId;
+    this.defaultStoreProtocol = storeProtocol;
+
+    if (entity == null) {
+      throw new AlfrescoParseException("Empty response received from Alfresco");
+    }
+    reader = new JsonReader(new InputStreamReader(entity.getContent(), "UTF-8"));
+    try {
+      reader.beginObject();
+      readFields();
+    } catch (RuntimeException e) {
+      close();
+      throw new AlfrescoParseException("Invalid changes payload", e);
+    }
+  }
+
+  @Override
+  public Iterator<Map<String, Object>> iterator() {
+    if (iterated) {
+      throw new IllegalStateException("Streamed documents can only be iterated once");
+    }
+    iterated = true;
+    return new Iterator<Map<String, Object>>() {
+      @Override
+      public boolean hasNext() {
+        return !buffered.isEmpty() || hasNextDocument();
+      }
+
+      @Override
+      public Map<String, Object> next() {
+        if (!buffered.isEmpty()) {
+          return buffered.removeFirst();
+        }
+        if (!hasNextDocument()) {
+          throw new NoSuchElementException();
+        }
+        return nextDocument();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Buffers any document not pulled yet, so that the fields rendered after the "docs" array become available;
+   * the buffered documents are still iterated, first.
+   */
+  void drain() {
+    while (hasNextDocument()) {
+      buffered.add(nextDocument());
+    }
+  }
+
+  String getString(String key) {
+    if (fields.has(key)) {
+      JsonElement element = fields.get(key);
+      if (element.isJsonPrimitive()) {
+        return element.getAsString();
+      }
+      logger.warn("The {} property (={}) is not a primitive in the changes payload", key, element);
+    }
+    return "";
+  }
+
+  long getLong(String key, long defaultValue) {
+    String string = getString(key);
+    if (Strings.isNullOrEmpty(string)) {
+      return defaultValue;
+    }
+    return Long.parseLong(string);
+  }
+
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      try {
+        resource.close();
+      } catch (IOException e) {
+        logger.debug("Failed to release the changes payload", e);
+      }
+    }
+  }
+
+  private boolean hasNextDocument() {
+    if (!inDocs) {
+      return false;
+    }
+    try {
+      if (reader.hasNext()) {
+        return true;
+      }
+      reader.endArray();
+      inDocs = false;
+      readFields();
+      return false;
+    } catch (IOException e) {
+      close();
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } catch (RuntimeException e) {
+      close();
+      throw new AlfrescoParseException("Invalid changes payload", e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> nextDocument() {
+    Map<String, Object> document;
+    try {
+      if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+        document = (Map<String, Object>) gson.fromJson(reader, Map.class);
+      } else {
+        reader.skipValue();
+        document = new HashMap<String, Object>();
+      }
+    } catch (IOException e) {
+      close();
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } catch (JsonParseException e) {
+      close();
+      throw new AlfrescoParseException("Invalid document in changes payload", e);
+    }
+    WebScriptsResponseParser.flattenDetails(document);
+    document.put(STORE_ID, fields.has(STORE_ID) ? getString(STORE_ID) : defaultStoreId);
+    document.put(STORE_PROTOCOL, fields.has(STORE_PROTOCOL) ? getString(STORE_PROTOCOL) : defaultStoreProtocol);
+    return document;
+  }
+
+  /**
+   * Reads top-level fields up to the "docs" array (leaving the reader positioned on its first element)
+   * or up to the end of the payload, in which case the response is released.
+   */
+  private void readFields() throws IOException {
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (DOCS.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        hasDocs = true;
+        inDocs = true;
+        return;
+      }
+      fields.add(name, parser.parse(reader));
+    }
+    reader.endObject();
+    finish();
+  }
+
+  private void finish() throws IOException {
+    if (!finished) {
+      finished = true;
+      if (!hasDocs) {
+        logger.warn("No documents found in response!");
+      }
+      EntityUtils.consume(entity);
+      close();
+    }
+  }
+}
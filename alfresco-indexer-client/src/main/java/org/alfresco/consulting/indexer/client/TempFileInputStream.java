@@ -0,0 +1,39 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a response spooled to a temporary file by the asynchronous client, the file being deleted once the
+ * stream is closed.
+ */
+class TempFileInputStream extends FileInputStream {
+  private static final Logger logger = LoggerFactory.getLogger(TempFileInputStream.class);
+
+  private final File file;
+
+  TempFileInputStream(File file) throws FileNotFoundException {
+    super(file);
+    this.file = file;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      delete(file);
+    }
+  }
+
+  static void delete(File file) {
+    if (file.exists() && !file.delete()) {
+      logger.warn("Failed to delete the temporary file {}", file);
+    }
+  }
+}
@@ -3,59 +3,44 @@ package org.alfresco.consulting.indexer.client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Strings;
 import com.google.common.io.CharStreams;
-import com.google.common.net.MediaType;
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
 
 public class WebScriptsAlfrescoClient implements AlfrescoClient {
-  private static final String FIELD_PROPERTIES = "properties";
-  
-  private static final String LAST_TXN_ID = "last_txn_id";
-  private static final String DOCS = "docs";
-  private static final String LAST_ACL_CS_ID = "last_acl_changeset_id";
-  
-  private static final String URL_PARAM_LAST_TXN_ID = "lastTxnId";
-  private static final String URL_PARAM_LAST_ACL_CS_ID = "lastAclChangesetId";
-  private static final String URL_PARAM_INDEXING_FILTERS = "indexingFilters";
-  
-  private static final String STORE_ID = "store_id";
-  private static final String STORE_PROTOCOL = "store_protocol";
-  private static final String USERNAME = "username";
-  private static final String AUTHORITIES = "authorities";
+  public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+  private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000L;
+  private static final long IDLE_CONNECTION_TIMEOUT_MILLIS = 60000L;
+  private static final long IDLE_CONNECTION_CHECK_MILLIS = 5000L;
 //  private static final String UUIDS = "uuids";
   private final Gson gson = new Gson();
-  private final String changesUrl;
-//  private final String uuidsUrl;
-  private final String actionsUrl;
-  private final String metadataUrl;
-  private final String authoritiesUrl;
-  private final String username;
-  private final String password;
+  private final WebScriptsRequests requests;
+  private final WebScriptsResponseParser parser = new WebScriptsResponseParser(gson);
+  private final String storeProtocol;
+  private final String storeId;
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpClient;
+  private final IdleConnectionEvictor idleConnectionEvictor;
 
   private final Logger logger = LoggerFactory.getLogger(WebScriptsAlfrescoClient.class);
 
@@ -67,13 +52,55 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
   public WebScriptsAlfrescoClient(String protocol, String hostname,
                                   String endpoint, String storeProtocol, String storeId, String username,
                                   String password) {
-    changesUrl = String.format("%s://%s%s/node/changes/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
-//    uuidsUrl = String.format("%s://%s%s/node/uuids/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
-    actionsUrl = String.format("%s://%s%s/node/actions/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
-    metadataUrl = String.format("%s://%s%s/node/details/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
-    authoritiesUrl = String.format("%s://%s%s/api/node/auth/resolve/", protocol, hostname, endpoint);
-    this.username = username;
-    this.password = password;
+    this(protocol, hostname, endpoint, storeProtocol, storeId, username, password,
+        DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+  }
+
+  /**
+   * Creates a client backed by a pool of persistent HTTP connections, shared by all the calls
+   * performed through this instance. {@link #close()} must be invoked to release them.
+   *
+   * @param maxTotalConnections
+   *         the maximum number of connections kept open against Alfresco
+   * @param maxConnectionsPerRoute
+   *         the maximum number of connections kept open against a single route
+   */
+  public WebScriptsAlfrescoClient(String protocol, String hostname,
+                                  String endpoint, String storeProtocol, String storeId, String username,
+                                  String password, int maxTotalConnections, int maxConnectionsPerRoute) {
+    requests = new WebScriptsRequests(protocol, hostname, endpoint, storeProtocol, storeId, username, password);
+    this.storeProtocol = storeProtocol;
+    this.storeId = storeId;
+
+    connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxTotalConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    httpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(new DefaultKeepAliveStrategy())
+        .build();
+    idleConnectionEvictor = new IdleConnectionEvictor(connectionManager);
+    idleConnectionEvictor.start();
+  }
+
+  /**
+   * @param includeDetails
+   *         whether the changes and snapshot pages embed the details of each node (properties, aspects, path and
+   *         readable authorities), so that they do not need to be fetched one node at a time; see
+   *         {@link AlfrescoResponse#getDetails(Map)}
+   */
+  public void setIncludeDetails(boolean includeDetails) {
+    requests.setIncludeDetails(includeDetails);
+  }
+
+  @Override
+  public void close() {
+    idleConnectionEvictor.shutdown();
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      logger.warn("Failed to release the Alfresco connection pool", e);
+    }
   }
 
   @Override
@@ -81,243 +108,127 @@ public class WebScriptsAlfrescoClient implements AlfrescoClient {
 		  long lastAclChangesetId,
 		  AlfrescoFilters filters) {
 
-	  String urlWithParameter = String.format("%s?%s",
-			  changesUrl,
-			  urlParameters(lastTransactionId, lastAclChangesetId, filters));
-	  return getDocumentsActions(urlWithParameter);
+	  return getDocumentsStream(requests.changes(lastTransactionId, lastAclChangesetId, filters));
+  }
+
+  @Override
+  public AlfrescoResponse fetchNodes(String cursor, AlfrescoFilters filters) {
+    return getDocumentsStream(requests.changes(cursor, filters));
+  }
+
+  @Override
+  public AlfrescoResponse fetchNodes(String cursor, long toTransactionId, long toAclChangesetId,
+                                     AlfrescoFilters filters) {
+    return getDocumentsStream(requests.changes(cursor, toTransactionId, toAclChangesetId, filters));
+  }
+
+  @Override
+  public AlfrescoResponse fetchSnapshot(long afterNodeId, AlfrescoFilters filters) {
+    return getDocumentsStream(requests.snapshot(afterNodeId, filters));
   }
 
   @Override
   public AlfrescoResponse fetchNode(String nodeUuid) throws AlfrescoDownException {
-	  String urlWithParameter = String.format("%s/%s", actionsUrl, nodeUuid);
-	  return getDocumentsActions(urlWithParameter);
+	  return getDocumentsActions(requests.node(nodeUuid));
   }
   
-  private AlfrescoResponse getDocumentsActions(String url){
-	  CloseableHttpClient httpClient = HttpClients.createDefault();
-	  logger.debug("Hitting url: {}", url);
+  private AlfrescoResponse getDocumentsActions(HttpGet httpGet){
+	  logger.debug("Hitting url: {}", httpGet.getURI());
 
+	  CloseableHttpResponse response = null;
 	  try{
-		  HttpGet httpGet = createGetRequest(url);
-		  HttpResponse response = httpClient.execute(httpGet);
+		  response = httpClient.execute(httpGet);
 		  HttpEntity entity = response.getEntity();
-		  AlfrescoResponse afResponse = fromHttpEntity(entity);
+		  AlfrescoResponse afResponse = parser.documents(entity);
 		  EntityUtils.consume(entity);
 		  return afResponse;
 	  } catch (IOException e) {
 		  logger.warn("Failed to fetch nodes.", e);
 		  throw new AlfrescoDownException("Alfresco appears to be down", e);
+	  } finally {
+		  closeQuietly(response);
 	  }
   }
 
-private HttpGet createGetRequest(String url) {
-    HttpGet httpGet = new HttpGet(url);
-    httpGet.addHeader("Accept", "application/json");
-    if (useBasicAuthentication()) {
-      httpGet.addHeader("Authorization", "Basic " + Base64.encodeBase64String(String.format("%s:%s", username, password).getBytes(Charset.forName("UTF-8"))));
-    }
-    return httpGet;
-  }
-
-  private boolean useBasicAuthentication() {
-    return username != null && !"".equals(username) && password != null;
-  }
-
-  private String urlParameters(long lastTransactionId, long lastAclChangesetId, AlfrescoFilters filters) {
-    
-      
-      String indexingFilters=null;
-      try
-      {
-          indexingFilters = URLEncoder.encode(filters.toJSONString(),"UTF-8");
-      }
-      catch (UnsupportedEncodingException e)
-      {
-          indexingFilters= filters.toJSONString();
-      }
-      
-      String urlParameters = String.format("%s=%d&%s=%d&%s=%s",
-    		URL_PARAM_LAST_TXN_ID, lastTransactionId,
-    		URL_PARAM_LAST_ACL_CS_ID, lastAclChangesetId,
-    		URL_PARAM_INDEXING_FILTERS, indexingFilters);
-
-		return urlParameters;
-  }
-
-  private AlfrescoResponse fromHttpEntity(HttpEntity entity) throws IOException {
-    Reader entityReader = new InputStreamReader(entity.getContent());
-    JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
-    ArrayList<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
-
-    long lastTransactionId = getStringAsLong(responseObject, LAST_TXN_ID, 0L);
-    long lastAclChangesetId = getStringAsLong(responseObject, LAST_ACL_CS_ID, 0L);
-    String storeId = getString(responseObject, STORE_ID);
-    String storeProtocol = getString(responseObject, STORE_PROTOCOL);
-
-    if (responseObject.has(DOCS) && responseObject.get(DOCS).isJsonArray()) {
-      JsonArray docsArray = responseObject.get(DOCS).getAsJsonArray();
-      for (JsonElement documentElement : docsArray) {
-        Map<String, Object> document = createDocument(documentElement);
-        document.put(STORE_ID, storeId);
-        document.put(STORE_PROTOCOL, storeProtocol);
-        documents.add(document);
-      }
-    } else {
-      logger.warn("No documents found in response!");
-    }
+  /**
+   * Changes pages can hold tens of thousands of nodes: documents are decoded one at a time while the
+   * caller iterates them, the connection being released once the payload is exhausted or the
+   * {@link AlfrescoResponse} closed.
+   */
+  private AlfrescoResponse getDocumentsStream(HttpGet httpGet) {
+    logger.debug("Hitting url: {}", httpGet.getURI());
 
-    return new AlfrescoResponse(lastTransactionId, lastAclChangesetId, storeId, storeProtocol, documents);
-  }
-  
-//  private Collection<String> extractIDs(HttpEntity entity) throws IOException {
-//	  Collection<String> uuids = Sets.newHashSet();
-//	  Reader entityReader = new InputStreamReader(entity.getContent());
-//	  JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
-//	  JsonArray array = responseObject.getAsJsonArray(UUIDS);
-//	  for(JsonElement nextId:array)
-//		  uuids.add(nextId.getAsString());
-//	  return uuids;
-//  }
-
-  private long getStringAsLong(JsonObject responseObject, String key, long defaultValue) {
-    String string = getString(responseObject, key);
-    if (Strings.isNullOrEmpty(string)) {
-      return defaultValue;
+    CloseableHttpResponse response = null;
+    try {
+      response = httpClient.execute(httpGet);
+      return new AlfrescoResponse(new StreamingDocuments(response, gson, storeId, storeProtocol));
+    } catch (IOException e) {
+      closeQuietly(response);
+      logger.warn("Failed to fetch nodes.", e);
+      throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } catch (RuntimeException e) {
+      closeQuietly(response);
+      throw e;
     }
-    return Long.parseLong(string);
   }
 
-  private String getString(JsonObject responseObject, String key) {
-    if (responseObject.has(key)) {
-      JsonElement element = responseObject.get(key);
-      if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
-        return element.getAsString();
-      } else {
-        logger.warn("The {} property (={}) is not a string in document: {}", new Object[]{key, element, responseObject});
+  private void closeQuietly(CloseableHttpResponse response) {
+    if (response != null) {
+      try {
+        response.close();
+      } catch (IOException e) {
+        logger.debug("Failed to close the HTTP response", e);
       }
-    } else {
-      logger.warn("The key {} is missing from document: {}", key, responseObject);
     }
-    return "";
   }
 
-  @SuppressWarnings("unchecked")
-  private Map<String, Object> createDocument(JsonElement documentElement) {
-    if (documentElement.isJsonObject()) {
-      JsonObject documentObject = documentElement.getAsJsonObject();
-      return (Map<String, Object>) gson.fromJson(documentObject, Map.class);
-    }
-    return new HashMap<String, Object>();
-  }
- 
   @Override
   public Map<String, Object> fetchMetadata(String nodeUuid)
           throws AlfrescoDownException {
 	String json = fetchMetadataJson(nodeUuid);
+    return parser.metadata(nodeUuid, json);
+  }
 
-    @SuppressWarnings("unchecked")
-    Map<String, Object> map = gson.fromJson(json, Map.class);
-
-    List<Map<String, String>> properties = extractPropertiesFieldFromMap(nodeUuid, map);
-
-    for (Map<String, String> e : properties) {
-      map.put(e.get("name"), e.get("value"));
-    }
-    return map;
+  @Override
+  public Map<String, Map<String, Object>> fetchMetadataBatch(Collection<String> nodeUuids)
+          throws AlfrescoDownException {
+    String json = fetchJson(requests.metadataBatch(nodeUuids));
+    return parser.metadataBatch(json);
   }
 
   private String fetchMetadataJson(String nodeUuid) {
-    String fullUrl = String.format("%s/%s", metadataUrl, nodeUuid);
-    logger.debug("url: {}", fullUrl);
+    return fetchJson(requests.metadata(nodeUuid));
+  }
+
+  private String fetchJson(HttpUriRequest request) {
+    logger.debug("url: {}", request.getURI());
+    CloseableHttpResponse response = null;
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
-      HttpGet httpGet = createGetRequest(fullUrl);
-      CloseableHttpResponse response = httpClient.execute(httpGet);
+      response = httpClient.execute(request);
       HttpEntity entity = response.getEntity();
       return CharStreams.toString(new InputStreamReader(entity.getContent(),
               "UTF-8"));
     } catch (IOException e) {
       throw new AlfrescoDownException(e);
+    } finally {
+      closeQuietly(response);
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private List<Map<String, String>> extractPropertiesFieldFromMap(String nodeUuid,
-          Map<String, Object> map) {
-    Object properties = map.remove(FIELD_PROPERTIES);
-    if(properties == null){
-    	throw new AlfrescoDownException("No Properties Fetched for the Node " + nodeUuid);
-    }
-
-    if (!(properties instanceof List)) {
-      throw new AlfrescoDownException(FIELD_PROPERTIES
-              + " is not of type List, it is of type " + properties.getClass());
-    }
-    return (List<Map<String, String>>) properties;
-  }
-
-  private AlfrescoUser userFromHttpEntity(HttpEntity entity) throws IOException {
-    Reader entityReader = new InputStreamReader(entity.getContent());
-    JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
-    return getUser(responseObject);
-  }
-
-  private AlfrescoUser getUser(JsonObject responseObject) {
-    String username = getUsername(responseObject);
-    List<String> authorities = getAuthorities(responseObject);
-    return new AlfrescoUser(username, authorities);
-  }
-
-  private String getUsername(JsonObject userObject) {
-    if (!userObject.has(USERNAME)) {
-      throw new AlfrescoParseException("Json response is missing username.");
-    }
-    JsonElement usernameElement = userObject.get(USERNAME);
-    if (!usernameElement.isJsonPrimitive() || !usernameElement.getAsJsonPrimitive().isString()) {
-      throw new AlfrescoParseException("Username must be a string. It was: " + usernameElement.toString());
-    }
-    return usernameElement.getAsString();
-  }
-
-  private List<String> getAuthorities(JsonObject userObject) {
-    List<String> authorities = new ArrayList<String>();
-    if (!userObject.has(AUTHORITIES)) {
-      throw new AlfrescoParseException("Json response is authorities.");
-    }
-    JsonElement authoritiesElement = userObject.get(AUTHORITIES);
-    if (!authoritiesElement.isJsonArray()) {
-      throw new AlfrescoParseException("Authorities must be a json array. It was: " + authoritiesElement.toString());
-    }
-    JsonArray authoritiesArray = authoritiesElement.getAsJsonArray();
-    for (JsonElement authorityElement : authoritiesArray) {
-      if (!authorityElement.isJsonPrimitive()) {
-        throw new AlfrescoParseException("Authority entry must be a string. It was: " + authoritiesElement.toString());
-      }
-      JsonPrimitive authorityPrimitive = authorityElement.getAsJsonPrimitive();
-      if (!authorityPrimitive.isString()) {
-        throw new AlfrescoParseException("Authority entry must be a string. It was: " + authoritiesElement.toString());
-      }
-      authorities.add(authorityPrimitive.getAsString());
-    }
-    return authorities;
-  }
-
   @Override
   public AlfrescoUser fetchUserAuthorities(String username)
           throws AlfrescoDownException {
-    HttpResponse response;
+    CloseableHttpResponse response = null;
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
-      String url = String.format("%s%s", authoritiesUrl, username);
+      HttpGet httpGet = requests.userAuthorities(username);
 
       if (logger.isDebugEnabled()) {
-        logger.debug("Hitting url: " + url);
+        logger.debug("Hitting url: " + httpGet.getURI());
       }
 
-      HttpGet httpGet = createGetRequest(url);
       response = httpClient.execute(httpGet);
       HttpEntity entity = response.getEntity();
-      AlfrescoUser afResponse = userFromHttpEntity(entity);
+      AlfrescoUser afResponse = parser.user(entity);
       EntityUtils.consume(entity);
       return afResponse;
     } catch (IOException e) {
@@ -325,24 +236,25 @@ private HttpGet createGetRequest(String url) {
         logger.warn("Failed to fetch nodes.", e);
       }
       throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } finally {
+      closeQuietly(response);
     }
   }
 
   @Override
   public List<AlfrescoUser> fetchAllUsersAuthorities()
           throws AlfrescoDownException {
-    HttpResponse response;
+    CloseableHttpResponse response = null;
     try {
-      CloseableHttpClient httpClient = HttpClients.createDefault();
+      HttpGet httpGet = requests.allUsersAuthorities();
 
       if (logger.isDebugEnabled()) {
-        logger.debug("Hitting url: " + authoritiesUrl);
+        logger.debug("Hitting url: " + httpGet.getURI());
       }
 
-      HttpGet httpGet = createGetRequest(authoritiesUrl);
       response = httpClient.execute(httpGet);
       HttpEntity entity = response.getEntity();
-      List<AlfrescoUser> users = usersFromHttpEntity(entity);
+      List<AlfrescoUser> users = parser.users(entity);
       EntityUtils.consume(entity);
       return users;
     } catch (IOException e) {
@@ -350,41 +262,77 @@ private HttpGet createGetRequest(String url) {
         logger.warn("Failed to fetch nodes.", e);
       }
       throw new AlfrescoDownException("Alfresco appears to be down", e);
+    } finally {
+      closeQuietly(response);
     }
   }
 
-  private List<AlfrescoUser> usersFromHttpEntity(HttpEntity entity) throws IOException {
-    Reader entityReader = new InputStreamReader(entity.getContent());
-    JsonElement responseObject = gson.fromJson(entityReader, JsonElement.class);
-    if (!responseObject.isJsonArray()) {
-      throw new AlfrescoParseException("Users must be a json array.");
-    }
-    List<AlfrescoUser> users = new ArrayList<AlfrescoUser>();
-    JsonArray usersArray = responseObject.getAsJsonArray();
-    for (JsonElement userElement : usersArray) {
-      if (!userElement.isJsonObject()) {
-        throw new AlfrescoParseException("User must be a json object.");
-      }
-      AlfrescoUser user = getUser(userElement.getAsJsonObject());
-      users.add(user);
-    }
-    return users;
-  }
-
   @Override
   public InputStream fetchContent(String contentUrlPath) {
-	  HttpGet httpGet = new HttpGet(contentUrlPath);
-	  httpGet.addHeader("Accept", MediaType.APPLICATION_BINARY.toString());
-	  if (useBasicAuthentication()) {
-		  httpGet.addHeader("Authorization", "Basic " + Base64.encodeBase64String(String.format("%s:%s", username, password).getBytes(Charset.forName("UTF-8"))));
-	  }
+	  HttpGet httpGet = requests.content(contentUrlPath);
 
-	  CloseableHttpClient httpClient = HttpClients.createDefault();
+	  CloseableHttpResponse response = null;
 	  try {
-		HttpResponse response = httpClient.execute(httpGet);
-		return response.getEntity().getContent();
+		response = httpClient.execute(httpGet);
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			closeQuietly(response);
+			return null;
+		}
+		// Closing the returned stream hands the connection back to the pool
+		return entity.getContent();
 	} catch (Exception e) {
+		closeQuietly(response);
 		throw new AlfrescoDownException("Alfresco appears to be down", e);
 	}
   }
+
+  /**
+   * Honours the Keep-Alive header sent by Alfresco, falling back to a bounded default
+   * so that pooled connections are not kept open forever.
+   */
+  private static class DefaultKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+      long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return duration > 0 ? duration : DEFAULT_KEEP_ALIVE_MILLIS;
+    }
+  }
+
+  /**
+   * Periodically closes expired and idle connections, which the pool would otherwise
+   * only detect when leasing them again.
+   */
+  private static class IdleConnectionEvictor extends Thread {
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private volatile boolean shutdown;
+
+    IdleConnectionEvictor(PoolingHttpClientConnectionManager connectionManager) {
+      super("alfresco-idle-connection-evictor");
+      this.connectionManager = connectionManager;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!shutdown) {
+          synchronized (this) {
+            wait(IDLE_CONNECTION_CHECK_MILLIS);
+          }
+          connectionManager.closeExpiredConnections();
+          connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+        // Terminating
+      }
+    }
+
+    void shutdown() {
+      shutdown = true;
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
 }
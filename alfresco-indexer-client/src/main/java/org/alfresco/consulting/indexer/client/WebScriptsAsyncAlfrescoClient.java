@@ -0,0 +1,373 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.client.methods.ZeroCopyConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+
+/**
+ * {@link AsyncAlfrescoClient} backed by a non-blocking HTTP engine: a couple of I/O dispatcher threads
+ * multiplex all the pooled connections, spooling the responses to temporary files. Responses are decoded on
+ * separate threads once fully received, and the documents of the pages while the caller iterates them.
+ *
+ * The number of requests in flight is bounded; requests submitted beyond that are queued without blocking the
+ * caller, and sent as the pending requests complete, at the pace Alfresco is able to sustain.
+ */
+public class WebScriptsAsyncAlfrescoClient implements AsyncAlfrescoClient {
+  public static final int DEFAULT_MAX_CONNECTIONS = WebScriptsAlfrescoClient.DEFAULT_MAX_TOTAL_CONNECTIONS;
+  public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 64;
+  private static final String TEMP_FILE_PREFIX = "alfresco-response-";
+
+  private final Gson gson = new Gson();
+  private final WebScriptsRequests requests;
+  private final WebScriptsResponseParser parser = new WebScriptsResponseParser(gson);
+  private final String storeProtocol;
+  private final String storeId;
+  private final Semaphore inFlightRequests;
+  private final Queue<Runnable> queuedRequests = new ConcurrentLinkedQueue<Runnable>();
+  private final CloseableHttpAsyncClient httpClient;
+  // At most one thread per request in flight, which holds its permit until its response is decoded
+  private final ExecutorService decodingExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("alfresco-response-decoder-%d").setDaemon(true).build());
+
+  private final Logger logger = LoggerFactory.getLogger(WebScriptsAsyncAlfrescoClient.class);
+
+  public WebScriptsAsyncAlfrescoClient(String protocol, String hostname,
+                                       String endpoint, String storeProtocol, String storeId) {
+    this(protocol, hostname, endpoint, storeProtocol, storeId, null, null);
+  }
+
+  public WebScriptsAsyncAlfrescoClient(String protocol, String hostname,
+                                       String endpoint, String storeProtocol, String storeId, String username,
+                                       String password) {
+    this(protocol, hostname, endpoint, storeProtocol, storeId, username, password,
+        DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+  }
+
+  /**
+   * @param maxConnections
+   *         the maximum number of connections kept open against Alfresco
+   * @param maxInFlightRequests
+   *         the maximum number of requests sent and not decoded yet; requests exceeding it are queued until one
+   *         completes, and those exceeding the connections are queued by the pool until one is released
+   */
+  public WebScriptsAsyncAlfrescoClient(String protocol, String hostname,
+                                       String endpoint, String storeProtocol, String storeId, String username,
+                                       String password, int maxConnections, int maxInFlightRequests) {
+    requests = new WebScriptsRequests(protocol, hostname, endpoint, storeProtocol, storeId, username, password);
+    this.storeProtocol = storeProtocol;
+    this.storeId = storeId;
+    inFlightRequests = new Semaphore(maxInFlightRequests);
+
+    PoolingNHttpClientConnectionManager connectionManager;
+    try {
+      connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+    } catch (IOReactorException e) {
+      throw new AlfrescoDownException("Failed to start the I/O reactor", e);
+    }
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    httpClient = HttpAsyncClients.custom()
+        .setConnectionManager(connectionManager)
+        .build();
+    httpClient.start();
+  }
+
+  /**
+   * @param includeDetails
+   *         whether the changes and snapshot pages embed the details of each node (properties, aspects, path and
+   *         readable authorities), so that they do not need to be fetched one node at a time; see
+   *         {@link AlfrescoResponse#getDetails(Map)}
+   */
+  public void setIncludeDetails(boolean includeDetails) {
+    requests.setIncludeDetails(includeDetails);
+  }
+
+  @Override
+  public void close() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      logger.warn("Failed to release the Alfresco connection pool", e);
+    }
+    decodingExecutor.shutdown();
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoResponse> fetchNodes(long lastTransactionId, long lastAclChangesetId,
+                                                       AlfrescoFilters filters) {
+    return fetchDocuments(requests.changes(lastTransactionId, lastAclChangesetId, filters));
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoResponse> fetchNodes(String cursor, AlfrescoFilters filters) {
+    return fetchDocuments(requests.changes(cursor, filters));
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoResponse> fetchNodes(String cursor, long toTransactionId, long toAclChangesetId,
+                                                       AlfrescoFilters filters) {
+    return fetchDocuments(requests.changes(cursor, toTransactionId, toAclChangesetId, filters));
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoResponse> fetchSnapshot(long afterNodeId, AlfrescoFilters filters) {
+    return fetchDocuments(requests.snapshot(afterNodeId, filters));
+  }
+
+  @Override
+  public ListenableFuture<AlfrescoResponse> fetchNode(String nodeUuid) {
+    return fetchDocuments(requests.node(nodeUuid));
+  }
+
+  @Override
+  public ListenableFuture<Map<String, Object>> fetchMetadata(final String nodeUuid) {
+    return execute(requests.metadata(nodeUuid), new ContentDecoder<Map<String, Object>>() {
+      @Override
+      Map<String, Object> decode(InputStream content) throws IOException {
+        String json = CharStreams.toString(new InputStreamReader(content, "UTF-8"));
+        return parser.metadata(nodeUuid, json);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Map<String, Map<String, Object>>> fetchMetadataBatch(Collection<String> nodeUuids) {
+    return execute(requests.metadataBatch(nodeUuids), new ContentDecoder<Map<String, Map<String, Object>>>() {
+      @Override
+      Map<String, Map<String, Object>> decode(InputStream content) throws IOException {
+        String json = CharStreams.toString(new InputStreamReader(content, "UTF-8"));
+        return parser.metadataBatch(json);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<InputStream> fetchContent(String contentUrlPath) {
+    return execute(requests.content(contentUrlPath), new ContentDecoder<InputStream>() {
+      @Override
+      InputStream decode(InputStream content) {
+        return content;
+      }
+
+      @Override
+      boolean keepsContent() {
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Pages can hold tens of thousands of nodes: only the fields rendered before the documents are read on the
+   * decoding threads, the documents being decoded one at a time while the caller iterates them.
+   */
+  private ListenableFuture<AlfrescoResponse> fetchDocuments(HttpUriRequest request) {
+    return execute(request, new ContentDecoder<AlfrescoResponse>() {
+      @Override
+      AlfrescoResponse decode(InputStream content) throws IOException {
+        return new AlfrescoResponse(new StreamingDocuments(new InputStreamEntity(content), content, gson,
+            storeId, storeProtocol));
+      }
+
+      @Override
+      boolean keepsContent() {
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Queues the request, which is sent as soon as fewer requests than the limit are in flight. Each holds its
+   * permit until its response is decoded, so that the decoding threads are bounded by the limit too.
+   */
+  private <T> ListenableFuture<T> execute(final HttpUriRequest request, final ContentDecoder<T> decoder) {
+    final SettableFuture<T> result = SettableFuture.create();
+    queuedRequests.add(new Runnable() {
+      @Override
+      public void run() {
+        // Cancelled while queued
+        if (result.isDone()) {
+          inFlightRequests.release();
+          return;
+        }
+        result.addListener(new Runnable() {
+          @Override
+          public void run() {
+            inFlightRequests.release();
+            dispatchQueuedRequests();
+          }
+        }, MoreExecutors.sameThreadExecutor());
+        send(request, decoder, result);
+      }
+    });
+    dispatchQueuedRequests();
+    return result;
+  }
+
+  /**
+   * Sends the queued requests while permits are available; invoked on each submission and each completion, so
+   * that no request is left queued with a permit free.
+   */
+  private void dispatchQueuedRequests() {
+    while (!queuedRequests.isEmpty() && inFlightRequests.tryAcquire()) {
+      Runnable request = queuedRequests.poll();
+      if (request == null) {
+        inFlightRequests.release();
+      } else {
+        request.run();
+      }
+    }
+  }
+
+  /**
+   * Spools the response to a temporary file: the I/O dispatcher threads only copy the bytes received, so that
+   * neither large payloads nor their decoding hold them up. The file is deleted once the stream over it is
+   * closed.
+   */
+  private <T> void send(final HttpUriRequest request, final ContentDecoder<T> decoder,
+                        final SettableFuture<T> result) {
+    logger.debug("Hitting url: {}", request.getURI());
+
+    final File file;
+    ZeroCopyConsumer<InputStream> consumer;
+    try {
+      file = File.createTempFile(TEMP_FILE_PREFIX, null);
+    } catch (IOException e) {
+      result.setException(new AlfrescoDownException("Failed to spool the Alfresco response", e));
+      return;
+    }
+    try {
+      consumer = new ZeroCopyConsumer<InputStream>(file) {
+        @Override
+        protected InputStream process(HttpResponse response, File spooled, ContentType contentType)
+            throws IOException {
+          return new TempFileInputStream(spooled);
+        }
+      };
+    } catch (IOException e) {
+      TempFileInputStream.delete(file);
+      result.setException(new AlfrescoDownException("Failed to spool the Alfresco response", e));
+      return;
+    }
+
+    final Future<InputStream> pending;
+    try {
+      pending = httpClient.execute(HttpAsyncMethods.create(request), consumer, new FutureCallback<InputStream>() {
+        @Override
+        public void completed(final InputStream content) {
+          try {
+            decodingExecutor.execute(new Runnable() {
+              @Override
+              public void run() {
+                decode(content, decoder, result);
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            closeQuietly(content);
+            result.setException(new AlfrescoDownException("The Alfresco client is closed", e));
+          }
+        }
+
+        @Override
+        public void failed(Exception e) {
+          TempFileInputStream.delete(file);
+          logger.warn("Failed to fetch " + request.getURI(), e);
+          result.setException(new AlfrescoDownException("Alfresco appears to be down", e));
+        }
+
+        @Override
+        public void cancelled() {
+          TempFileInputStream.delete(file);
+          result.cancel(false);
+        }
+      });
+    } catch (RuntimeException e) {
+      TempFileInputStream.delete(file);
+      result.setException(e);
+      return;
+    }
+
+    result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (result.isCancelled()) {
+          pending.cancel(true);
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Decodes the spooled response on the decoding threads, releasing it unless the decoder takes it over.
+   */
+  private <T> void decode(InputStream content, ContentDecoder<T> decoder, SettableFuture<T> result) {
+    boolean kept = false;
+    try {
+      // Cancelled once spooled: neither the caller nor the decoder releases the response then
+      if (!result.isCancelled()) {
+        kept = result.set(decoder.decode(content)) && decoder.keepsContent();
+      }
+    } catch (IOException e) {
+      result.setException(new AlfrescoDownException("Alfresco appears to be down", e));
+    } catch (RuntimeException e) {
+      result.setException(e);
+    } finally {
+      if (!kept) {
+        closeQuietly(content);
+      }
+    }
+  }
+
+  private void closeQuietly(InputStream content) {
+    try {
+      content.close();
+    } catch (IOException e) {
+      logger.debug("Failed to release the spooled response", e);
+    }
+  }
+
+  /**
+   * Decodes a spooled response; invoked from the decoding threads.
+   */
+  private abstract static class ContentDecoder<T> {
+    abstract T decode(InputStream content) throws IOException;
+
+    /**
+     * @return whether the decoded value takes over the content, which is otherwise released once decoded
+     */
+    boolean keepsContent() {
+      return false;
+    }
+  }
+}
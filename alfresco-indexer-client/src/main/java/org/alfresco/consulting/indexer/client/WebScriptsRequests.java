@@ -0,0 +1,160 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+
+import com.google.common.net.MediaType;
+import com.google.gson.Gson;
+
+/**
+ * Builds the HTTP requests hitting the Alfresco Indexer WebScripts, shared by the blocking and the
+ * asynchronous clients.
+ */
+class WebScriptsRequests {
+  private static final String URL_PARAM_LAST_TXN_ID = "lastTxnId";
+  private static final String URL_PARAM_LAST_ACL_CS_ID = "lastAclChangesetId";
+  private static final String URL_PARAM_INDEXING_FILTERS = "indexingFilters";
+  private static final String URL_PARAM_CURSOR = "cursor";
+  private static final String URL_PARAM_TO_TXN_ID = "toTxnId";
+  private static final String URL_PARAM_TO_ACL_CS_ID = "toAclChangesetId";
+  private static final String URL_PARAM_AFTER_NODE_ID = "afterNodeId";
+  private static final String URL_PARAM_INCLUDE = "include";
+  private static final String INCLUDE_DETAILS = "details";
+  private static final String BODY_UUIDS = "uuids";
+
+  private final Gson gson = new Gson();
+
+  private final String changesUrl;
+  private final String snapshotUrl;
+  private final String actionsUrl;
+  private final String metadataUrl;
+  private final String authoritiesUrl;
+  private final String username;
+  private final String password;
+  private volatile boolean includeDetails;
+
+  WebScriptsRequests(String protocol, String hostname, String endpoint, String storeProtocol, String storeId,
+                     String username, String password) {
+    changesUrl = String.format("%s://%s%s/node/changes/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
+    snapshotUrl = String.format("%s://%s%s/node/snapshot/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
+    actionsUrl = String.format("%s://%s%s/node/actions/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
+    metadataUrl = String.format("%s://%s%s/node/details/%s/%s", protocol, hostname, endpoint, storeProtocol, storeId);
+    authoritiesUrl = String.format("%s://%s%s/api/node/auth/resolve/", protocol, hostname, endpoint);
+    this.username = username;
+    this.password = password;
+  }
+
+  /**
+   * @param includeDetails
+   *          whether the changes and snapshot pages embed the details of each node
+   */
+  void setIncludeDetails(boolean includeDetails) {
+    this.includeDetails = includeDetails;
+  }
+
+  HttpGet changes(long lastTransactionId, long lastAclChangesetId, AlfrescoFilters filters) {
+    return get(String.format("%s?%s%s", changesUrl, urlParameters(lastTransactionId, lastAclChangesetId, filters),
+        includeParameter()));
+  }
+
+  HttpGet changes(String cursor, AlfrescoFilters filters) {
+    return get(String.format("%s?%s%s", changesUrl, cursorParameters(cursor, filters), includeParameter()));
+  }
+
+  HttpGet changes(String cursor, long toTransactionId, long toAclChangesetId, AlfrescoFilters filters) {
+    return get(String.format("%s?%s&%s=%d&%s=%d%s", changesUrl, cursorParameters(cursor, filters),
+        URL_PARAM_TO_TXN_ID, toTransactionId, URL_PARAM_TO_ACL_CS_ID, toAclChangesetId, includeParameter()));
+  }
+
+  HttpGet snapshot(long afterNodeId, AlfrescoFilters filters) {
+    return get(String.format("%s?%s=%d&%s=%s%s", snapshotUrl, URL_PARAM_AFTER_NODE_ID, afterNodeId,
+        URL_PARAM_INDEXING_FILTERS, encode(filters.toJSONString()), includeParameter()));
+  }
+
+  HttpGet node(String nodeUuid) {
+    return get(String.format("%s/%s", actionsUrl, nodeUuid));
+  }
+
+  HttpGet metadata(String nodeUuid) {
+    return get(String.format("%s/%s", metadataUrl, nodeUuid));
+  }
+
+  HttpPost metadataBatch(Collection<String> nodeUuids) {
+    HttpPost httpPost = new HttpPost(metadataUrl);
+    httpPost.addHeader("Accept", "application/json");
+    httpPost.setEntity(new StringEntity(gson.toJson(Collections.singletonMap(BODY_UUIDS, nodeUuids)),
+        ContentType.APPLICATION_JSON));
+    addAuthentication(httpPost);
+    return httpPost;
+  }
+
+  HttpGet userAuthorities(String username) {
+    return get(String.format("%s%s", authoritiesUrl, username));
+  }
+
+  HttpGet allUsersAuthorities() {
+    return get(authoritiesUrl);
+  }
+
+  HttpGet content(String contentUrlPath) {
+    HttpGet httpGet = new HttpGet(contentUrlPath);
+    httpGet.addHeader("Accept", MediaType.APPLICATION_BINARY.toString());
+    addAuthentication(httpGet);
+    return httpGet;
+  }
+
+  private HttpGet get(String url) {
+    HttpGet httpGet = new HttpGet(url);
+    httpGet.addHeader("Accept", "application/json");
+    addAuthentication(httpGet);
+    return httpGet;
+  }
+
+  private void addAuthentication(HttpRequestBase request) {
+    if (useBasicAuthentication()) {
+      request.addHeader("Authorization", "Basic " + Base64.encodeBase64String(String.format("%s:%s", username, password).getBytes(Charset.forName("UTF-8"))));
+    }
+  }
+
+  private boolean useBasicAuthentication() {
+    return username != null && !"".equals(username) && password != null;
+  }
+
+  private String urlParameters(long lastTransactionId, long lastAclChangesetId, AlfrescoFilters filters) {
+    return String.format("%s=%d&%s=%d&%s=%s",
+        URL_PARAM_LAST_TXN_ID, lastTransactionId,
+        URL_PARAM_LAST_ACL_CS_ID, lastAclChangesetId,
+        URL_PARAM_INDEXING_FILTERS, encode(filters.toJSONString()));
+  }
+
+  /**
+   * Cursors given by Alfresco and the ones built from the last ids are both sent as cursors, so that Alfresco
+   * pages through large transactions from the very first request
+   */
+  private String cursorParameters(String cursor, AlfrescoFilters filters) {
+    return String.format("%s=%s&%s=%s", URL_PARAM_CURSOR, encode(cursor),
+        URL_PARAM_INDEXING_FILTERS, encode(filters.toJSONString()));
+  }
+
+  private String includeParameter() {
+    return includeDetails ? String.format("&%s=%s", URL_PARAM_INCLUDE, INCLUDE_DETAILS) : "";
+  }
+
+  private String encode(String parameter) {
+    try {
+      return URLEncoder.encode(parameter, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      return parameter;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package org.alfresco.consulting.indexer.client;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Decodes the buffered payloads rendered by the Alfresco Indexer WebScripts, shared by the blocking and
+ * the asynchronous clients.
+ */
+class WebScriptsResponseParser {
+  private static final String FIELD_PROPERTIES = "properties";
+  private static final String FIELD_UUID = "uuid";
+  private static final String NODES = "nodes";
+
+  private static final String LAST_TXN_ID = "last_txn_id";
+  private static final String DOCS = "docs";
+  private static final String LAST_ACL_CS_ID = "last_acl_changeset_id";
+  private static final String CURSOR = "cursor";
+  private static final String HEAD_TXN_ID = "head_txn_id";
+  private static final String HEAD_ACL_CS_ID = "head_acl_changeset_id";
+  private static final String LAST_NODE_ID = "last_node_id";
+
+  private static final String STORE_ID = "store_id";
+  private static final String STORE_PROTOCOL = "store_protocol";
+  private static final String USERNAME = "username";
+  private static final String AUTHORITIES = "authorities";
+
+  private final Gson gson;
+
+  private final Logger logger = LoggerFactory.getLogger(WebScriptsResponseParser.class);
+
+  WebScriptsResponseParser(Gson gson) {
+    this.gson = gson;
+  }
+
+  AlfrescoResponse documents(HttpEntity entity) throws IOException {
+    Reader entityReader = new InputStreamReader(entity.getContent(), "UTF-8");
+    JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
+    ArrayList<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
+
+    long lastTransactionId = getStringAsLong(responseObject, LAST_TXN_ID, 0L);
+    long lastAclChangesetId = getStringAsLong(responseObject, LAST_ACL_CS_ID, 0L);
+    String cursor = getString(responseObject, CURSOR);
+    String storeId = getString(responseObject, STORE_ID);
+    String storeProtocol = getString(responseObject, STORE_PROTOCOL);
+
+    if (responseObject.has(DOCS) && responseObject.get(DOCS).isJsonArray()) {
+      JsonArray docsArray = responseObject.get(DOCS).getAsJsonArray();
+      for (JsonElement documentElement : docsArray) {
+        Map<String, Object> document = createDocument(documentElement);
+        flattenDetails(document);
+        document.put(STORE_ID, storeId);
+        document.put(STORE_PROTOCOL, storeProtocol);
+        documents.add(document);
+      }
+    } else {
+      logger.warn("No documents found in response!");
+    }
+
+    AlfrescoResponse response = new AlfrescoResponse(lastTransactionId, lastAclChangesetId, cursor, storeId,
+        storeProtocol, documents);
+    response.setHeads(getStringAsLong(responseObject, HEAD_TXN_ID, 0L),
+        getStringAsLong(responseObject, HEAD_ACL_CS_ID, 0L));
+    response.setLastNodeId(getStringAsLong(responseObject, LAST_NODE_ID, 0L));
+    return response;
+  }
+
+  Map<String, Object> metadata(String nodeUuid, String json) {
+    @SuppressWarnings("unchecked")
+    Map<String, Object> map = gson.fromJson(json, Map.class);
+
+    flattenProperties(nodeUuid, map);
+    return map;
+  }
+
+  @SuppressWarnings("unchecked")
+  Map<String, Map<String, Object>> metadataBatch(String json) {
+    Map<String, Object> response = gson.fromJson(json, Map.class);
+    Object nodes = response.get(NODES);
+    if (!(nodes instanceof List)) {
+      throw new AlfrescoParseException("Nodes must be a json array.");
+    }
+
+    Map<String, Map<String, Object>> metadata = new LinkedHashMap<String, Map<String, Object>>();
+    for (Map<String, Object> map : (List<Map<String, Object>>) nodes) {
+      String nodeUuid = (String) map.get(FIELD_UUID);
+      flattenProperties(nodeUuid, map);
+      metadata.put(nodeUuid, map);
+    }
+    return metadata;
+  }
+
+  AlfrescoUser user(HttpEntity entity) throws IOException {
+    Reader entityReader = new InputStreamReader(entity.getContent(), "UTF-8");
+    JsonObject responseObject = gson.fromJson(entityReader, JsonObject.class);
+    return getUser(responseObject);
+  }
+
+  List<AlfrescoUser> users(HttpEntity entity) throws IOException {
+    Reader entityReader = new InputStreamReader(entity.getContent(), "UTF-8");
+    JsonElement responseObject = gson.fromJson(entityReader, JsonElement.class);
+    if (!responseObject.isJsonArray()) {
+      throw new AlfrescoParseException("Users must be a json array.");
+    }
+    List<AlfrescoUser> users = new ArrayList<AlfrescoUser>();
+    JsonArray usersArray = responseObject.getAsJsonArray();
+    for (JsonElement userElement : usersArray) {
+      if (!userElement.isJsonObject()) {
+        throw new AlfrescoParseException("User must be a json object.");
+      }
+      AlfrescoUser user = getUser(userElement.getAsJsonObject());
+      users.add(user);
+    }
+    return users;
+  }
+
+  private long getStringAsLong(JsonObject responseObject, String key, long defaultValue) {
+    String string = getString(responseObject, key);
+    if (Strings.isNullOrEmpty(string)) {
+      return defaultValue;
+    }
+    return Long.parseLong(string);
+  }
+
+  private String getString(JsonObject responseObject, String key) {
+    if (responseObject.has(key)) {
+      JsonElement element = responseObject.get(key);
+      if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+        return element.getAsString();
+      } else {
+        logger.warn("The {} property (={}) is not a string in document: {}", new Object[]{key, element, responseObject});
+      }
+    } else {
+      logger.warn("The key {} is missing from document: {}", key, responseObject);
+    }
+    return "";
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> createDocument(JsonElement documentElement) {
+    if (documentElement.isJsonObject()) {
+      JsonObject documentObject = documentElement.getAsJsonObject();
+      return (Map<String, Object>) gson.fromJson(documentObject, Map.class);
+    }
+    return new HashMap<String, Object>();
+  }
+
+  /**
+   * Turns the details embedded in a changes document into the same metadata as fetched on their own
+   */
+  @SuppressWarnings("unchecked")
+  static void flattenDetails(Map<String, Object> document) {
+    Object details = document.get(AlfrescoResponse.DETAILS);
+    if (details instanceof Map) {
+      flattenProperties((String) document.get(FIELD_UUID), (Map<String, Object>) details);
+    }
+  }
+
+  /**
+   * Moves the name/value pairs of the properties list of the node metadata up to the metadata itself
+   */
+  private static void flattenProperties(String nodeUuid, Map<String, Object> map) {
+    List<Map<String, String>> properties = extractPropertiesFieldFromMap(nodeUuid, map);
+    for (Map<String, String> e : properties) {
+      map.put(e.get("name"), e.get("value"));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<String, String>> extractPropertiesFieldFromMap(String nodeUuid,
+          Map<String, Object> map) {
+    Object properties = map.remove(FIELD_PROPERTIES);
+    if(properties == null){
+    	throw new AlfrescoDownException("No Properties Fetched for the Node " + nodeUuid);
+    }
+
+    if (!(properties instanceof List)) {
+      throw new AlfrescoDownException(FIELD_PROPERTIES
+              + " is not of type List, it is of type " + properties.getClass());
+    }
+    return (List<Map<String, String>>) properties;
+  }
+
+  private AlfrescoUser getUser(JsonObject responseObject) {
+    String username = getUsername(responseObject);
+    List<String> authorities = getAuthorities(responseObject);
+    return new AlfrescoUser(username, authorities);
+  }
+
+  private String getUsername(JsonObject userObject) {
+    if (!userObject.has(USERNAME)) {
+      throw new AlfrescoParseException("Json response is missing username.");
+    }
+    JsonElement usernameElement = userObject.get(USERNAME);
+    if (!usernameElement.isJsonPrimitive() || !usernameElement.getAsJsonPrimitive().isString()) {
+      throw new AlfrescoParseException("Username must be a string. It was: " + usernameElement.toString());
+    }
+    return usernameElement.getAsString();
+  }
+
+  private List<String> getAuthorities(JsonObject userObject) {
+    List<String> authorities = new ArrayList<String>();
+    if (!userObject.has(AUTHORITIES)) {
+      throw new AlfrescoParseException("Json response is authorities.");
+    }
+    JsonElement authoritiesElement = userObject.get(AUTHORITIES);
+    if (!authoritiesElement.isJsonArray()) {
+      throw new AlfrescoParseException("Authorities must be a json array. It was: " + authoritiesElement.toString());
+    }
+    JsonArray authoritiesArray = authoritiesElement.getAsJsonArray();
+    for (JsonElement authorityElement : authoritiesArray) {
+      if (!authorityElement.isJsonPrimitive()) {
+        throw new AlfrescoParseException("Authority entry must be a string. It was: " + authoritiesElement.toString());
+      }
+      JsonPrimitive authorityPrimitive = authorityElement.getAsJsonPrimitive();
+      if (!authorityPrimitive.isString()) {
+        throw new AlfrescoParseException("Authority entry must be a string. It was: " + authoritiesElement.toString());
+      }
+      authorities.add(authorityPrimitive.getAsString());
+    }
+    return authorities;
+  }
+}
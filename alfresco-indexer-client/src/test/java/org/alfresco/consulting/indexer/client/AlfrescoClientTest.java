@@ -4,18 +4,25 @@ import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -26,6 +33,7 @@ import com.github.tomakehurst.wiremock.http.Fault;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * @author martin.nycander
@@ -41,6 +49,8 @@ public class AlfrescoClientTest {
       lastAclChangesetParam + "=[0-9]+";
   private final String metadataEndpoint = "/alfresco/service/node/details/" + STORE_PROTOCOL + "/" +
       STORE_ID + "/";
+  private final String batchMetadataEndpoint = "/alfresco/service/node/details/" + STORE_PROTOCOL + "/" +
+      STORE_ID;
   private final String authoritiesEndpoint = "/alfresco/service/api/node/auth/resolve/";
 
   @Rule
@@ -54,6 +64,11 @@ public class AlfrescoClientTest {
         STORE_PROTOCOL, STORE_ID);
   }
 
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
   private void stubResult(String body) {
     stubFor(get(urlMatching(changesEndpoint))
         .willReturn(aResponse()
@@ -123,6 +138,43 @@ public class AlfrescoClientTest {
     assertEquals(STORE_PROTOCOL, response.getStoreProtocol());
   }
 
+  @Test
+  public void whenDocumentsAreStreamedTheFieldsRenderedAfterThemShouldBeAvailable() throws Exception {
+    stubResult("{ \"docs\": [ { \"uuid\": \"a\" }, { \"uuid\": \"b\" } ], " +
+        "\"last_txn_id\": \"5\"," +
+        "\"last_acl_changeset_id\": \"7\", " +
+        "\"store_id\": \"" + STORE_ID + "\", " +
+        "\"store_protocol\": \"" + STORE_PROTOCOL + "\" } ");
+
+    AlfrescoResponse response = client.fetchNodes(0, 0, new AlfrescoFilters());
+    int count = 0;
+    for (Map<String, Object> doc : response.getDocuments()) {
+      assertNotNull(doc.get("uuid"));
+      assertEquals(STORE_ID, doc.get("store_id"));
+      count++;
+    }
+
+    assertEquals(2, count);
+    assertEquals(5, response.getLastTransactionId());
+    assertEquals(7, response.getLastAclChangesetId());
+  }
+
+  @Test
+  public void whenDocumentsAreNotIteratedTheLastIdsShouldStillBeResolved() throws Exception {
+    stubResult("{ \"docs\": [ { \"uuid\": \"a\" }, { \"uuid\": \"b\" } ], " +
+        "\"last_txn_id\": \"5\"," +
+        "\"last_acl_changeset_id\": \"7\" } ");
+
+    AlfrescoResponse response = client.fetchNodes(0, 0, new AlfrescoFilters());
+
+    assertEquals(5, response.getLastTransactionId());
+    assertEquals(7, response.getLastAclChangesetId());
+    List<Map<String, Object>> documents = response.getDocumentList();
+    assertEquals(2, documents.size());
+    assertEquals("a", documents.get(0).get("uuid"));
+    assertEquals("b", documents.get(1).get("uuid"));
+  }
+
   @Test
   public void whenEmptyListIsReturnedItIsHandled() throws Exception {
     stubResult("{ \"docs\": [ ], " +
@@ -151,6 +203,164 @@ public class AlfrescoClientTest {
     assertTrue(requests.get(0).getUrl().contains(this.lastAclChangesetParam+"="+lastAclChangesetId));
   }
 
+  @Test
+  public void whenIncludeSubtypesIsNotSetItShouldBeLeftToAlfresco() throws Exception {
+    stubResult("{ }");
+
+    AlfrescoFilters filters = new AlfrescoFilters();
+    client.fetchNodes(0, 0, filters);
+    filters.setIncludeSubtypes(true);
+    client.fetchNodes(0, 0, filters);
+    List<LoggedRequest> requests = WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint)));
+
+    assertEquals(2, requests.size());
+    assertFalse(requests.get(0).getUrl().contains("includeSubtypes"));
+    assertTrue(requests.get(1).getUrl().contains("includeSubtypes%22%3Atrue"));
+  }
+
+  @Test
+  public void whenACursorIsReturnedItShouldBeUsedOnTheNextRequest() throws Exception {
+    String cursorEndpoint = "/alfresco/service/node/changes/" + STORE_PROTOCOL + "/" + STORE_ID + "\\?cursor=.*";
+    stubFor(get(urlMatching(cursorEndpoint))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ { \"uuid\": \"a\" } ], \"cursor\": \"3:42:5:0\", " +
+                "\"last_txn_id\": \"2\", \"last_acl_changeset_id\": \"4\" }")));
+
+    stubFor(get(urlMatching(cursorEndpoint.replace(".*", "0%7C0.*")))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ { \"uuid\": \"a\" } ], \"cursor\": \"1:42:1:0\", " +
+                "\"last_txn_id\": \"0\", \"last_acl_changeset_id\": \"0\" }")));
+
+    AlfrescoResponse response = client.fetchNodes(ChangesCursor.INITIAL, new AlfrescoFilters());
+    assertEquals(1, response.getDocumentList().size());
+    assertEquals("1:42:1:0", response.getCursor());
+
+    response = client.fetchNodes(response.getCursor(), new AlfrescoFilters());
+    assertEquals("3:42:5:0", response.getCursor());
+
+    assertTrue(WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).isEmpty());
+    List<LoggedRequest> requests = WireMock.findAll(getRequestedFor(urlMatching(cursorEndpoint)));
+    assertEquals(2, requests.size());
+    assertTrue(requests.get(0).getUrl().contains("cursor=0%7C0"));
+    assertTrue(requests.get(1).getUrl().contains("cursor=1%3A42%3A1%3A0"));
+  }
+
+  @Test
+  public void whenAPartitionIsFetchedItsBoundsShouldBeSentAndTheHeadsReturned() throws Exception {
+    String cursorEndpoint = "/alfresco/service/node/changes/" + STORE_PROTOCOL + "/" + STORE_ID + "\\?cursor=.*";
+    stubFor(get(urlMatching(cursorEndpoint))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"cursor\": \"11:0:6:0\", " +
+                "\"head_txn_id\": \"40\", \"head_acl_changeset_id\": \"20\" }")));
+
+    AlfrescoResponse response = client.fetchNodes("1:0:1:0", 10, 5, new AlfrescoFilters());
+
+    assertEquals("11:0:6:0", response.getCursor());
+    assertEquals(40, response.getHeadTransactionId());
+    assertEquals(20, response.getHeadAclChangesetId());
+    String url = WireMock.findAll(getRequestedFor(urlMatching(cursorEndpoint))).get(0).getUrl();
+    assertTrue(url.contains("toTxnId=10"));
+    assertTrue(url.contains("toAclChangesetId=5"));
+  }
+
+  @Test
+  public void whenASnapshotIsFetchedItShouldResumeAfterTheLastNodeId() throws Exception {
+    String snapshotEndpoint = "/alfresco/service/node/snapshot/" + STORE_PROTOCOL + "/" + STORE_ID + "\\?afterNodeId=.*";
+    stubFor(get(urlMatching(snapshotEndpoint))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ { \"uuid\": \"a\" }, { \"uuid\": \"b\" } ], \"last_node_id\": \"42\", " +
+                "\"cursor\": \"41:0:21:0\", \"head_txn_id\": \"40\", \"head_acl_changeset_id\": \"20\" }")));
+
+    AlfrescoResponse response = client.fetchSnapshot(0, new AlfrescoFilters());
+    assertEquals(2, response.getDocumentList().size());
+    assertEquals(42, response.getLastNodeId());
+    assertEquals("41:0:21:0", response.getCursor());
+
+    client.fetchSnapshot(response.getLastNodeId(), new AlfrescoFilters());
+    List<LoggedRequest> requests = WireMock.findAll(getRequestedFor(urlMatching(snapshotEndpoint)));
+
+    assertEquals(2, requests.size());
+    assertTrue(requests.get(0).getUrl().contains("afterNodeId=0"));
+    assertTrue(requests.get(1).getUrl().contains("afterNodeId=42"));
+  }
+
+  @Test
+  public void whenDetailsAreIncludedTheyShouldBeExposedOnTheDocuments() throws Exception {
+    String cursorEndpoint = "/alfresco/service/node/changes/" + STORE_PROTOCOL + "/" + STORE_ID + "\\?cursor=.*";
+    stubFor(get(urlMatching(cursorEndpoint))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ { \"uuid\": \"a\", \"deleted\": false, \"details\": { " +
+                "\"path\": \"/app:company_home/cm:a\", \"readableAuthorities\": [ \"GROUP_EVERYONE\" ], " +
+                "\"properties\": [ { \"name\": \"cm:name\", \"type\": \"java.lang.String\", \"value\": \"a.txt\" } ] } }, " +
+                "{ \"uuid\": \"b\", \"deleted\": true } ], \"cursor\": \"6:0:8:0\" }")));
+
+    client.setIncludeDetails(true);
+    List<Map<String, Object>> documents = client.fetchNodes("1:0:1:0", new AlfrescoFilters())
+        .getDocumentList();
+
+    assertEquals(2, documents.size());
+    Map<String, Object> details = AlfrescoResponse.getDetails(documents.get(0));
+    assertEquals("/app:company_home/cm:a", details.get("path"));
+    assertEquals("a.txt", details.get("cm:name"));
+    assertEquals(Arrays.asList("GROUP_EVERYONE"), details.get("readableAuthorities"));
+    Assert.assertNull(AlfrescoResponse.getDetails(documents.get(1)));
+
+    List<LoggedRequest> requests = WireMock.findAll(getRequestedFor(urlMatching(cursorEndpoint)));
+    assertTrue(requests.get(0).getUrl().contains("include=details"));
+  }
+
+  @Test
+  public void whenNoCursorIsReturnedItShouldFollowTheLastIds() throws Exception {
+    stubResult("{ \"docs\": [ ], \"last_txn_id\": \"5\", \"last_acl_changeset_id\": \"7\" }");
+
+    AlfrescoResponse response = client.fetchNodes(0, 0, new AlfrescoFilters());
+
+    assertEquals("5|7", response.getCursor());
+    assertEquals("5|7", ChangesCursor.fromRecorded("5|7"));
+    assertEquals(ChangesCursor.INITIAL, ChangesCursor.fromRecorded(null));
+
+    String cursorEndpoint = "/alfresco/service/node/changes/" + STORE_PROTOCOL + "/" + STORE_ID + "\\?cursor=.*";
+    stubFor(get(urlMatching(cursorEndpoint))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ ], \"cursor\": \"6:0:8:0\" }")));
+
+    client.fetchNodes(response.getCursor(), new AlfrescoFilters());
+    assertEquals(1, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).size());
+    List<LoggedRequest> requests = WireMock.findAll(getRequestedFor(urlMatching(cursorEndpoint)));
+    assertEquals(1, requests.size());
+    assertTrue(requests.get(0).getUrl().contains("cursor=5%7C7"));
+  }
+
+  @Test(timeout = 10000)
+  public void whenSeveralRequestsAreMadeThePooledConnectionsShouldBeReleased() throws Exception {
+    stubResult("{ \"docs\": [ ], " +
+        "\"store_id\": \"\", " +
+        "\"store_protocol\": \"\", " +
+        "\"last_txn_id\": 0," +
+        "\"last_acl_changeset_id\": 0  } ");
+
+    client.close();
+    client = new WebScriptsAlfrescoClient("http", "localhost:8089", "/alfresco/service",
+        STORE_PROTOCOL, STORE_ID, null, null, 1, 1);
+    for (int i = 0; i < 3; i++) {
+      client.fetchNodes(0, 0, new AlfrescoFilters());
+    }
+
+    assertEquals(3, WireMock.findAll(getRequestedFor(urlMatching(changesEndpoint))).size());
+  }
+
   @Test(expected = AlfrescoDownException.class)
   public void whenAlfrescoIsDownAnExceptionShouldBeThrown() throws Exception {
     stubFor(get(urlMatching(changesEndpoint)).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
@@ -184,6 +394,130 @@ public class AlfrescoClientTest {
     Assert.assertEquals("5", metadata.get("foo"));
   }
 
+  @Test
+  public void whenSeveralNodesAreGivenThenTheBatchMetadataEndpointIsQueriedOnce()
+      throws Exception {
+    stubFor(post(urlEqualTo(batchMetadataEndpoint)).willReturn(
+        aResponse().withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"nodes\": [ " +
+                "{ \"uuid\": \"a\", \"path\": \"A\", \"properties\": [ { \"name\": \"foo\", \"value\": \"1\" } ] }, " +
+                "{ \"uuid\": \"b\", \"path\": \"B\", \"properties\": [] } ] }")));
+
+    Map<String, Map<String, Object>> metadata = client.fetchMetadataBatch(Arrays.asList("a", "b", "c"));
+
+    assertEquals(2, metadata.size());
+    assertEquals("A", metadata.get("a").get("path"));
+    assertEquals("1", metadata.get("a").get("foo"));
+    assertEquals("B", metadata.get("b").get("path"));
+    List<LoggedRequest> requests = WireMock.findAll(postRequestedFor(urlEqualTo(batchMetadataEndpoint)));
+    assertEquals(1, requests.size());
+    assertEquals("{\"uuids\":[\"a\",\"b\",\"c\"]}", requests.get(0).getBodyAsString());
+  }
+
+  @Test(timeout = 10000)
+  public void whenRequestsAreSubmittedAsynchronouslyTheyShouldCompleteIndependently() throws Exception {
+    String testFile = CharStreams.toString(new InputStreamReader(getClass()
+        .getResourceAsStream("/metadata.sample.json"), "UTF-8"));
+    stubResult("{ \"docs\": [ { \"uuid\": \"abc123\" } ], " +
+        "\"store_id\": \"" + STORE_ID + "\", " +
+        "\"store_protocol\": \"" + STORE_PROTOCOL + "\", " +
+        "\"last_txn_id\": \"2\"," +
+        "\"last_acl_changeset_id\": \"3\" } ");
+    stubFor(get(urlEqualTo(metadataEndpoint + "abc123")).willReturn(
+        aResponse().withStatus(200)
+            .withHeader("Content-Type", "application/json").withBody(testFile)));
+
+    AsyncAlfrescoClient asyncClient = new WebScriptsAsyncAlfrescoClient("http", "localhost:8089",
+        "/alfresco/service", STORE_PROTOCOL, STORE_ID, null, null, 1, 2);
+    try {
+      ListenableFuture<AlfrescoResponse> nodes = asyncClient.fetchNodes(0, 0, new AlfrescoFilters());
+      ListenableFuture<Map<String, Object>> metadata = asyncClient.fetchMetadata("abc123");
+
+      AlfrescoResponse response = nodes.get();
+      assertEquals(2, response.getLastTransactionId());
+      assertEquals(3, response.getLastAclChangesetId());
+      assertEquals("abc123", response.getDocumentList().get(0).get("uuid"));
+      assertEquals("A/B/C", metadata.get().get("path"));
+    } finally {
+      asyncClient.close();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void whenMoreRequestsThanTheLimitAreSubmittedTheyShouldBeQueuedWithoutBlocking() throws Exception {
+    String testFile = CharStreams.toString(new InputStreamReader(getClass()
+        .getResourceAsStream("/metadata.sample.json"), "UTF-8"));
+    stubFor(get(urlEqualTo(metadataEndpoint + "abc123")).willReturn(
+        aResponse().withStatus(200).withFixedDelay(500)
+            .withHeader("Content-Type", "application/json").withBody(testFile)));
+
+    AsyncAlfrescoClient asyncClient = new WebScriptsAsyncAlfrescoClient("http", "localhost:8089",
+        "/alfresco/service", STORE_PROTOCOL, STORE_ID, null, null, 1, 1);
+    try {
+      long start = System.currentTimeMillis();
+      List<ListenableFuture<Map<String, Object>>> metadata = new ArrayList<ListenableFuture<Map<String, Object>>>();
+      for (int i = 0; i < 3; i++) {
+        metadata.add(asyncClient.fetchMetadata("abc123"));
+      }
+      assertTrue(System.currentTimeMillis() - start < 500);
+      assertFalse(metadata.get(2).isDone());
+
+      for (ListenableFuture<Map<String, Object>> future : metadata) {
+        assertEquals("A/B/C", future.get().get("path"));
+      }
+      assertTrue(System.currentTimeMillis() - start >= 1500);
+    } finally {
+      asyncClient.close();
+    }
+  }
+
+  @Test
+  public void whenAlfrescoIsDownTheAsynchronousRequestShouldFail() throws Exception {
+    stubFor(get(urlMatching(changesEndpoint)).willReturn(aResponse().withFault(Fault.EMPTY_RESPONSE)));
+
+    AsyncAlfrescoClient asyncClient = new WebScriptsAsyncAlfrescoClient("http", "localhost:8089",
+        "/alfresco/service", STORE_PROTOCOL, STORE_ID);
+    try {
+      asyncClient.fetchNodes(0, 0, new AlfrescoFilters()).get();
+      Assert.fail("The request should have failed");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof AlfrescoDownException);
+    } finally {
+      asyncClient.close();
+    }
+  }
+
+  @Test
+  public void whenContentIsFetchedAsynchronouslyTheSpooledBodyShouldBeReturned() throws Exception {
+    stubFor(get(urlEqualTo("/alfresco/service/content/abc123")).willReturn(
+        aResponse().withStatus(200).withHeader("Content-Type", "text/plain").withBody("Hello Alfresco")));
+    String snapshotEndpoint = "/alfresco/service/node/snapshot/" + STORE_PROTOCOL + "/" + STORE_ID + "\\?afterNodeId=.*";
+    stubFor(get(urlMatching(snapshotEndpoint))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody("{ \"docs\": [ { \"uuid\": \"a\" }, { \"uuid\": \"b\" } ], \"last_node_id\": \"42\" }")));
+
+    AsyncAlfrescoClient asyncClient = new WebScriptsAsyncAlfrescoClient("http", "localhost:8089",
+        "/alfresco/service", STORE_PROTOCOL, STORE_ID);
+    try {
+      InputStream content = asyncClient.fetchContent("http://localhost:8089/alfresco/service/content/abc123").get();
+      try {
+        assertEquals("Hello Alfresco", CharStreams.toString(new InputStreamReader(content, "UTF-8")));
+      } finally {
+        content.close();
+      }
+
+      AlfrescoResponse response = asyncClient.fetchSnapshot(0, new AlfrescoFilters()).get();
+      assertEquals(2, response.getDocumentList().size());
+      assertEquals(STORE_ID, response.getDocumentList().get(0).get("store_id"));
+      assertEquals(42, response.getLastNodeId());
+    } finally {
+      asyncClient.close();
+    }
+  }
+
   @Test
   public void whenFetchUserAuthoritiesIsCalledTheCorrectUserAndAuthoritiesShouldBeReturned()
       throws Exception {
@@ -262,6 +596,7 @@ public class AlfrescoClientTest {
                 "\"last_txn_id\": 2, "+
                 "\"last_acl_changeset_id\": 2 } ")));
 
+    client.close();
     client = new WebScriptsAlfrescoClient("http", "localhost:8089", "/alfresco/service", STORE_PROTOCOL, STORE_ID, "username", "password");
     AlfrescoResponse response = client.fetchNodes(0, 0, new AlfrescoFilters());
     List<Map<String, Object>> list = response.getDocumentList();
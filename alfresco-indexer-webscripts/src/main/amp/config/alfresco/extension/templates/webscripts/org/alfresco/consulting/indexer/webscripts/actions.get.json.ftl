@@ -6,12 +6,12 @@
         
         <#assign suffix="/"+storeProtocol+"/"+storeId+"/"+node.uuid >
         <#assign nodeRef=storeProtocol+"://"+storeId+"/"+node.uuid >
-        "name" : "${node.name}",
+        "name" : "${node.name!""}",
         "propertiesUrl" : "${propertiesUrlTemplate + suffix}",
         "uuid" : "${node.uuid}",
         "nodeRef": "${nodeRef}",
         "type" : "${qname.toPrefixString(nsResolver)}",
-        "deleted" : ${node.getDeleted(qnameDao)?string}
+        "deleted" : ${node.isDeleted()?string}
       }
       <#if node_has_next>,</#if>
     </#list>
@@ -0,0 +1,32 @@
+package org.alfresco.consulting.indexer.dao;
+
+import java.util.List;
+
+/**
+ * The ALLOWED authorities of a node ACL and of the ACLs it inherits from, along with the ids of all these ACLs
+ * (the inheritance chain, starting with the node ACL).
+ */
+public class AclAuthorities
+{
+    private final List<Long> aclIds;
+    private final List<String> authorities;
+
+    public AclAuthorities(List<Long> aclIds, List<String> authorities)
+    {
+        this.aclIds = aclIds;
+        this.authorities = authorities;
+    }
+
+    public List<Long> getAclIds()
+    {
+        return aclIds;
+    }
+
+    /**
+     * @return the authorities of the node ACL first, then the ones of each ACL up the chain; each one only once
+     */
+    public List<String> getAuthorities()
+    {
+        return authorities;
+    }
+}
@@ -0,0 +1,197 @@
+package org.alfresco.consulting.indexer.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * Caches the authorities allowed by a node ACL and the ACLs it inherits from, keyed by the node ACL id; the many
+ * nodes sharing an ACL (e.g. all the documents of a folder) are then resolved with a single lookup. The cache
+ * is bounded, evicting the least recently used ACLs first. Missing ACLs are resolved by
+ * {@link IndexingDaoImpl#getAclAuthorities(Collection)}, a single query for a whole batch of them.
+ *
+ * Entries are evicted as soon as a new ACL changeset touches one of the ACLs they were resolved from: whenever
+ * the head of the ACL changeset log moves, the ACLs of the new changesets are looked up once.
+ */
+public class AclAuthorityCache
+{
+    private static final String SELECT_ACL_IDS_BY_ACL_CHANGESET_ID = "alfresco.index.select_AclIdsByAclChangesetId";
+    private static final int DEFAULT_MAX_SIZE = 10000;
+
+    protected static final Log logger = LogFactory.getLog(AclAuthorityCache.class);
+
+    private SqlSessionTemplate template;
+    private IndexingDaoImpl indexingService;
+    private int maxSize = DEFAULT_MAX_SIZE;
+
+    private Map<Long, AclAuthorities> entries;
+    //Last ACL changeset whose ACLs have been evicted, null until the first lookup
+    private Long evictedAclChangesetId;
+
+    public void init()
+    {
+        entries = new LinkedHashMap<Long, AclAuthorities>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, AclAuthorities> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param nodeAclId
+     * @return the authorities having an ALLOWED entry on the ACL or on the ACLs it inherits from, the ones of the
+     *         node ACL first
+     */
+    public List<String> getReadableAuthorities(Long nodeAclId)
+    {
+        return getReadableAuthorities(Collections.singleton(nodeAclId)).get(nodeAclId);
+    }
+
+    /**
+     * Batch variant of {@link #getReadableAuthorities(Long)}, resolving all the ACLs missing from the cache at once
+     *
+     * @param nodeAclIds
+     * @return the authorities of each ACL, keyed by ACL id; empty for ACLs which do not exist
+     */
+    public Map<Long, List<String>> getReadableAuthorities(Collection<Long> nodeAclIds)
+    {
+        Long resolvedAt = evictChangedAcls();
+        Map<Long, List<String>> result = new HashMap<Long, List<String>>(nodeAclIds.size() * 2);
+        Set<Long> missing = new HashSet<Long>();
+        synchronized (this)
+        {
+            for (Long nodeAclId : nodeAclIds)
+            {
+                AclAuthorities entry = nodeAclId == null ? null : entries.get(nodeAclId);
+                if (entry != null)
+                {
+                    result.put(nodeAclId, entry.getAuthorities());
+                }
+                else if (nodeAclId != null)
+                {
+                    missing.add(nodeAclId);
+                }
+            }
+        }
+        if (missing.isEmpty() && result.size() == nodeAclIds.size())
+        {
+            return result;
+        }
+
+        Map<Long, AclAuthorities> resolved = indexingService.getAclAuthorities(missing);
+        synchronized (this)
+        {
+            //Not cached if ACLs were evicted meanwhile, as they may have been resolved before the change
+            if (equal(resolvedAt, evictedAclChangesetId))
+            {
+                entries.putAll(resolved);
+            }
+        }
+        for (Long nodeAclId : nodeAclIds)
+        {
+            if (!result.containsKey(nodeAclId))
+            {
+                AclAuthorities entry = resolved.get(nodeAclId);
+                result.put(nodeAclId, entry == null ? Collections.<String> emptyList() : entry.getAuthorities());
+            }
+        }
+        return result;
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Evicts the entries resolved from an ACL touched by the ACL changesets committed since the last call
+     *
+     * @return the last ACL changeset evicted
+     */
+    private Long evictChangedAcls()
+    {
+        Long headAclChangesetId = indexingService.getLastAclChangeSetID();
+        Long fromAclChangesetId;
+        synchronized (this)
+        {
+            if (headAclChangesetId == null || equal(headAclChangesetId, evictedAclChangesetId))
+            {
+                return evictedAclChangesetId;
+            }
+            if (evictedAclChangesetId == null)
+            {
+                evictedAclChangesetId = headAclChangesetId;
+                return evictedAclChangesetId;
+            }
+            fromAclChangesetId = evictedAclChangesetId;
+        }
+
+        Map<String, Object> params = new HashMap<String, Object>(2, 1.0f);
+        params.put("minId", fromAclChangesetId);
+        params.put("maxId", headAclChangesetId);
+        @SuppressWarnings("unchecked")
+        List<Long> changedAclIds = (List<Long>) template.selectList(SELECT_ACL_IDS_BY_ACL_CHANGESET_ID, params);
+
+        synchronized (this)
+        {
+            if (!equal(fromAclChangesetId, evictedAclChangesetId))
+            {
+                //Another request evicted them meanwhile
+                return evictedAclChangesetId;
+            }
+            if (!changedAclIds.isEmpty())
+            {
+                Set<Long> changed = new HashSet<Long>(changedAclIds);
+                for (Iterator<AclAuthorities> iterator = entries.values().iterator(); iterator.hasNext();)
+                {
+                    if (!Collections.disjoint(iterator.next().getAclIds(), changed))
+                    {
+                        iterator.remove();
+                    }
+                }
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("[evictChangedAcls] " + changedAclIds.size() + " ACLs changed up to ACL changeset "
+                        + headAclChangesetId);
+            }
+            evictedAclChangesetId = headAclChangesetId;
+            return evictedAclChangesetId;
+        }
+    }
+
+    private static boolean equal(Long a, Long b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public void setSqlSessionTemplate(SqlSessionTemplate template)
+    {
+        this.template = template;
+    }
+
+    public void setIndexingService(IndexingDaoImpl indexingService)
+    {
+        this.indexingService = indexingService;
+    }
+
+    public void setMaxSize(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+}
@@ -1,26 +1,37 @@
 package org.alfresco.consulting.indexer.dao;
 
-import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
+import org.alfresco.consulting.indexer.entities.AclAuthorityEntity;
 import org.alfresco.consulting.indexer.entities.NodeBatchLoadEntity;
 import org.alfresco.consulting.indexer.entities.NodeEntity;
-import org.alfresco.consulting.indexer.utils.Utils;
+import org.alfresco.consulting.indexer.entities.NodePropertyFilterEntity;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.mimetype.MimetypeDAO;
+import org.alfresco.repo.domain.qname.QNameDAO;
 import org.alfresco.service.ServiceRegistry;
-import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.dictionary.PropertyDefinition;
 import org.alfresco.service.cmr.repository.NodeService;
-import org.alfresco.service.cmr.repository.Path;
 import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.site.SiteInfo;
 import org.alfresco.service.cmr.site.SiteService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.util.Pair;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
 import org.mybatis.spring.SqlSessionTemplate;
 
@@ -29,75 +40,290 @@ public class IndexingDaoImpl
 
     private static final String SELECT_NODES_BY_ACLS = "alfresco.index.select_NodeIndexesByAclChangesetId";
     private static final String SELECT_NODES_BY_TXNS = "alfresco.index.select_NodeIndexesByTransactionId";
+    private static final String SELECT_NEXT_ACL_CHANGESET_ID = "alfresco.index.select_NextAclChangesetId";
+    private static final String SELECT_NEXT_TRANSACTION_ID = "alfresco.index.select_NextTransactionId";
+    private static final String SELECT_NODES_BY_ID = "alfresco.index.select_NodeIndexesById";
     private static final String SELECT_NODES_BY_UUID = "alfresco.index.select_NodeIndexesByUuid";
+    private static final String SELECT_ACL_CHAIN_AUTHORITIES = "alfresco.index.select_AclChainAuthorities";
+    private static final String SELECT_ACL_AUTHORITIES = "alfresco.index.select_AclAuthorities";
+    private static final String SELECT_SITE_CONTAINERS_AT_DEPTH = "alfresco.index.select_SiteContainersAtDepth";
     private static final String SELECT_LAST_TRANSACTION_ID = "select_LastTransactionID";
     private static final String SELECT_LAST_ACL_CHANGE_SET_ID = "select_LastAclChangeSetID";
     
-    private static final String SITES_FILTER="SITES";
-    private static final String PROPERTIES_FILTER="PROPERTIES";
+    private static final int DEFAULT_SITES_MAX_DEPTH = 20;
+    private static final long DEFAULT_LOG_HEAD_TTL = 1000;
+    //Bounds the walk of ACL inheritance chains, which should never be cyclic
+    private static final int MAX_ACL_CHAIN_DEPTH = 1000;
 
     protected static final Log logger = LogFactory.getLog(IndexingDaoImpl.class);
 
     private SqlSessionTemplate template;
     private NodeService nodeService;
+    private SiteService siteService;
+    private DictionaryService dictionaryService;
+    private QNameDAO qnameDao;
+    private MimetypeDAO mimetypeDao;
+    private TypeHierarchyCache typeHierarchyCache;
+    private Executor logHeadExecutor;
+    private long logHeadTtl = DEFAULT_LOG_HEAD_TTL;
     
-    private Set<String> allowedTypes;
-    private Set<String> excludedNameExtension;
-    private Set<String> properties;
-    private Set<String> aspects;
-    private Set<String> mimeTypes;
-    private Set<String> sites;
+    //Heads of the transaction and ACL changeset logs, polled by every changes request
+    private LogHeadCache transactionLogHead;
+    private LogHeadCache aclChangeSetLogHead;
+    
+    //Levels of primary ancestors (above the parent) walked when matching nodes against the sites filter, on the
+    //databases which do not walk them with a recursive query
+    private volatile List<Integer> siteAncestorLevels = ancestorLevels(DEFAULT_SITES_MAX_DEPTH);
+    
+    //Default filters, possibly updated through JMX while requests are being served
+    private volatile Set<String> allowedTypes;
+    private volatile Set<String> excludedNameExtension;
+    private volatile Set<String> properties;
+    private volatile Set<String> aspects;
+    private volatile Set<String> mimeTypes;
+    private volatile Set<String> sites;
+    private volatile boolean includeSubtypes;
+
+    public void init()
+    {
+        transactionLogHead = new LogHeadCache(template, SELECT_LAST_TRANSACTION_ID, logHeadExecutor, logHeadTtl);
+        aclChangeSetLogHead = new LogHeadCache(template, SELECT_LAST_ACL_CHANGE_SET_ID, logHeadExecutor, logHeadTtl);
+    }
 
     public List<NodeEntity> getNodesByAclChangesetId(Pair<Long, StoreRef> store, Long lastAclChangesetId, int maxResults)
     {
-        StoreRef storeRef = store.getSecond();
+        return getNodesByAclChangesetId(store, lastAclChangesetId, maxResults, getDefaultFilters());
+    }
+
+    public List<NodeEntity> getNodesByAclChangesetId(Pair<Long, StoreRef> store, Long lastAclChangesetId, int maxResults,
+            IndexingFilters filters)
+    {
         if (maxResults <= 0 || maxResults == Integer.MAX_VALUE)
         {
             throw new IllegalArgumentException("Maximum results must be a reasonable number.");
         }
+        return getNodesByAclChangesetId(store, lastAclChangesetId + 1, 0, lastAclChangesetId + maxResults, 0, filters);
+    }
 
+    /**
+     * Keyset page of the nodes whose ACLs changed, ordered by ACL changeset and node id
+     * 
+     * @param fromAclChangesetId
+     *            first ACL changeset scanned
+     * @param afterNodeId
+     *            only the nodes of fromAclChangesetId with a greater id are returned (0 for all of them)
+     * @param toAclChangesetId
+     *            last ACL changeset scanned (inclusive)
+     * @param maxNodes
+     *            maximum number of nodes returned, 0 for no limit
+     * @return
+     */
+    public List<NodeEntity> getNodesByAclChangesetId(Pair<Long, StoreRef> store, long fromAclChangesetId,
+            long afterNodeId, long toAclChangesetId, int maxNodes, IndexingFilters filters)
+    {
+        StoreRef storeRef = store.getSecond();
         logger.debug("[getNodesByAclChangesetId] On Store " + storeRef.getProtocol() + "://" + storeRef.getIdentifier());
 
-        NodeBatchLoadEntity nodeLoadEntity = new NodeBatchLoadEntity();
-        nodeLoadEntity.setStoreId(store.getFirst());
-        nodeLoadEntity.setStoreProtocol(storeRef.getProtocol());
-        nodeLoadEntity.setStoreIdentifier(storeRef.getIdentifier());
-        nodeLoadEntity.setMinId(lastAclChangesetId);
-        nodeLoadEntity.setMaxId(lastAclChangesetId + maxResults);
-        nodeLoadEntity.setAllowedTypes(this.allowedTypes);
-        nodeLoadEntity.setExcludedNameExtension(this.excludedNameExtension);
-//        nodeLoadEntity.setProperties(this.properties);
-        nodeLoadEntity.setAspects(this.aspects);
-        nodeLoadEntity.setMimeTypes(this.mimeTypes);
+        return selectNodes(SELECT_NODES_BY_ACLS, store, fromAclChangesetId, afterNodeId, toAclChangesetId, maxNodes,
+                filters);
+    }
 
-        return filterNodes((List<NodeEntity>) template.selectList(SELECT_NODES_BY_ACLS, nodeLoadEntity, new RowBounds(0,
-                Integer.MAX_VALUE)));
+    /**
+     * Seeks the first ACL changeset of a window with a node matching the filters, so that changesets without any
+     * can be skipped at once
+     * 
+     * @return the ACL changeset id, or null if none of the window matches
+     */
+    public Long getNextAclChangesetId(Pair<Long, StoreRef> store, long fromAclChangesetId, long afterNodeId,
+            long toAclChangesetId, IndexingFilters filters)
+    {
+        return selectNextId(SELECT_NEXT_ACL_CHANGESET_ID, store, fromAclChangesetId, afterNodeId, toAclChangesetId,
+                filters);
     }
 
     public List<NodeEntity> getNodesByTransactionId(Pair<Long, StoreRef> store, Long lastTransactionId, int maxResults)
     {
-        StoreRef storeRef = store.getSecond();
+        return getNodesByTransactionId(store, lastTransactionId, maxResults, getDefaultFilters());
+    }
+
+    public List<NodeEntity> getNodesByTransactionId(Pair<Long, StoreRef> store, Long lastTransactionId, int maxResults,
+            IndexingFilters filters)
+    {
         if (maxResults <= 0 || maxResults == Integer.MAX_VALUE)
         {
             throw new IllegalArgumentException("Maximum results must be a reasonable number.");
         }
+        return getNodesByTransactionId(store, lastTransactionId + 1, 0, lastTransactionId + maxResults, 0, filters);
+    }
 
+    /**
+     * Keyset page of the nodes changed by transactions, ordered by transaction and node id
+     * 
+     * @param fromTransactionId
+     *            first transaction scanned
+     * @param afterNodeId
+     *            only the nodes of fromTransactionId with a greater id are returned (0 for all of them)
+     * @param toTransactionId
+     *            last transaction scanned (inclusive)
+     * @param maxNodes
+     *            maximum number of nodes returned, 0 for no limit
+     * @return
+     */
+    public List<NodeEntity> getNodesByTransactionId(Pair<Long, StoreRef> store, long fromTransactionId,
+            long afterNodeId, long toTransactionId, int maxNodes, IndexingFilters filters)
+    {
+        StoreRef storeRef = store.getSecond();
         logger.debug("[getNodesByTransactionId] On Store " + storeRef.getProtocol() + "://" + storeRef.getIdentifier());
 
+        return selectNodes(SELECT_NODES_BY_TXNS, store, fromTransactionId, afterNodeId, toTransactionId, maxNodes,
+                filters);
+    }
+
+    /**
+     * Seeks the first transaction of a window with a node matching the filters, so that transactions without any
+     * can be skipped at once
+     * 
+     * @return the transaction id, or null if none of the window matches
+     */
+    public Long getNextTransactionId(Pair<Long, StoreRef> store, long fromTransactionId, long afterNodeId,
+            long toTransactionId, IndexingFilters filters)
+    {
+        return selectNextId(SELECT_NEXT_TRANSACTION_ID, store, fromTransactionId, afterNodeId, toTransactionId,
+                filters);
+    }
+
+    /**
+     * Streams a keyset page of the nodes whose ACLs changed to the handler, one node at a time, rather than loading
+     * the whole page in memory
+     * 
+     * @see #getNodesByAclChangesetId(Pair, long, long, long, int, IndexingFilters)
+     */
+    public void getNodesByAclChangesetId(Pair<Long, StoreRef> store, long fromAclChangesetId, long afterNodeId,
+            long toAclChangesetId, int maxNodes, IndexingFilters filters, ResultHandler handler)
+    {
+        StoreRef storeRef = store.getSecond();
+        logger.debug("[getNodesByAclChangesetId] Streaming from Store " + storeRef.getProtocol() + "://"
+                + storeRef.getIdentifier());
+
+        NodeBatchLoadEntity nodeLoadEntity = newNodesLoadEntity(store, fromAclChangesetId, afterNodeId,
+                toAclChangesetId, maxNodes, filters);
+        if (nodeLoadEntity != null)
+        {
+            template.select(SELECT_NODES_BY_ACLS, nodeLoadEntity, handler);
+        }
+    }
+
+    /**
+     * Streams a keyset page of the nodes changed by transactions to the handler, one node at a time, rather than
+     * loading the whole page in memory
+     * 
+     * @see #getNodesByTransactionId(Pair, long, long, long, int, IndexingFilters)
+     */
+    public void getNodesByTransactionId(Pair<Long, StoreRef> store, long fromTransactionId, long afterNodeId,
+            long toTransactionId, int maxNodes, IndexingFilters filters, ResultHandler handler)
+    {
+        StoreRef storeRef = store.getSecond();
+        logger.debug("[getNodesByTransactionId] Streaming from Store " + storeRef.getProtocol() + "://"
+                + storeRef.getIdentifier());
+
+        NodeBatchLoadEntity nodeLoadEntity = newNodesLoadEntity(store, fromTransactionId, afterNodeId,
+                toTransactionId, maxNodes, filters);
+        if (nodeLoadEntity != null)
+        {
+            template.select(SELECT_NODES_BY_TXNS, nodeLoadEntity, handler);
+        }
+    }
+
+    /**
+     * Streams a page of the live nodes (leaving out the sys:deleted ones) to the handler, ordered by node id; unlike
+     * the logs, each node is read once, however many transactions changed it
+     *
+     * @param afterNodeId
+     *            only the nodes with a greater id are returned (0 for all of them)
+     * @param maxNodes
+     *            maximum number of nodes returned
+     */
+    public void getNodesById(Pair<Long, StoreRef> store, long afterNodeId, int maxNodes, IndexingFilters filters,
+            ResultHandler handler)
+    {
+        if (maxNodes <= 0)
+        {
+            throw new IllegalArgumentException("Maximum nodes must be positive.");
+        }
+
+        StoreRef storeRef = store.getSecond();
+        logger.debug("[getNodesById] Streaming from Store " + storeRef.getProtocol() + "://" + storeRef.getIdentifier());
+
+        NodeBatchLoadEntity nodeLoadEntity = newWindowLoadEntity(store, 0, afterNodeId, Long.MAX_VALUE);
+        nodeLoadEntity.setMaxNodes(maxNodes);
+        //Deleted nodes are left out of snapshots anyway
+        if (applyFilters(nodeLoadEntity, filters) && !nodeLoadEntity.isDeletedOnly())
+        {
+            template.select(SELECT_NODES_BY_ID, nodeLoadEntity, handler);
+        }
+    }
+
+    private List<NodeEntity> selectNodes(String statement, Pair<Long, StoreRef> store, long fromId, long afterNodeId,
+            long toId, int maxNodes, IndexingFilters filters)
+    {
+        NodeBatchLoadEntity nodeLoadEntity = newNodesLoadEntity(store, fromId, afterNodeId, toId, maxNodes, filters);
+        if (nodeLoadEntity == null)
+        {
+            return Collections.emptyList();
+        }
+
+        return (List<NodeEntity>) template.selectList(statement, nodeLoadEntity, new RowBounds(0, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return the parameters of a keyset page query, or null if the page is empty anyway
+     */
+    private NodeBatchLoadEntity newNodesLoadEntity(Pair<Long, StoreRef> store, long fromId, long afterNodeId,
+            long toId, int maxNodes, IndexingFilters filters)
+    {
+        if (maxNodes < 0)
+        {
+            throw new IllegalArgumentException("Maximum nodes can not be negative.");
+        }
+
+        NodeBatchLoadEntity nodeLoadEntity = newWindowLoadEntity(store, fromId, afterNodeId, toId);
+        if (maxNodes > 0)
+        {
+            nodeLoadEntity.setMaxNodes(maxNodes);
+        }
+        if (fromId > toId || !applyFilters(nodeLoadEntity, filters))
+        {
+            return null;
+        }
+        return nodeLoadEntity;
+    }
+
+    private Long selectNextId(String statement, Pair<Long, StoreRef> store, long fromId, long afterNodeId, long toId,
+            IndexingFilters filters)
+    {
+        NodeBatchLoadEntity nodeLoadEntity = newWindowLoadEntity(store, fromId, afterNodeId, toId);
+        if (fromId > toId || !applyFilters(nodeLoadEntity, filters))
+        {
+            return null;
+        }
+
+        return (Long) template.selectOne(statement, nodeLoadEntity);
+    }
+
+    private NodeBatchLoadEntity newWindowLoadEntity(Pair<Long, StoreRef> store, long fromId, long afterNodeId,
+            long toId)
+    {
+        StoreRef storeRef = store.getSecond();
         NodeBatchLoadEntity nodeLoadEntity = new NodeBatchLoadEntity();
         nodeLoadEntity.setStoreId(store.getFirst());
         nodeLoadEntity.setStoreProtocol(storeRef.getProtocol());
         nodeLoadEntity.setStoreIdentifier(storeRef.getIdentifier());
-        nodeLoadEntity.setMinId(lastTransactionId);
-        nodeLoadEntity.setMaxId(lastTransactionId + maxResults);
-        nodeLoadEntity.setAllowedTypes(this.allowedTypes);
-        nodeLoadEntity.setExcludedNameExtension(this.excludedNameExtension);
-//        nodeLoadEntity.setProperties(this.properties);
-        nodeLoadEntity.setAspects(this.aspects);
-        nodeLoadEntity.setMimeTypes(this.mimeTypes);
-
-        return filterNodes((List<NodeEntity>) template.selectList(SELECT_NODES_BY_TXNS, nodeLoadEntity, new RowBounds(0,
-                Integer.MAX_VALUE)));
+        nodeLoadEntity.setMinId(fromId);
+        nodeLoadEntity.setMinNodeId(afterNodeId);
+        nodeLoadEntity.setMaxId(toId);
+        nodeLoadEntity.setDeletedQNameId(getQNameId(ContentModel.TYPE_DELETED));
+        nodeLoadEntity.setNameQNameId(getQNameId(ContentModel.PROP_NAME));
+        return nodeLoadEntity;
     }
 
     public NodeEntity getNodeByUuid(Pair<Long, StoreRef> store, String uuid)
@@ -111,12 +337,150 @@ public class IndexingDaoImpl
         nodeLoadEntity.setStoreProtocol(storeRef.getProtocol());
         nodeLoadEntity.setStoreIdentifier(storeRef.getIdentifier());
         nodeLoadEntity.setUuid(uuid);
+        nodeLoadEntity.setNameQNameId(getQNameId(ContentModel.PROP_NAME));
+        nodeLoadEntity.setDeletedQNameId(getQNameId(ContentModel.TYPE_DELETED));
 
         return (NodeEntity) template.selectOne(SELECT_NODES_BY_UUID, nodeLoadEntity);
     }
     
     /**
-     * Get the last acl change set id from database
+     * Resolves the ALLOWED authorities of node ACLs and of all the ACLs they inherit from, walking the inheritance
+     * chains with a single recursive query; the dialects which do not support it (their SqlMap has no
+     * select_AclChainAuthorities statement) walk the chains level by level instead, with a query per level for all
+     * of them.
+     * 
+     * @param nodeAclIds
+     * @return the authorities (and inheritance chain) of each ACL, keyed by ACL id; ACLs which do not exist are
+     *         missing
+     */
+    public Map<Long, AclAuthorities> getAclAuthorities(Collection<Long> nodeAclIds)
+    {
+        if (nodeAclIds.isEmpty())
+        {
+            return Collections.emptyMap();
+        }
+
+        if (template.getConfiguration().hasStatement(SELECT_ACL_CHAIN_AUTHORITIES))
+        {
+            return selectAclChainAuthorities(nodeAclIds);
+        }
+        return selectAclAuthoritiesByLevel(nodeAclIds);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, AclAuthorities> selectAclChainAuthorities(Collection<Long> nodeAclIds)
+    {
+        Map<String, Object> params = new HashMap<String, Object>(2, 1.0f);
+        params.put("aclIds", nodeAclIds);
+        params.put("maxDepth", MAX_ACL_CHAIN_DEPTH);
+        List<AclAuthorityEntity> rows = (List<AclAuthorityEntity>) template.selectList(SELECT_ACL_CHAIN_AUTHORITIES,
+                params);
+
+        //Rows are ordered by node ACL, then up its chain
+        Map<Long, Set<Long>> chains = new LinkedHashMap<Long, Set<Long>>();
+        Map<Long, Set<String>> authorities = new HashMap<Long, Set<String>>();
+        for (AclAuthorityEntity row : rows)
+        {
+            Set<Long> chain = chains.get(row.getNodeAclId());
+            if (chain == null)
+            {
+                chain = new LinkedHashSet<Long>();
+                chains.put(row.getNodeAclId(), chain);
+                authorities.put(row.getNodeAclId(), new LinkedHashSet<String>());
+            }
+            chain.add(row.getAclId());
+            if (row.getAuthority() != null)
+            {
+                authorities.get(row.getNodeAclId()).add(row.getAuthority());
+            }
+        }
+        return toAclAuthorities(chains, authorities);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, AclAuthorities> selectAclAuthoritiesByLevel(Collection<Long> nodeAclIds)
+    {
+        Map<Long, Set<Long>> chains = new LinkedHashMap<Long, Set<Long>>();
+        Map<Long, Set<String>> authorities = new HashMap<Long, Set<String>>();
+        //The ACL each chain reached at the current level, keyed by node ACL
+        Map<Long, Long> reached = new LinkedHashMap<Long, Long>();
+        for (Long nodeAclId : nodeAclIds)
+        {
+            reached.put(nodeAclId, nodeAclId);
+        }
+        //Rows of the ACLs loaded so far, as chains often share their upper levels
+        Map<Long, List<AclAuthorityEntity>> loaded = new HashMap<Long, List<AclAuthorityEntity>>();
+
+        while (!reached.isEmpty())
+        {
+            Set<Long> missing = new HashSet<Long>(reached.values());
+            missing.removeAll(loaded.keySet());
+            if (!missing.isEmpty())
+            {
+                Map<String, Object> params = new HashMap<String, Object>(1, 1.0f);
+                params.put("aclIds", missing);
+                for (AclAuthorityEntity row : (List<AclAuthorityEntity>) template.selectList(SELECT_ACL_AUTHORITIES,
+                        params))
+                {
+                    List<AclAuthorityEntity> aclRows = loaded.get(row.getAclId());
+                    if (aclRows == null)
+                    {
+                        aclRows = new ArrayList<AclAuthorityEntity>();
+                        loaded.put(row.getAclId(), aclRows);
+                    }
+                    aclRows.add(row);
+                }
+            }
+
+            Map<Long, Long> next = new LinkedHashMap<Long, Long>();
+            for (Map.Entry<Long, Long> entry : reached.entrySet())
+            {
+                List<AclAuthorityEntity> aclRows = loaded.get(entry.getValue());
+                if (aclRows == null)
+                {
+                    continue;
+                }
+                Set<Long> chain = chains.get(entry.getKey());
+                if (chain == null)
+                {
+                    chain = new LinkedHashSet<Long>();
+                    chains.put(entry.getKey(), chain);
+                    authorities.put(entry.getKey(), new LinkedHashSet<String>());
+                }
+                chain.add(entry.getValue());
+                for (AclAuthorityEntity row : aclRows)
+                {
+                    if (row.getAuthority() != null)
+                    {
+                        authorities.get(entry.getKey()).add(row.getAuthority());
+                    }
+                }
+                Long inheritsFrom = aclRows.get(0).getInheritsFrom();
+                if (inheritsFrom != null && !chain.contains(inheritsFrom) && chain.size() <= MAX_ACL_CHAIN_DEPTH)
+                {
+                    next.put(entry.getKey(), inheritsFrom);
+                }
+            }
+            reached = next;
+        }
+        return toAclAuthorities(chains, authorities);
+    }
+
+    private static Map<Long, AclAuthorities> toAclAuthorities(Map<Long, Set<Long>> chains,
+            Map<Long, Set<String>> authorities)
+    {
+        Map<Long, AclAuthorities> result = new HashMap<Long, AclAuthorities>(chains.size() * 2);
+        for (Map.Entry<Long, Set<Long>> chain : chains.entrySet())
+        {
+            result.put(chain.getKey(), new AclAuthorities(
+                    Collections.unmodifiableList(new ArrayList<Long>(chain.getValue())),
+                    Collections.unmodifiableList(new ArrayList<String>(authorities.get(chain.getKey())))));
+        }
+        return result;
+    }
+    
+    /**
+     * Get the last acl change set id, cached for logHeadTtl milliseconds
      * 
      * @return
      */
@@ -126,11 +490,11 @@ public class IndexingDaoImpl
             logger.debug("[getLastAclChangeSetID]");
         }
         
-        return (Long) template.selectOne(SELECT_LAST_ACL_CHANGE_SET_ID);
+        return aclChangeSetLogHead.get();
     }
     
     /**
-     * Get the last transaction id from database
+     * Get the last transaction id, cached for logHeadTtl milliseconds
      * 
      * @return
      */
@@ -140,87 +504,405 @@ public class IndexingDaoImpl
             logger.debug("[getLastTransactionID]");
         }
         
-        return (Long) template.selectOne(SELECT_LAST_TRANSACTION_ID);
+        return transactionLogHead.get();
     }
     
     /**
-     * Filter the nodes based on some parameters
-     * @param nodes
+     * @return the last ACL changeset of the window of windowSize changesets starting at fromAclChangesetId, bounded
+     *         by the last ACL changeset; the latter is not looked up when the window is known to be below it
+     */
+    public long getAclChangesetWindowEnd(long fromAclChangesetId, int windowSize)
+    {
+        return getWindowEnd(aclChangeSetLogHead, fromAclChangesetId, windowSize);
+    }
+    
+    /**
+     * @return the last transaction of the window of windowSize transactions starting at fromTransactionId, bounded
+     *         by the last transaction; the latter is not looked up when the window is known to be below it
+     */
+    public long getTransactionWindowEnd(long fromTransactionId, int windowSize)
+    {
+        return getWindowEnd(transactionLogHead, fromTransactionId, windowSize);
+    }
+    
+    private static long getWindowEnd(LogHeadCache head, long fromId, int windowSize)
+    {
+        long windowEnd = fromId + windowSize - 1;
+        return head.reaches(windowEnd) ? windowEnd : Math.min(windowEnd, head.get());
+    }
+    
+    /**
+     * Snapshot of the configured filters, used when a request does not provide its own
+     * 
      * @return
      */
-    private List<NodeEntity> filterNodes(List<NodeEntity> nodes)
+    public IndexingFilters getDefaultFilters()
     {
-        List<NodeEntity> filteredNodes= null;
+        return new IndexingFilters(this.allowedTypes, this.excludedNameExtension, this.properties, this.aspects,
+                this.mimeTypes, this.sites, this.includeSubtypes);
+    }
+    
+    /**
+     * Sets the filters on the query parameters, resolving them to database ids; deleted nodes are never filtered
+     * out, as they have lost what the filters match. When the filters can not match any live node, only the
+     * deleted ones are queried.
+     * 
+     * @param nodeLoadEntity
+     * @param indexingFilters
+     * @return false if no node can match, in which case there is no need to query
+     */
+    private boolean applyFilters(NodeBatchLoadEntity nodeLoadEntity, IndexingFilters indexingFilters)
+    {
+        if (!indexingFilters.getExcludedNameExtension().isEmpty())
+        {
+            nodeLoadEntity.setExcludedNameExtension(indexingFilters.getExcludedNameExtension());
+        }
+        if (applyTypesFilter(nodeLoadEntity, indexingFilters) && applyAspectsFilter(nodeLoadEntity, indexingFilters)
+                && applyMimetypesFilter(nodeLoadEntity, indexingFilters)
+                && applySitesFilter(nodeLoadEntity, indexingFilters)
+                && applyPropertiesFilter(nodeLoadEntity, indexingFilters))
+        {
+            return true;
+        }
+        nodeLoadEntity.setDeletedOnly(true);
+        return nodeLoadEntity.getDeletedQNameId() != null;
+    }
+    
+    /**
+     * Resolves the types filter to QName ids, matched against the node type; when subtypes are included,
+     * the types are expanded to their (cached) hierarchies first
+     * 
+     * @return false if none of the types has ever been persisted
+     */
+    private boolean applyTypesFilter(NodeBatchLoadEntity nodeLoadEntity, IndexingFilters indexingFilters)
+    {
+        if (indexingFilters.getAllowedTypes().isEmpty())
+        {
+            return true;
+        }
         
-        //Filter by sites
-        Map<String,Boolean> filters=getFilters();
+        List<Long> typeQNameIds;
+        if (indexingFilters.isIncludeSubtypes())
+        {
+            Set<QName> types = new HashSet<QName>();
+            for (String type : indexingFilters.getAllowedTypes())
+            {
+                types.addAll(typeHierarchyCache.getSubTypes(QName.createQName(type)));
+            }
+            typeQNameIds = getQNameIds(types);
+        }
+        else
+        {
+            typeQNameIds = getQNameIds(toQNames(indexingFilters.getAllowedTypes()));
+        }
+        nodeLoadEntity.setTypeQNameIds(typeQNameIds);
+        return !typeQNameIds.isEmpty();
+    }
+    
+    /**
+     * Resolves the aspects filter to QName ids; nodes must have all of them
+     * 
+     * @return false if one of the aspects has never been persisted
+     */
+    private boolean applyAspectsFilter(NodeBatchLoadEntity nodeLoadEntity, IndexingFilters indexingFilters)
+    {
+        if (indexingFilters.getAspects().isEmpty())
+        {
+            return true;
+        }
         
-        if(filters.values().contains(Boolean.TRUE)){
-            
-            filteredNodes= new ArrayList<NodeEntity>();
-            
-            for(NodeEntity node:nodes){
-                
-               boolean shouldBeAdded=true;
-               NodeRef nodeRef= new NodeRef(node.getStore().getStoreRef(),node.getUuid());
-                    
-               if(nodeService.exists(nodeRef)){
-                    
-                    //Filter by site
-                    if(filters.get(SITES_FILTER)){
-                        Path pathObj = nodeService.getPath(nodeRef);
-                        String siteName = Utils.getSiteName(pathObj);
-                        shouldBeAdded= siteName!=null && this.sites.contains(siteName);
-                    }
-                    
-                    //Filter by properties
-                    if(filters.get(PROPERTIES_FILTER) && shouldBeAdded){
-                        for(String prop:this.properties){
-                            
-                            int pos=prop.lastIndexOf(":");
-                            String qName=null;
-                            String value=null;
-                            
-                            if(pos!=-1 && (prop.length()-1)>pos){
-                                qName=prop.substring(0, pos);
-                                value= prop.substring(pos+1,prop.length());
-                            }
-                            
-                            if(StringUtils.isEmpty(qName) || StringUtils.isEmpty(value)){
-                                //Invalid property
-                                continue;
-                            }
-                            
-                            Serializable rawValue= nodeService.getProperty(nodeRef, QName.createQName(qName));
-                            shouldBeAdded=shouldBeAdded && value.equals(rawValue);
-                            
-                        }
-                    }
-                    
-                    if(shouldBeAdded){
-                        filteredNodes.add(node);
-                    }
-                }
+        List<Long> aspectQNameIds = getQNameIds(toQNames(indexingFilters.getAspects()));
+        nodeLoadEntity.setAspectQNameIds(aspectQNameIds);
+        return aspectQNameIds.size() == indexingFilters.getAspects().size();
+    }
+    
+    /**
+     * Resolves the mimetypes filter to mimetype ids, matched against the content data of the cm:content property
+     * 
+     * @return false if none of the mimetypes has ever been persisted
+     */
+    private boolean applyMimetypesFilter(NodeBatchLoadEntity nodeLoadEntity, IndexingFilters indexingFilters)
+    {
+        if (indexingFilters.getMimeTypes().isEmpty())
+        {
+            return true;
+        }
+        
+        Long contentQNameId = getQNameId(ContentModel.PROP_CONTENT);
+        if (contentQNameId == null)
+        {
+            return false;
+        }
+        
+        List<Long> mimetypeIds = new ArrayList<Long>(indexingFilters.getMimeTypes().size());
+        for (String mimetype : indexingFilters.getMimeTypes())
+        {
+            Pair<Long, String> mimetypePair = mimetypeDao.getMimetype(mimetype);
+            if (mimetypePair == null)
+            {
+                logger.debug("[applyMimetypesFilter] Ignoring " + mimetype + ", which has never been persisted");
+                continue;
             }
-        }else{
-            filteredNodes=nodes;
+            mimetypeIds.add(mimetypePair.getFirst());
         }
-        return filteredNodes;
+        
+        nodeLoadEntity.setContentQNameId(contentQNameId);
+        nodeLoadEntity.setMimetypeIds(mimetypeIds);
+        return !mimetypeIds.isEmpty();
     }
-
+    
     /**
-     * Get existing filters
-     * @return
+     * @return the ids of the QNames known to the database; the others are ignored
+     */
+    private List<Long> getQNameIds(Set<QName> qnames)
+    {
+        List<Long> qnameIds = new ArrayList<Long>(qnames.size());
+        for (QName qname : qnames)
+        {
+            Long qnameId = getQNameId(qname);
+            if (qnameId == null)
+            {
+                logger.debug("[getQNameIds] Ignoring " + qname + ", which has never been persisted");
+                continue;
+            }
+            qnameIds.add(qnameId);
+        }
+        return qnameIds;
+    }
+    
+    private static Set<QName> toQNames(Set<String> qnames)
+    {
+        Set<QName> result = new HashSet<QName>(qnames.size());
+        for (String qname : qnames)
+        {
+            result.add(QName.createQName(qname));
+        }
+        return result;
+    }
+    
+    private Long getQNameId(QName qname)
+    {
+        Pair<Long, QName> qnamePair = qnameDao.getQName(qname);
+        return qnamePair == null ? null : qnamePair.getFirst();
+    }
+    
+    /**
+     * Resolves the sites filter to site node ids, matched by the queries against the node and its primary
+     * ancestors, so that nodes outside the sites are never loaded; the filters returned by
+     * {@link #resolveFilters(IndexingFilters)} carry them already, others are resolved for each query
+     * 
+     * @param nodeLoadEntity
+     * @param indexingFilters
+     * @return false if none of the filtered sites exist, in which case no node can match
      */
-    private Map<String,Boolean> getFilters()
+    private boolean applySitesFilter(NodeBatchLoadEntity nodeLoadEntity, IndexingFilters indexingFilters)
     {
-        Map<String,Boolean> filters= new HashMap<String, Boolean>(2);
-        //Site filter
-        filters.put(SITES_FILTER, this.sites!=null && this.sites.size() > 0);
-        //Properties filter
-        filters.put(PROPERTIES_FILTER, this.properties!=null && this.properties.size() > 0);
+        if (indexingFilters.getSites().isEmpty())
+        {
+            return true;
+        }
         
-        return filters;
+        List<Long> siteNodeIds = indexingFilters.getSiteNodeIds();
+        if (siteNodeIds == null)
+        {
+            siteNodeIds = getSiteNodeIds(indexingFilters.getSites());
+        }
+        
+        nodeLoadEntity.setSiteNodeIds(siteNodeIds);
+        nodeLoadEntity.setSiteAncestorLevels(siteAncestorLevels);
+        return !siteNodeIds.isEmpty();
+    }
+    
+    private List<Long> getSiteNodeIds(Set<String> sites)
+    {
+        List<Long> siteNodeIds = new ArrayList<Long>(sites.size());
+        for (String site : sites)
+        {
+            SiteInfo siteInfo = siteService.getSite(site);
+            if (siteInfo == null)
+            {
+                logger.debug("[getSiteNodeIds] Ignoring unknown site " + site);
+                continue;
+            }
+            siteNodeIds.add((Long) nodeService.getProperty(siteInfo.getNodeRef(), ContentModel.PROP_NODE_DBID));
+        }
+        addSiteContainers(siteNodeIds);
+        return siteNodeIds;
+    }
+    
+    /**
+     * Adds the containers found every sitesMaxDepth levels below the sites, walked level by level, on the databases
+     * matching a fixed number of ancestors (the others have no select_SiteContainersAtDepth statement): any node of
+     * the sites is then at most sitesMaxDepth levels below one of the site node ids
+     */
+    private void addSiteContainers(List<Long> siteNodeIds)
+    {
+        if (siteNodeIds.isEmpty() || !template.getConfiguration().hasStatement(SELECT_SITE_CONTAINERS_AT_DEPTH))
+        {
+            return;
+        }
+        
+        Map<String, Object> params = new HashMap<String, Object>(2, 1.0f);
+        params.put("levels", siteAncestorLevels);
+        List<Long> nodeIds = new ArrayList<Long>(siteNodeIds);
+        while (!nodeIds.isEmpty())
+        {
+            params.put("nodeIds", nodeIds);
+            @SuppressWarnings("unchecked")
+            List<Long> containerIds = (List<Long>) template.selectList(SELECT_SITE_CONTAINERS_AT_DEPTH, params);
+            siteNodeIds.addAll(containerIds);
+            nodeIds = containerIds;
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("[addSiteContainers] The sites filter matches " + siteNodeIds.size()
+                    + " site and container ids");
+        }
+    }
+    
+    private static List<Integer> ancestorLevels(int maxDepth)
+    {
+        List<Integer> levels = new ArrayList<Integer>(maxDepth);
+        for (int level = 1; level < maxDepth; level++)
+        {
+            levels.add(level);
+        }
+        return levels;
+    }
+    
+    /**
+     * Resolves the "{uri}localName:value" metadata filters to property QName ids and typed values, matched by the
+     * queries against alf_node_properties
+     * 
+     * @param nodeLoadEntity
+     * @param indexingFilters
+     * @return false if one of the filters can not match any node
+     * @throws IllegalArgumentException
+     *             if one of the filters is invalid, see {@link #checkFilters(IndexingFilters)}
+     */
+    private boolean applyPropertiesFilter(NodeBatchLoadEntity nodeLoadEntity, IndexingFilters indexingFilters)
+    {
+        if (indexingFilters.getProperties().isEmpty())
+        {
+            return true;
+        }
+        
+        List<NodePropertyFilterEntity> propertyFilters = new ArrayList<NodePropertyFilterEntity>(
+                indexingFilters.getProperties().size());
+        for (String prop : indexingFilters.getProperties())
+        {
+            Pair<QName, String> property = parsePropertyFilter(prop);
+            QName propertyQName = property.getFirst();
+            String value = property.getSecond();
+            Long propertyQNameId = getQNameId(propertyQName);
+            if (propertyQNameId == null)
+            {
+                //The property has never been persisted
+                logger.debug("[applyPropertiesFilter] No node has the property " + propertyQName);
+                return false;
+            }
+            
+            propertyFilters.add(getPropertyFilter(propertyQNameId, propertyQName, value));
+        }
+        
+        nodeLoadEntity.setProperties(propertyFilters);
+        return true;
+    }
+    
+    /**
+     * Checks the metadata filters before any query, so that an invalid one is rejected rather than ignored (which
+     * would widen the results)
+     * 
+     * @param indexingFilters
+     * @throws IllegalArgumentException
+     *             if a metadata filter is not a "{uri}localName:value" of a property of the dictionary, with a value
+     *             valid for its data type
+     */
+    public void checkFilters(IndexingFilters indexingFilters)
+    {
+        for (String prop : indexingFilters.getProperties())
+        {
+            Pair<QName, String> property = parsePropertyFilter(prop);
+            getPropertyFilter(null, property.getFirst(), property.getSecond());
+        }
+    }
+    
+    /**
+     * Checks the filters of a request (see {@link #checkFilters(IndexingFilters)}) and resolves its sites once for
+     * all the queries it runs
+     * 
+     * @param indexingFilters
+     * @return a copy of the filters, with the sites resolved
+     * @throws IllegalArgumentException
+     *             if a metadata filter is invalid
+     */
+    public IndexingFilters resolveFilters(IndexingFilters indexingFilters)
+    {
+        checkFilters(indexingFilters);
+        if (indexingFilters.getSites().isEmpty())
+        {
+            return indexingFilters;
+        }
+        return indexingFilters.withSiteNodeIds(getSiteNodeIds(indexingFilters.getSites()));
+    }
+    
+    /**
+     * @param prop
+     *            metadata filter, as "{uri}localName:value"
+     * @return the property QName and the value
+     * @throws IllegalArgumentException
+     *             if the filter is malformed
+     */
+    private static Pair<QName, String> parsePropertyFilter(String prop)
+    {
+        int namespaceEnd = prop.indexOf('}');
+        int pos = namespaceEnd == -1 ? -1 : prop.indexOf(':', namespaceEnd);
+        if (!prop.startsWith("{") || pos == -1 || pos == namespaceEnd + 1 || pos == prop.length() - 1)
+        {
+            throw new IllegalArgumentException("Invalid metadata filter (expected {uri}localName:value): " + prop);
+        }
+        return new Pair<QName, String>(QName.createQName(prop.substring(0, pos)), prop.substring(pos + 1));
+    }
+    
+    /**
+     * Picks the alf_node_properties column the property is persisted in, according to its data type; any type not
+     * stored as a number or a boolean is matched as a string
+     * 
+     * @throws IllegalArgumentException
+     *             if the property is not in the dictionary, or the value is not valid for its data type
+     */
+    private NodePropertyFilterEntity getPropertyFilter(Long qnameId, QName propertyQName, String value)
+    {
+        PropertyDefinition propertyDefinition = dictionaryService.getProperty(propertyQName);
+        if (propertyDefinition == null)
+        {
+            throw new IllegalArgumentException("Unknown property in metadata filter: " + propertyQName);
+        }
+        QName dataType = propertyDefinition.getDataType().getName();
+        try
+        {
+            if (DataTypeDefinition.INT.equals(dataType) || DataTypeDefinition.LONG.equals(dataType))
+            {
+                return new NodePropertyFilterEntity(qnameId, "long_value", Long.valueOf(value));
+            }
+            else if (DataTypeDefinition.FLOAT.equals(dataType))
+            {
+                return new NodePropertyFilterEntity(qnameId, "float_value", Float.valueOf(value));
+            }
+            else if (DataTypeDefinition.DOUBLE.equals(dataType))
+            {
+                return new NodePropertyFilterEntity(qnameId, "double_value", Double.valueOf(value));
+            }
+            else if (DataTypeDefinition.BOOLEAN.equals(dataType))
+            {
+                return new NodePropertyFilterEntity(qnameId, "boolean_value", Boolean.valueOf(value));
+            }
+            return new NodePropertyFilterEntity(qnameId, "string_value", value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException(value + " is not a valid " + dataType + " for " + propertyQName, e);
+        }
     }
 
     public void setSqlSessionTemplate(SqlSessionTemplate sqlSessionTemplate)
@@ -230,6 +912,54 @@ public class IndexingDaoImpl
     
     public void setServiceRegistry(ServiceRegistry serviceRegistry){
         this.nodeService= serviceRegistry.getNodeService();
+        this.siteService= serviceRegistry.getSiteService();
+        this.dictionaryService= serviceRegistry.getDictionaryService();
+    }
+    
+    public void setQnameDao(QNameDAO qnameDao)
+    {
+        this.qnameDao = qnameDao;
+    }
+    
+    public void setMimetypeDao(MimetypeDAO mimetypeDao)
+    {
+        this.mimetypeDao = mimetypeDao;
+    }
+    
+    public void setTypeHierarchyCache(TypeHierarchyCache typeHierarchyCache)
+    {
+        this.typeHierarchyCache = typeHierarchyCache;
+    }
+    
+    public void setLogHeadExecutor(Executor logHeadExecutor)
+    {
+        this.logHeadExecutor = logHeadExecutor;
+    }
+    
+    /**
+     * Milliseconds the last transaction and ACL changeset ids are cached for, 0 to look them up on every request
+     * 
+     * @param logHeadTtl
+     */
+    public void setLogHeadTtl(long logHeadTtl)
+    {
+        this.logHeadTtl = logHeadTtl;
+    }
+    
+    /**
+     * Levels of primary ancestors walked by each query of the sites filter, on the databases which can not walk
+     * all the ancestors of the nodes with a recursive query (MySQL); the containers found every sitesMaxDepth levels
+     * below the sites are matched along with them
+     * 
+     * @param sitesMaxDepth
+     */
+    public void setSitesMaxDepth(int sitesMaxDepth)
+    {
+        if (sitesMaxDepth <= 0)
+        {
+            throw new IllegalArgumentException("The sites maximum depth must be positive.");
+        }
+        this.siteAncestorLevels = ancestorLevels(sitesMaxDepth);
     }
 
     public void setAllowedTypes(Set<String> allowedTypes)
@@ -293,4 +1023,14 @@ public class IndexingDaoImpl
         return this.sites;
     }
     
+    public void setIncludeSubtypes(boolean includeSubtypes)
+    {
+        this.includeSubtypes = includeSubtypes;
+    }
+
+    public boolean isIncludeSubtypes()
+    {
+        return this.includeSubtypes;
+    }
+    
 }
@@ -8,6 +8,8 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 
 /**
+ * Exposes the default indexing filters, applied to changes requests not providing their own (see IndexingFilters)
+ * 
  * @author iarroyo
  *
  */
@@ -103,6 +105,18 @@ public class IndexingDaoJMX
         return collectionToString(indexingDaoImpl.getSites(), DELIMITER);
     }
 
+    @ManagedAttribute
+    public void setIncludeSubtypes(boolean includeSubtypes)
+    {
+        indexingDaoImpl.setIncludeSubtypes(includeSubtypes);
+    }
+
+    @ManagedAttribute
+    public boolean isIncludeSubtypes()
+    {
+        return indexingDaoImpl.isIncludeSubtypes();
+    }
+
     private Set<String> tokenizeString(String str)
     {
 
@@ -0,0 +1,129 @@
+package org.alfresco.consulting.indexer.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable set of filters applied to a single changes request; IndexingDaoImpl only holds the defaults
+ * (as configured in alfresco-global.properties or through JMX), which are never altered by requests.
+ * 
+ * The node ids the sites resolve to are carried by a copy of the filters (see IndexingDaoImpl.resolveFilters), so
+ * that a request running several queries resolves them once.
+ */
+public class IndexingFilters
+{
+    private final Set<String> allowedTypes;
+    private final Set<String> excludedNameExtension;
+    private final Set<String> properties;
+    private final Set<String> aspects;
+    private final Set<String> mimeTypes;
+    private final Set<String> sites;
+    private final boolean includeSubtypes;
+    private final List<Long> siteNodeIds;
+
+    public IndexingFilters(Set<String> allowedTypes, Set<String> excludedNameExtension, Set<String> properties,
+            Set<String> aspects, Set<String> mimeTypes, Set<String> sites)
+    {
+        this(allowedTypes, excludedNameExtension, properties, aspects, mimeTypes, sites, false);
+    }
+
+    /**
+     * @param includeSubtypes
+     *            whether the allowed types also match all their subtypes
+     */
+    public IndexingFilters(Set<String> allowedTypes, Set<String> excludedNameExtension, Set<String> properties,
+            Set<String> aspects, Set<String> mimeTypes, Set<String> sites, boolean includeSubtypes)
+    {
+        this.allowedTypes = copyOf(allowedTypes);
+        this.excludedNameExtension = copyOf(excludedNameExtension);
+        this.properties = copyOf(properties);
+        this.aspects = copyOf(aspects);
+        this.mimeTypes = copyOf(mimeTypes);
+        this.sites = copyOf(sites);
+        this.includeSubtypes = includeSubtypes;
+        this.siteNodeIds = null;
+    }
+
+    private IndexingFilters(IndexingFilters filters, List<Long> siteNodeIds)
+    {
+        this.allowedTypes = filters.allowedTypes;
+        this.excludedNameExtension = filters.excludedNameExtension;
+        this.properties = filters.properties;
+        this.aspects = filters.aspects;
+        this.mimeTypes = filters.mimeTypes;
+        this.sites = filters.sites;
+        this.includeSubtypes = filters.includeSubtypes;
+        this.siteNodeIds = Collections.unmodifiableList(new ArrayList<Long>(siteNodeIds));
+    }
+
+    public Set<String> getAllowedTypes()
+    {
+        return allowedTypes;
+    }
+
+    public Set<String> getExcludedNameExtension()
+    {
+        return excludedNameExtension;
+    }
+
+    public Set<String> getProperties()
+    {
+        return properties;
+    }
+
+    public Set<String> getAspects()
+    {
+        return aspects;
+    }
+
+    public Set<String> getMimeTypes()
+    {
+        return mimeTypes;
+    }
+
+    public Set<String> getSites()
+    {
+        return sites;
+    }
+
+    public boolean isIncludeSubtypes()
+    {
+        return includeSubtypes;
+    }
+
+    /**
+     * @return the node ids of the sites, null if not resolved yet
+     */
+    List<Long> getSiteNodeIds()
+    {
+        return siteNodeIds;
+    }
+
+    /**
+     * @return a copy of these filters, along with the node ids the sites resolve to
+     */
+    IndexingFilters withSiteNodeIds(List<Long> siteNodeIds)
+    {
+        return new IndexingFilters(this, siteNodeIds);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "IndexingFilters [allowedTypes=" + allowedTypes + ", excludedNameExtension=" + excludedNameExtension
+                + ", properties=" + properties + ", aspects=" + aspects + ", mimeTypes=" + mimeTypes + ", sites="
+                + sites + ", includeSubtypes=" + includeSubtypes + "]";
+    }
+
+    private static Set<String> copyOf(Set<String> values)
+    {
+        if (values == null || values.isEmpty())
+        {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new HashSet<String>(values));
+    }
+}
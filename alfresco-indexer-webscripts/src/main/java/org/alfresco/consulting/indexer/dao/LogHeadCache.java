@@ -0,0 +1,106 @@
+package org.alfresco.consulting.indexer.dao;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * Head (last id) of the transaction or ACL changeset log, cached for a short time. Once loaded, a stale head is
+ * still served while it is reloaded in the background, so that polling clients do not wait for it; as heads only
+ * grow, a stale one merely ends the pages a bit early.
+ */
+public class LogHeadCache
+{
+    protected static final Log logger = LogFactory.getLog(LogHeadCache.class);
+
+    private final SqlSessionTemplate template;
+    private final String statement;
+    private final Executor executor;
+    private final long ttl;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Long head;
+    private volatile long loadedAt;
+
+    /**
+     * @param statement
+     *            query selecting the head of the log
+     * @param executor
+     *            runs the background reloads
+     * @param ttl
+     *            milliseconds a loaded head is served before being reloaded; 0 reloads it on every call
+     */
+    public LogHeadCache(SqlSessionTemplate template, String statement, Executor executor, long ttl)
+    {
+        this.template = template;
+        this.statement = statement;
+        this.executor = executor;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return the head of the log (0 while it is empty), possibly stale by up to the ttl (plus the time of a reload)
+     */
+    public Long get()
+    {
+        Long current = head;
+        if (current == null || ttl <= 0)
+        {
+            return load();
+        }
+        if (System.currentTimeMillis() - loadedAt > ttl && refreshing.compareAndSet(false, true))
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        load();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.warn("[run] Could not reload the head of the log with " + statement, e);
+                    }
+                    finally
+                    {
+                        refreshing.set(false);
+                    }
+                }
+            });
+        }
+        return current;
+    }
+
+    /**
+     * @param id
+     * @return true if the log is known to reach the given id, without looking up its head
+     */
+    public boolean reaches(long id)
+    {
+        Long current = head;
+        return current != null && current >= id;
+    }
+
+    private Long load()
+    {
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("[load] " + statement);
+        }
+
+        Long loaded = (Long) template.selectOne(statement);
+        if (loaded == null)
+        {
+            //Empty log
+            loaded = 0L;
+        }
+        loadedAt = System.currentTimeMillis();
+        head = loaded;
+        return loaded;
+    }
+}
@@ -0,0 +1,30 @@
+package org.alfresco.consulting.indexer.dao;
+
+/**
+ * The primary path of a node, in its prefixed form (e.g. /app:company_home/st:sites/cm:swsdp), along with the
+ * name of the site it belongs to.
+ */
+public class NodePath
+{
+    private final String path;
+    private final String siteName;
+
+    public NodePath(String path, String siteName)
+    {
+        this.path = path;
+        this.siteName = siteName;
+    }
+
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * @return the site name, null if the node is not within a site
+     */
+    public String getSiteName()
+    {
+        return siteName;
+    }
+}
@@ -0,0 +1,263 @@
+package org.alfresco.consulting.indexer.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.Path;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mybatis.spring.SqlSessionTemplate;
+
+/**
+ * Caches the primary path and site name of the nodes which are the primary parent of others, keyed by node id;
+ * the path of a node is then its parent's plus the name of its primary parent association, so that siblings
+ * (e.g. all the documents of a folder) share a single lookup of their ancestors. The cache is bounded, evicting
+ * the least recently used parents first.
+ *
+ * Entries are evicted as soon as a new transaction changes one of the nodes on their path, as moves and renames
+ * do: whenever the head of the transaction log (the one the changes feed pages through) moves, the containers
+ * changed by the new transactions are looked up once.
+ */
+public class NodePathCache
+{
+    private static final String SELECT_CONTAINER_IDS_BY_TRANSACTION_ID = "alfresco.index.select_ContainerIdsByTransactionId";
+    private static final String SITES_CONTAINER = "sites";
+    private static final int DEFAULT_MAX_SIZE = 10000;
+
+    protected static final Log logger = LogFactory.getLog(NodePathCache.class);
+
+    private NodeDAO nodeDao;
+    private NamespaceService namespaceService;
+    private SqlSessionTemplate template;
+    private IndexingDaoImpl indexingService;
+    private int maxSize = DEFAULT_MAX_SIZE;
+
+    private Map<Long, Entry> entries;
+    //Last transaction whose containers have been evicted, null until the first lookup
+    private Long evictedTransactionId;
+
+    public void init()
+    {
+        entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param nodeId
+     * @return the primary path of the node and the site it belongs to, the same as rendered by
+     *         nodeService.getPath(nodeRef).toPrefixString(namespaceService)
+     */
+    public NodePath getNodePath(Long nodeId)
+    {
+        Long resolvedAt = evictChangedContainers();
+
+        //Walks up the primary parents, down to the first one cached (or the root)
+        List<Pair<Long, ChildAssociationRef>> walked = new ArrayList<Pair<Long, ChildAssociationRef>>();
+        Entry entry = null;
+        Long id = nodeId;
+        while (entry == null)
+        {
+            if (!walked.isEmpty())
+            {
+                synchronized (this)
+                {
+                    entry = entries.get(id);
+                }
+                if (entry != null)
+                {
+                    break;
+                }
+            }
+            Pair<Long, ChildAssociationRef> parentAssoc = nodeDao.getPrimaryParentAssoc(id);
+            if (parentAssoc == null)
+            {
+                entry = new Entry(id);
+                break;
+            }
+            walked.add(new Pair<Long, ChildAssociationRef>(id, parentAssoc.getSecond()));
+            id = nodeDao.getNodePair(parentAssoc.getSecond().getParentRef()).getFirst();
+        }
+
+        //Then builds the paths back down, caching the ones of the parents
+        Map<Long, Entry> resolved = new HashMap<Long, Entry>();
+        if (!id.equals(nodeId))
+        {
+            resolved.put(id, entry);
+        }
+        for (int i = walked.size() - 1; i >= 0; i--)
+        {
+            entry = new Entry(entry, walked.get(i).getFirst(), walked.get(i).getSecond(), namespaceService);
+            if (i > 0)
+            {
+                resolved.put(walked.get(i).getFirst(), entry);
+            }
+        }
+        synchronized (this)
+        {
+            //Not cached if containers were evicted meanwhile, as they may have been resolved before the change
+            if (equal(resolvedAt, evictedTransactionId))
+            {
+                entries.putAll(resolved);
+            }
+        }
+        return entry.nodePath;
+    }
+
+    /**
+     * @param nodeRef
+     * @return the primary path of the node and the site it belongs to, null if the node does not exist
+     */
+    public NodePath getNodePath(NodeRef nodeRef)
+    {
+        Pair<Long, NodeRef> nodePair = nodeDao.getNodePair(nodeRef);
+        return nodePair == null ? null : getNodePath(nodePair.getFirst());
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Evicts the entries below a container changed by the transactions committed since the last call
+     *
+     * @return the last transaction evicted
+     */
+    private Long evictChangedContainers()
+    {
+        Long headTransactionId = indexingService.getLastTransactionID();
+        Long fromTransactionId;
+        synchronized (this)
+        {
+            if (headTransactionId == null || equal(headTransactionId, evictedTransactionId))
+            {
+                return evictedTransactionId;
+            }
+            if (evictedTransactionId == null)
+            {
+                evictedTransactionId = headTransactionId;
+                return evictedTransactionId;
+            }
+            fromTransactionId = evictedTransactionId;
+        }
+
+        Map<String, Object> params = new HashMap<String, Object>(2, 1.0f);
+        params.put("minId", fromTransactionId);
+        params.put("maxId", headTransactionId);
+        @SuppressWarnings("unchecked")
+        List<Long> changedNodeIds = (List<Long>) template.selectList(SELECT_CONTAINER_IDS_BY_TRANSACTION_ID, params);
+
+        synchronized (this)
+        {
+            if (!equal(fromTransactionId, evictedTransactionId))
+            {
+                //Another request evicted them meanwhile
+                return evictedTransactionId;
+            }
+            if (!changedNodeIds.isEmpty())
+            {
+                Set<Long> changed = new HashSet<Long>(changedNodeIds);
+                for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();)
+                {
+                    if (!Collections.disjoint(iterator.next().nodeIds, changed))
+                    {
+                        iterator.remove();
+                    }
+                }
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("[evictChangedContainers] " + changedNodeIds.size()
+                        + " containers changed up to transaction " + headTransactionId);
+            }
+            evictedTransactionId = headTransactionId;
+            return evictedTransactionId;
+        }
+    }
+
+    private static boolean equal(Long a, Long b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static class Entry
+    {
+        private final NodePath nodePath;
+        //The node and its primary ancestors
+        private final List<Long> nodeIds;
+        private final boolean sitesContainer;
+
+        /**
+         * The root of the store
+         */
+        private Entry(Long nodeId)
+        {
+            this.nodePath = new NodePath("/", null);
+            this.nodeIds = Collections.singletonList(nodeId);
+            this.sitesContainer = false;
+        }
+
+        private Entry(Entry parent, Long nodeId, ChildAssociationRef parentAssoc, NamespaceService namespaceService)
+        {
+            String element = new Path.ChildAssocElement(parentAssoc).getPrefixedString(namespaceService);
+            String localName = parentAssoc.getQName().getLocalName();
+            //The site is the child of the sites container (see Utils.getSiteName)
+            String siteName = parent.nodePath.getSiteName();
+            if (siteName == null && parent.sitesContainer)
+            {
+                siteName = localName;
+            }
+            this.nodePath = new NodePath(
+                    parent.nodeIds.size() == 1 ? "/" + element : parent.nodePath.getPath() + "/" + element, siteName);
+            this.nodeIds = new ArrayList<Long>(parent.nodeIds.size() + 1);
+            this.nodeIds.addAll(parent.nodeIds);
+            this.nodeIds.add(nodeId);
+            this.sitesContainer = siteName == null && SITES_CONTAINER.equals(localName);
+        }
+    }
+
+    public void setNodeDao(NodeDAO nodeDao)
+    {
+        this.nodeDao = nodeDao;
+    }
+
+    public void setNamespaceService(NamespaceService namespaceService)
+    {
+        this.namespaceService = namespaceService;
+    }
+
+    public void setSqlSessionTemplate(SqlSessionTemplate template)
+    {
+        this.template = template;
+    }
+
+    public void setIndexingService(IndexingDaoImpl indexingService)
+    {
+        this.indexingService = indexingService;
+    }
+
+    public void setMaxSize(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+}
@@ -0,0 +1,95 @@
+package org.alfresco.consulting.indexer.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.alfresco.repo.dictionary.DictionaryDAO;
+import org.alfresco.repo.dictionary.DictionaryListener;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Caches the expansion of types to themselves and all their subtypes, so that subtype checks are set lookups
+ * instead of dictionary walks. The cache is dropped whenever the dictionary is (re)loaded, i.e. when a model
+ * is deployed, updated or removed.
+ */
+public class TypeHierarchyCache implements DictionaryListener
+{
+    protected static final Log logger = LogFactory.getLog(TypeHierarchyCache.class);
+
+    //Replaced rather than cleared when the dictionary is reloaded, so that a hierarchy expanded from the previous
+    //dictionary is put into the map it was read for, never into the new one
+    private volatile ConcurrentMap<QName, Set<QName>> subTypes = new ConcurrentHashMap<QName, Set<QName>>();
+
+    private DictionaryDAO dictionaryDAO;
+    private DictionaryService dictionaryService;
+
+    public void init()
+    {
+        dictionaryDAO.registerListener(this);
+    }
+
+    /**
+     * @param type
+     * @return the type and all its subtypes, at any depth
+     */
+    public Set<QName> getSubTypes(QName type)
+    {
+        ConcurrentMap<QName, Set<QName>> cache = subTypes;
+        Set<QName> types = cache.get(type);
+        if (types == null)
+        {
+            Collection<QName> descendants = dictionaryService.getSubTypes(type, true);
+            types = new HashSet<QName>(descendants.size() + 1);
+            types.add(type);
+            types.addAll(descendants);
+            types = Collections.unmodifiableSet(types);
+            cache.putIfAbsent(type, types);
+        }
+        return types;
+    }
+
+    /**
+     * @param type
+     * @param superType
+     * @return true if type is superType or one of its subtypes
+     */
+    public boolean isSubType(QName type, QName superType)
+    {
+        return getSubTypes(superType).contains(type);
+    }
+
+    @Override
+    public void onDictionaryInit()
+    {
+    }
+
+    @Override
+    public void afterDictionaryInit()
+    {
+        logger.debug("[afterDictionaryInit] Dropping cached type hierarchies");
+        subTypes = new ConcurrentHashMap<QName, Set<QName>>();
+    }
+
+    @Override
+    public void afterDictionaryDestroy()
+    {
+        subTypes = new ConcurrentHashMap<QName, Set<QName>>();
+    }
+
+    public void setDictionaryDAO(DictionaryDAO dictionaryDAO)
+    {
+        this.dictionaryDAO = dictionaryDAO;
+    }
+
+    public void setDictionaryService(DictionaryService dictionaryService)
+    {
+        this.dictionaryService = dictionaryService;
+    }
+}
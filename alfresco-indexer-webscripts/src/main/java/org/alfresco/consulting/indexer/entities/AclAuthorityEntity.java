@@ -0,0 +1,56 @@
+package org.alfresco.consulting.indexer.entities;
+
+/**
+ * An ACL of the inheritance chain of a node ACL, along with one of the authorities it allows (null if none);
+ * the depth is 0 for the node ACL itself, and grows up the chain.
+ */
+public class AclAuthorityEntity {
+  private Long nodeAclId;
+  private Long aclId;
+  private Integer depth;
+  private Long inheritsFrom;
+  private String authority;
+
+  public Long getNodeAclId() {
+    return nodeAclId;
+  }
+
+  public void setNodeAclId(Long nodeAclId) {
+    this.nodeAclId = nodeAclId;
+  }
+
+  public Long getAclId() {
+    return aclId;
+  }
+
+  public void setAclId(Long aclId) {
+    this.aclId = aclId;
+  }
+
+  public Integer getDepth() {
+    return depth;
+  }
+
+  public void setDepth(Integer depth) {
+    this.depth = depth;
+  }
+
+  /**
+   * @return the ACL inherited from, null if the ACL does not inherit
+   */
+  public Long getInheritsFrom() {
+    return inheritsFrom;
+  }
+
+  public void setInheritsFrom(Long inheritsFrom) {
+    this.inheritsFrom = inheritsFrom;
+  }
+
+  public String getAuthority() {
+    return authority;
+  }
+
+  public void setAuthority(String authority) {
+    this.authority = authority;
+  }
+}
@@ -4,21 +4,32 @@ import java.util.List;
 import java.util.Set;
 
 public class NodeBatchLoadEntity extends org.alfresco.repo.domain.node.ibatis.NodeBatchLoadEntity {
+  //Keyset window: nodes after (minId, minNodeId), up to maxId (inclusive); at most maxNodes of them, if set
   private Long minId;
+  private Long minNodeId;
   private Long maxId;
+  private Integer maxNodes;
   private String uuid;
-  private Set<String> allowedTypes;
+  private Long nameQNameId;
+  private List<Long> typeQNameIds;
   private Set<String> excludedNameExtension;
-//  private Set<String> properties;
-  private Set<String> aspects;
-  private Set<String> mimeTypes;
+  private List<NodePropertyFilterEntity> properties;
+  private List<Long> aspectQNameIds;
+  private Long contentQNameId;
+  private List<Long> mimetypeIds;
+  private List<Long> siteNodeIds;
+  private List<Integer> siteAncestorLevels;
+  //Type of the deleted nodes (sys:deleted), if it has ever been persisted; they are flagged, or left out of snapshots
+  private Long deletedQNameId;
+  //Only the deleted nodes are matched, as the filters can not match any live node
+  private boolean deletedOnly;
 
   //These input values will be set on all returned NodeEntity objects returned by iBatis mappers
   private String storeProtocol;
   private String storeIdentifier;
   
-  public Set<String> getAllowedTypes() {
-    return allowedTypes;
+  public List<Long> getTypeQNameIds() {
+    return typeQNameIds;
   }
 
   public Long getMinId() {
@@ -29,6 +40,14 @@ public class NodeBatchLoadEntity extends org.alfresco.repo.domain.node.ibatis.No
     this.minId = minId;
   }
 
+  public Long getMinNodeId() {
+    return minNodeId;
+  }
+
+  public void setMinNodeId(Long minNodeId) {
+    this.minNodeId = minNodeId;
+  }
+
   public Long getMaxId() {
     return maxId;
   }
@@ -37,8 +56,16 @@ public class NodeBatchLoadEntity extends org.alfresco.repo.domain.node.ibatis.No
     this.maxId = maxId;
   }
 
-  public void setAllowedTypes(Set<String> allowedTypes) {
-    this.allowedTypes = allowedTypes;
+  public Integer getMaxNodes() {
+    return maxNodes;
+  }
+
+  public void setMaxNodes(Integer maxNodes) {
+    this.maxNodes = maxNodes;
+  }
+
+  public void setTypeQNameIds(List<Long> typeQNameIds) {
+    this.typeQNameIds = typeQNameIds;
   }
 
   public String getStoreProtocol() {
@@ -65,6 +92,14 @@ public class NodeBatchLoadEntity extends org.alfresco.repo.domain.node.ibatis.No
       return this.uuid;
   }
   
+  public void setNameQNameId(Long nameQNameId){
+      this.nameQNameId=nameQNameId;
+  }
+  
+  public Long getNameQNameId(){
+      return this.nameQNameId;
+  }
+  
   public void setExcludedNameExtension(Set<String> excludedNameExtension){
       this.excludedNameExtension= excludedNameExtension;
   }
@@ -73,27 +108,67 @@ public class NodeBatchLoadEntity extends org.alfresco.repo.domain.node.ibatis.No
       return this.excludedNameExtension;
   }
   
-//  public void setProperties(Set<String> properties){
-//      this.properties=properties;
-//  }
-//  
-//  public Set<String> getProperties(){
-//      return this.properties;
-//  }
+  public void setProperties(List<NodePropertyFilterEntity> properties){
+      this.properties=properties;
+  }
+  
+  public List<NodePropertyFilterEntity> getProperties(){
+      return this.properties;
+  }
+  
+  public void setAspectQNameIds(List<Long> aspectQNameIds){
+      this.aspectQNameIds=aspectQNameIds;
+  }
+  
+  public List<Long> getAspectQNameIds(){
+      return this.aspectQNameIds;
+  }
+  
+  public void setContentQNameId(Long contentQNameId){
+      this.contentQNameId=contentQNameId;
+  }
+  
+  public Long getContentQNameId(){
+      return this.contentQNameId;
+  }
+  
+  public void setMimetypeIds(List<Long> mimetypeIds){
+      this.mimetypeIds=mimetypeIds;
+  }
+  
+  public List<Long> getMimetypeIds(){
+      return this.mimetypeIds;
+  }
+  
+  public void setSiteNodeIds(List<Long> siteNodeIds){
+      this.siteNodeIds=siteNodeIds;
+  }
+  
+  public List<Long> getSiteNodeIds(){
+      return this.siteNodeIds;
+  }
+  
+  public void setSiteAncestorLevels(List<Integer> siteAncestorLevels){
+      this.siteAncestorLevels=siteAncestorLevels;
+  }
+  
+  public List<Integer> getSiteAncestorLevels(){
+      return this.siteAncestorLevels;
+  }
   
-  public void setAspects(Set<String> aspects){
-      this.aspects=aspects;
+  public void setDeletedQNameId(Long deletedQNameId){
+      this.deletedQNameId=deletedQNameId;
   }
   
-  public Set<String> getAspects(){
-      return this.aspects;
+  public Long getDeletedQNameId(){
+      return this.deletedQNameId;
   }
   
-  public void setMimeTypes(Set<String> mimeTypes){
-      this.mimeTypes=mimeTypes;
+  public void setDeletedOnly(boolean deletedOnly){
+      this.deletedOnly=deletedOnly;
   }
   
-  public Set<String> getMimeTypes(){
-      return this.mimeTypes;
+  public boolean isDeletedOnly(){
+      return this.deletedOnly;
   }
 }
@@ -8,6 +8,7 @@ public class NodeEntity extends org.alfresco.repo.domain.node.NodeEntity {
   private Long aclChangesetId;
   private Long transactionId;
   private String name;
+  private boolean deleted;
   
 
   @Override
@@ -68,4 +69,15 @@ public class NodeEntity extends org.alfresco.repo.domain.node.NodeEntity {
   public String getName(){
       return this.name;
   }
+  
+  /**
+   * @return whether the node is of type sys:deleted, as projected by the query
+   */
+  public boolean isDeleted(){
+      return this.deleted;
+  }
+  
+  public void setDeleted(boolean deleted){
+      this.deleted=deleted;
+  }
 }
@@ -0,0 +1,34 @@
+package org.alfresco.consulting.indexer.entities;
+
+/**
+ * A "qname:value" metadata filter, resolved to the property QName id and to the alf_node_properties
+ * column the value is persisted in.
+ */
+public class NodePropertyFilterEntity {
+  private final Long qnameId;
+  private final String column;
+  private final Object value;
+
+  public NodePropertyFilterEntity(Long qnameId, String column, Object value) {
+    this.qnameId = qnameId;
+    this.column = column;
+    this.value = value;
+  }
+
+  public Long getQnameId() {
+    return qnameId;
+  }
+
+  public String getColumn() {
+    return column;
+  }
+
+  public Object getValue() {
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return "NodePropertyFilterEntity [qnameId=" + qnameId + ", column=" + column + ", value=" + value + "]";
+  }
+}
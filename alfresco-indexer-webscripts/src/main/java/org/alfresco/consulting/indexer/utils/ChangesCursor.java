@@ -0,0 +1,120 @@
+package org.alfresco.consulting.indexer.utils;
+
+/**
+ * Position reached by a client of the changes WebScript in the transaction and ACL changeset logs, formatted as
+ * "txnId:nodeId:aclChangesetId:nodeId". The next page starts at the given transaction (resp. ACL changeset), with
+ * its nodes whose id is greater than the given node id; a node id of 0 starts at the beginning of it.
+ *
+ * Clients may also start from the "lastTxnId|lastAclChangesetId" form they recorded before cursors existed,
+ * which resumes right after both ids.
+ */
+public class ChangesCursor
+{
+    private static final String SEPARATOR = ":";
+    private static final String LAST_IDS_SEPARATOR = "|";
+
+    private final long transactionId;
+    private final long transactionNodeId;
+    private final long aclChangesetId;
+    private final long aclChangesetNodeId;
+
+    public ChangesCursor(long transactionId, long transactionNodeId, long aclChangesetId, long aclChangesetNodeId)
+    {
+        this.transactionId = transactionId;
+        this.transactionNodeId = transactionNodeId;
+        this.aclChangesetId = aclChangesetId;
+        this.aclChangesetNodeId = aclChangesetNodeId;
+    }
+
+    /**
+     * @param lastTransactionId
+     *            last transaction fully processed
+     * @param lastAclChangesetId
+     *            last ACL changeset fully processed
+     * @return the cursor starting right after them
+     */
+    public static ChangesCursor afterLastIds(long lastTransactionId, long lastAclChangesetId)
+    {
+        return new ChangesCursor(lastTransactionId + 1, 0, lastAclChangesetId + 1, 0);
+    }
+
+    /**
+     * @param cursor
+     * @return
+     * @throws IllegalArgumentException
+     *             if the cursor is malformed
+     */
+    public static ChangesCursor parse(String cursor)
+    {
+        int lastIdsSeparator = cursor.indexOf(LAST_IDS_SEPARATOR);
+        if (lastIdsSeparator != -1)
+        {
+            try
+            {
+                return afterLastIds(Long.parseLong(cursor.substring(0, lastIdsSeparator)),
+                        Long.parseLong(cursor.substring(lastIdsSeparator + 1)));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid changes cursor: " + cursor, e);
+            }
+        }
+        String[] positions = cursor.split(SEPARATOR);
+        if (positions.length != 4)
+        {
+            throw new IllegalArgumentException("Invalid changes cursor: " + cursor);
+        }
+        try
+        {
+            return new ChangesCursor(Long.parseLong(positions[0]), Long.parseLong(positions[1]),
+                    Long.parseLong(positions[2]), Long.parseLong(positions[3]));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid changes cursor: " + cursor, e);
+        }
+    }
+
+    public long getTransactionId()
+    {
+        return transactionId;
+    }
+
+    public long getTransactionNodeId()
+    {
+        return transactionNodeId;
+    }
+
+    public long getAclChangesetId()
+    {
+        return aclChangesetId;
+    }
+
+    public long getAclChangesetNodeId()
+    {
+        return aclChangesetNodeId;
+    }
+
+    /**
+     * @return the last transaction fully processed
+     */
+    public long getLastTransactionId()
+    {
+        return transactionId - 1;
+    }
+
+    /**
+     * @return the last ACL changeset fully processed
+     */
+    public long getLastAclChangesetId()
+    {
+        return aclChangesetId - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return transactionId + SEPARATOR + transactionNodeId + SEPARATOR + aclChangesetId + SEPARATOR
+                + aclChangesetNodeId;
+    }
+}
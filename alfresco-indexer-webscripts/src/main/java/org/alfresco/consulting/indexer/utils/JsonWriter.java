@@ -0,0 +1,114 @@
+package org.alfresco.consulting.indexer.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Minimal streaming JSON writer, used by the WebScripts rendering large payloads straight to the response,
+ * without building (and buffering) a FreeMarker model first.
+ *
+ * No validation is done on the structure being written; callers are responsible for balancing
+ * begin/end calls and for calling name() before each object member.
+ */
+public class JsonWriter
+{
+    private final Writer out;
+    private boolean needsComma = false;
+
+    public JsonWriter(Writer out)
+    {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException
+    {
+        separate();
+        out.write('{');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter endObject() throws IOException
+    {
+        out.write('}');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter beginArray() throws IOException
+    {
+        separate();
+        out.write('[');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter endArray() throws IOException
+    {
+        out.write(']');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter name(String name) throws IOException
+    {
+        separate();
+        writeString(name);
+        out.write(':');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException
+    {
+        separate();
+        if (value == null)
+        {
+            out.write("null");
+        }
+        else
+        {
+            writeString(value);
+        }
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException
+    {
+        separate();
+        out.write(Long.toString(value));
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException
+    {
+        separate();
+        out.write(value ? "true" : "false");
+        needsComma = true;
+        return this;
+    }
+
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    private void separate() throws IOException
+    {
+        if (needsComma)
+        {
+            out.write(',');
+        }
+    }
+
+    private void writeString(String value) throws IOException
+    {
+        out.write('"');
+        out.write(JSONValue.escape(value));
+        out.write('"');
+    }
+}
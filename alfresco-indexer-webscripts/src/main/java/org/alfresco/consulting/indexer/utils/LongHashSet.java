@@ -0,0 +1,103 @@
+package org.alfresco.consulting.indexer.utils;
+
+/**
+ * Set of positive longs (database ids), stored in an open addressing table of primitives rather than as boxed
+ * entries of a HashSet; 0 marks the free slots.
+ */
+public class LongHashSet
+{
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private long[] slots;
+    private int size;
+
+    public LongHashSet()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize
+     *            number of values the set is sized for, before growing
+     */
+    public LongHashSet(int expectedSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) * 2;
+        slots = new long[capacity];
+    }
+
+    /**
+     * @param value
+     *            a positive long
+     * @return true if the value was not in the set yet
+     */
+    public boolean add(long value)
+    {
+        if (value <= 0)
+        {
+            throw new IllegalArgumentException("Only positive values can be added: " + value);
+        }
+        int mask = slots.length - 1;
+        int slot = hash(value) & mask;
+        while (slots[slot] != 0)
+        {
+            if (slots[slot] == value)
+            {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = value;
+        size++;
+        if (size * 2 > slots.length)
+        {
+            grow();
+        }
+        return true;
+    }
+
+    public boolean contains(long value)
+    {
+        int mask = slots.length - 1;
+        int slot = hash(value) & mask;
+        while (slots[slot] != 0)
+        {
+            if (slots[slot] == value)
+            {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    private void grow()
+    {
+        long[] previous = slots;
+        slots = new long[previous.length * 2];
+        int mask = slots.length - 1;
+        for (long value : previous)
+        {
+            if (value != 0)
+            {
+                int slot = hash(value) & mask;
+                while (slots[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = value;
+            }
+        }
+    }
+
+    private static int hash(long value)
+    {
+        long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -0,0 +1,189 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.consulting.indexer.entities.NodeEntity;
+import org.alfresco.consulting.indexer.utils.JsonWriter;
+import org.alfresco.consulting.indexer.utils.LongHashSet;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
+import org.springframework.extensions.webscripts.Format;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes out the "docs" of the nodes streamed from the change (or snapshot) queries, once each (a node can be
+ * changed by both a transaction and an ACL changeset); keeps track of the last node of the current page, to
+ * resume after it
+ *
+ * When the details of the nodes are included, the nodes are held back until {@link #flush()} is called, once
+ * the query is over: their details are then bulk-loaded (the connection can not be shared with a streaming
+ * query) and embedded in each doc, as rendered by NodeDetailsWebScript.
+ */
+class ChangesWriter implements ResultHandler {
+  private final JsonWriter writer;
+  private final NamespaceService namespaceService;
+  private final String propertiesUrlPrefix;
+  //Type QNames are few, compared to the nodes; their prefixed form is resolved once per request
+  private final Map<String, Map<String, String>> prefixedTypes = new HashMap<String, Map<String, String>>();
+  private final LongHashSet writtenNodeIds = new LongHashSet();
+  private final StoreRef storeRef;
+  private final NodeDetailsBatchWebScript details;
+  private final List<NodeEntity> pendingNodes = new ArrayList<NodeEntity>();
+
+  private int pageSize;
+  private NodeEntity pageLastNode;
+
+  ChangesWriter(JsonWriter writer, NamespaceService namespaceService, String propertiesUrlPrefix) {
+    this(writer, namespaceService, propertiesUrlPrefix, null, null);
+  }
+
+  /**
+   * @param details
+   *          renders out the details of the nodes along with them, null not to include them
+   */
+  ChangesWriter(JsonWriter writer, NamespaceService namespaceService, String propertiesUrlPrefix, StoreRef storeRef,
+      NodeDetailsBatchWebScript details) {
+    this.writer = writer;
+    this.namespaceService = namespaceService;
+    this.propertiesUrlPrefix = propertiesUrlPrefix;
+    this.storeRef = storeRef;
+    this.details = details;
+  }
+
+  /**
+   * Starts the JSON response of the changes and snapshot WebScripts, up to its "docs" array; the other fields
+   * are written out through {@link #getWriter()} once the array is ended
+   *
+   * @param details
+   *          renders out the details of the nodes along with them, null not to include them
+   */
+  static ChangesWriter open(WebScriptResponse res, NamespaceService namespaceService, String propertiesUrlPrefix,
+      StoreRef storeRef, NodeDetailsBatchWebScript details) throws IOException {
+    res.setContentType(Format.JSON.mimetype());
+    res.setContentEncoding("UTF-8");
+    JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(res.getOutputStream(), "UTF-8")));
+    writer.beginObject();
+    writer.name("docs").beginArray();
+    return new ChangesWriter(writer, namespaceService, propertiesUrlPrefix, storeRef, details);
+  }
+
+  JsonWriter getWriter() {
+    return writer;
+  }
+
+  @Override
+  public void handleResult(ResultContext context) {
+    NodeEntity node = (NodeEntity) context.getResultObject();
+    pageSize++;
+    pageLastNode = node;
+    if (!writtenNodeIds.add(node.getId())) {
+      return;
+    }
+
+    if (details != null) {
+      pendingNodes.add(node);
+      return;
+    }
+    try {
+      writer.beginObject();
+      writeFields(node);
+      writer.endObject();
+    } catch (IOException e) {
+      throw new WebScriptException("Could not write out node " + node.getUuid(), e);
+    }
+  }
+
+  /**
+   * Writes out the nodes held back along with their details, if any
+   */
+  void flush() {
+    if (pendingNodes.isEmpty()) {
+      return;
+    }
+    List<NodeRef> nodeRefs = new ArrayList<NodeRef>(pendingNodes.size());
+    for (NodeEntity node : pendingNodes) {
+      if (!node.isDeleted()) {
+        nodeRefs.add(new NodeRef(storeRef, node.getUuid()));
+      }
+    }
+    details.prefetch(nodeRefs);
+
+    for (NodeEntity node : pendingNodes) {
+      try {
+        writer.beginObject();
+        writeFields(node);
+        //Nodes deleted since the query have no details
+        NodeRef nodeRef = new NodeRef(storeRef, node.getUuid());
+        if (!node.isDeleted() && details.exists(nodeRef)) {
+          writer.name("details");
+          details.writeNode(writer, nodeRef, false);
+        }
+        writer.endObject();
+      } catch (IOException e) {
+        throw new WebScriptException("Could not write out node " + node.getUuid(), e);
+      }
+    }
+    pendingNodes.clear();
+  }
+
+  private void writeFields(NodeEntity node) throws IOException {
+    writer.name("propertiesUrl").value(propertiesUrlPrefix + node.getUuid());
+    writer.name("uuid").value(node.getUuid());
+    writer.name("type").value(getPrefixedType(node.getTypeNamespace(), node.getTypeName()));
+    writer.name("deleted").value(node.isDeleted());
+    if (node.getName() != null) {
+      writer.name("name").value(node.getName());
+    }
+    if (node.getVersion() != null) {
+      writer.name("version").value(node.getVersion().toString());
+    }
+    if (node.getTransactionId() != null) {
+      writer.name("txnId").value(node.getTransactionId().toString());
+    }
+  }
+
+  /**
+   * Starts the page of the next log
+   */
+  void startPage() {
+    pageSize = 0;
+    pageLastNode = null;
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  NodeEntity getPageLastNode() {
+    return pageLastNode;
+  }
+
+  int getWrittenNodes() {
+    return writtenNodeIds.size();
+  }
+
+  private String getPrefixedType(String namespace, String localName) {
+    Map<String, String> localNames = prefixedTypes.get(namespace);
+    if (localNames == null) {
+      localNames = new HashMap<String, String>();
+      prefixedTypes.put(namespace, localNames);
+    }
+    String prefixedType = localNames.get(localName);
+    if (prefixedType == null) {
+      prefixedType = QName.createQName(namespace, localName).toPrefixString(namespaceService);
+      localNames.put(localName, prefixedType);
+    }
+    return prefixedType;
+  }
+}
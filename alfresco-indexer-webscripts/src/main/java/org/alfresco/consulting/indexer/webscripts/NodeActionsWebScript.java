@@ -53,7 +53,6 @@ public class NodeActionsWebScript extends DeclarativeWebScript
 
         // Render them out
         Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
-        model.put("qnameDao", qnameDao);
         model.put("nsResolver", namespaceService);
         model.put("nodes", nodes);
         model.put("storeId", storeId);
@@ -1,26 +1,21 @@
 package org.alfresco.consulting.indexer.webscripts;
 
 import org.alfresco.consulting.indexer.dao.IndexingDaoImpl;
+import org.alfresco.consulting.indexer.dao.IndexingFilters;
 import org.alfresco.consulting.indexer.entities.NodeEntity;
-
-import freemarker.ext.beans.BeansWrapper;
-import freemarker.template.TemplateHashModel;
-
-import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.consulting.indexer.utils.ChangesCursor;
+import org.alfresco.consulting.indexer.utils.JsonWriter;
 import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.domain.qname.QNameDAO;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.util.Pair;
-import org.apache.commons.collections.map.HashedMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import org.springframework.extensions.webscripts.*;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -32,17 +27,21 @@ import java.util.*;
  * Please check src/main/amp/config/alfresco/extension/templates/webscripts/org/alfresco/consulting/indexer/webscripts/changes.get.desc.xml
  * to know more about the RestFul interface to invoke the WebScript
  *
+ * The payload is written straight to the response output stream as the nodes are read from the database
+ * (see ChangesWriter), rather than rendered through a FreeMarker template. With include=details, each node
+ * embeds the same details as rendered by NodeDetailsWebScript, bulk-loaded after each query
+ * of at most maxNodes nodes.
+ *
  * List of pending activities (or TODOs)
  * - Move private/static logic into the IndexingService
- * - Using JSON libraries (or StringBuffer), render out the payload without passing through FreeMarker template
  * - Wrap (or Proxy) IndexingDaoImpl into an IndexingService, which (optionally) performs any object manipulation
  */
-public class NodeChangesWebScript extends DeclarativeWebScript {
+public class NodeChangesWebScript extends AbstractWebScript {
 
   protected static final Log logger = LogFactory.getLog(NodeChangesWebScript.class);
 
   @Override
-  protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
 
     //start time  
     long startTime = System.currentTimeMillis();  
@@ -51,38 +50,78 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
     Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
     String storeId = templateArgs.get("storeId");
     String storeProtocol = templateArgs.get("storeProtocol");
+    String cursorString = req.getParameter("cursor");
     String lastTxnIdString = req.getParameter("lastTxnId");
     String lastAclChangesetIdString = req.getParameter("lastAclChangesetId");
     String maxTxnsString = req.getParameter("maxTxns");
     String maxAclChangesetsString = req.getParameter("maxAclChangesets");
+    String maxNodesString = req.getParameter("maxNodes");
+    String toTxnIdString = req.getParameter("toTxnId");
+    String toAclChangesetIdString = req.getParameter("toAclChangesetId");
 
     //Parsing parameters passed from the WebScript invocation
-    Long lastTxnId = (lastTxnIdString == null ? null : Long.valueOf(lastTxnIdString));
-    Long lastAclChangesetId = (lastAclChangesetIdString == null ? null : Long.valueOf(lastAclChangesetIdString));
-    Integer maxTxns = (maxTxnsString == null ? maxNodesPerTxns : Integer.valueOf(maxTxnsString));
-    Integer maxAclChangesets = (maxAclChangesetsString == null ? maxNodesPerAcl : Integer.valueOf(maxAclChangesetsString));
-    
-    JSONObject indexingFilters=null;
-    try
-    {
-        indexingFilters = req.getParameter("indexingFilters")!=null ? 
-               (JSONObject) JSONValue.parse(URLDecoder.decode(req.getParameter("indexingFilters"),"UTF-8")): null;
+    Long lastTxnId;
+    Long lastAclChangesetId;
+    int maxTxns;
+    int maxAclChangesets;
+    int maxNodes;
+    //Last transaction and ACL changeset of the partition of the logs crawled (by one of several parallel clients)
+    long partitionToTxnId;
+    long partitionToAclChangesetId;
+    try {
+      lastTxnId = (lastTxnIdString == null ? null : Long.valueOf(lastTxnIdString));
+      lastAclChangesetId = (lastAclChangesetIdString == null ? null : Long.valueOf(lastAclChangesetIdString));
+      maxTxns = (maxTxnsString == null ? maxNodesPerTxns : Integer.valueOf(maxTxnsString));
+      maxAclChangesets = (maxAclChangesetsString == null ? maxNodesPerAcl : Integer.valueOf(maxAclChangesetsString));
+      maxNodes = (maxNodesString == null ? maxNodesPerPage : Integer.valueOf(maxNodesString));
+      partitionToTxnId = (toTxnIdString == null ? Long.MAX_VALUE : Long.valueOf(toTxnIdString));
+      partitionToAclChangesetId = (toAclChangesetIdString == null ? Long.MAX_VALUE : Long.valueOf(toAclChangesetIdString));
+    } catch (NumberFormatException e) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage());
     }
-    catch (UnsupportedEncodingException e)
-    {
-        throw new WebScriptException(e.getMessage(),e);
+    if (maxNodes <= 0) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, "maxNodes must be positive: " + maxNodes);
+    }
+    if (maxTxns <= 0 || maxAclChangesets <= 0) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, "maxTxns and maxAclChangesets must be positive: "
+          + maxTxns + ", " + maxAclChangesets);
+    }
+
+    //Requests without a cursor can not resume within a transaction (or ACL changeset), so their pages are
+    //bounded by nodes too, but always end with the whole transaction of their last node; clients paging
+    //from their last ids send them as a "lastTxnId|lastAclChangesetId" cursor instead
+    ChangesCursor cursor;
+    boolean wholeTransactions = (cursorString == null);
+    if (!wholeTransactions) {
+      try {
+        cursor = ChangesCursor.parse(cursorString);
+      } catch (IllegalArgumentException e) {
+        throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage());
+      }
+    } else {
+      cursor = ChangesCursor.afterLastIds(lastTxnId == null ? 0 : lastTxnId,
+          lastAclChangesetId == null ? 0 : lastAclChangesetId);
     }
+
+    JSONObject indexingFilters = RequestFilters.parse(req);
+
+    //Details of the nodes are embedded on demand
+    boolean includeDetails = RequestFilters.parseIncludeDetails(req);
     
     logger.debug(String.format("Invoking Changes Webscript, using the following params\n" +
-        "lastTxnId: %s\n" +
-        "lastAclChangesetId: %s\n" +
+        "cursor: %s\n" +
+        "maxNodes: %s\n" +
         "storeId: %s\n" +
         "storeProtocol: %s\n" +
-        "indexingFilters: %s\n", lastTxnId, lastAclChangesetId, storeId, storeProtocol, indexingFilters));
+        "includeDetails: %s\n" +
+        "indexingFilters: %s\n", cursor, maxNodes, storeId, storeProtocol, includeDetails, indexingFilters));
 
-    //Indexing filters
-    if(indexingFilters!=null){
-        setIndexingFilters(indexingFilters);
+    //Indexing filters, scoped to this request
+    IndexingFilters filters = RequestFilters.getIndexingFilters(indexingFilters, indexingService.getDefaultFilters());
+    try {
+      filters = indexingService.resolveFilters(filters);
+    } catch (IllegalArgumentException e) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage());
     }
     
     //Getting the Store ID on which the changes are requested
@@ -92,142 +131,154 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
         throw new IllegalArgumentException("Invalid store reference: " + storeProtocol + "://" + storeId);
     }
 
-    Set<NodeEntity> nodes = new HashSet<NodeEntity>();
-    //Updating the last IDs being processed
-    //Depending on params passed to the request, results will be rendered out
-    if (lastTxnId == null) {
-      lastTxnId = new Long(0);
-    }
-    List<NodeEntity> nodesFromTxns = indexingService.getNodesByTransactionId(store, lastTxnId, maxTxns);
-    if (nodesFromTxns != null && nodesFromTxns.size() > 0) {
-      nodes.addAll(nodesFromTxns);
+    //Nodes are streamed from the database to the response one at a time, skipping the ones already written
+    ChangesWriter changes = ChangesWriter.open(res, namespaceService,
+        propertiesUrlTemplate + "/" + storeProtocol + "/" + storeId + "/", store.getSecond(),
+        includeDetails ? nodeDetailsWebScript : null);
+    JsonWriter writer = changes.getWriter();
+
+    //Nodes are paged through with keyset seeks on (transaction, node id) and (ACL changeset, node id);
+    //a page filled up resumes after its last node, otherwise after the last transaction scanned.
+    //A window without any matching node is skipped up to the next transaction having some, so that
+    //each call either returns nodes or reaches the head of the log (only looked up for such windows,
+    //or when the cached head is below the window)
+    long fromTxnId = cursor.getTransactionId();
+    long fromTxnNodeId = cursor.getTransactionNodeId();
+    long toTxnId = Math.min(indexingService.getTransactionWindowEnd(fromTxnId, maxTxns), partitionToTxnId);
+    indexingService.getNodesByTransactionId(store, fromTxnId, fromTxnNodeId, toTxnId, maxNodes, filters, changes);
+    //Heads of the logs, only written out when they are read for this page anyway, or asked for by partitioning clients
+    Long headTxnId = null;
+    Long headAclChangesetId = null;
+    if (changes.getPageSize() == 0) {
+      headTxnId = indexingService.getLastTransactionID();
+      long lastTxnId = Math.min(headTxnId, partitionToTxnId);
+      if (toTxnId < lastTxnId) {
+        Long nonEmptyTxnId = indexingService.getNextTransactionId(store, toTxnId + 1, 0, lastTxnId, filters);
+        if (nonEmptyTxnId == null) {
+          toTxnId = lastTxnId;
+        } else {
+          toTxnId = Math.min(indexingService.getTransactionWindowEnd(nonEmptyTxnId, maxTxns), partitionToTxnId);
+          indexingService.getNodesByTransactionId(store, nonEmptyTxnId, 0, toTxnId, maxNodes, filters, changes);
+        }
+      }
     }
-    
-    //Set the last database transaction ID or increment it by maxTxns
-    Long lastTxnIdDB= indexingService.getLastTransactionID();
 
-    if((lastTxnId+maxTxns) > lastTxnIdDB){
-        lastTxnId=lastTxnIdDB;
-    }else{
-        lastTxnId+=maxTxns;
+    //Never moves back, when the cursor is already past the head of the log
+    long nextTxnId = Math.max(toTxnId + 1, cursor.getTransactionId());
+    long nextTxnNodeId = 0;
+    if (changes.getPageSize() == maxNodes) {
+      NodeEntity lastNode = changes.getPageLastNode();
+      nextTxnId = lastNode.getTransactionId();
+      nextTxnNodeId = lastNode.getId();
+      if (wholeTransactions) {
+        //The rest of the transaction is read in pages of maxNodes too, so that the nodes held back for their
+        //details are bounded however large the transaction is
+        do {
+          changes.flush();
+          changes.startPage();
+          indexingService.getNodesByTransactionId(store, nextTxnId, nextTxnNodeId, nextTxnId, maxNodes, filters,
+              changes);
+          if (changes.getPageLastNode() != null) {
+            nextTxnNodeId = changes.getPageLastNode().getId();
+          }
+        } while (changes.getPageSize() == maxNodes);
+        nextTxnId++;
+        nextTxnNodeId = 0;
+      }
     }
-    
-    
-    
-    if (lastAclChangesetId == null) {
-      lastAclChangesetId = new Long(0);
+
+    changes.flush();
+
+    changes.startPage();
+    long fromAclChangesetId = cursor.getAclChangesetId();
+    long fromAclChangesetNodeId = cursor.getAclChangesetNodeId();
+    long toAclChangesetId = Math.min(indexingService.getAclChangesetWindowEnd(fromAclChangesetId, maxAclChangesets),
+        partitionToAclChangesetId);
+    indexingService.getNodesByAclChangesetId(store, fromAclChangesetId, fromAclChangesetNodeId, toAclChangesetId,
+        maxNodes, filters, changes);
+    if (changes.getPageSize() == 0) {
+      headAclChangesetId = indexingService.getLastAclChangeSetID();
+      long lastAclChangesetId = Math.min(headAclChangesetId, partitionToAclChangesetId);
+      if (toAclChangesetId < lastAclChangesetId) {
+        Long nonEmptyAclChangesetId = indexingService.getNextAclChangesetId(store, toAclChangesetId + 1, 0,
+            lastAclChangesetId, filters);
+        if (nonEmptyAclChangesetId == null) {
+          toAclChangesetId = lastAclChangesetId;
+        } else {
+          toAclChangesetId = Math.min(indexingService.getAclChangesetWindowEnd(nonEmptyAclChangesetId,
+              maxAclChangesets), partitionToAclChangesetId);
+          indexingService.getNodesByAclChangesetId(store, nonEmptyAclChangesetId, 0, toAclChangesetId, maxNodes,
+              filters, changes);
+        }
+      }
     }
-    List<NodeEntity> nodesFromAcls = indexingService.getNodesByAclChangesetId(store, lastAclChangesetId, maxAclChangesets);
-    if (nodesFromAcls != null && nodesFromAcls.size() > 0) {
-      nodes.addAll(nodesFromAcls);
+
+    long nextAclChangesetId = Math.max(toAclChangesetId + 1, cursor.getAclChangesetId());
+    long nextAclChangesetNodeId = 0;
+    if (changes.getPageSize() == maxNodes) {
+      NodeEntity lastNode = changes.getPageLastNode();
+      nextAclChangesetId = lastNode.getAclChangesetId();
+      nextAclChangesetNodeId = lastNode.getId();
+      if (wholeTransactions) {
+        do {
+          changes.flush();
+          changes.startPage();
+          indexingService.getNodesByAclChangesetId(store, nextAclChangesetId, nextAclChangesetNodeId,
+              nextAclChangesetId, maxNodes, filters, changes);
+          if (changes.getPageLastNode() != null) {
+            nextAclChangesetNodeId = changes.getPageLastNode().getId();
+          }
+        } while (changes.getPageSize() == maxNodes);
+        nextAclChangesetId++;
+        nextAclChangesetNodeId = 0;
+      }
     }
-    
-    //Set the last database aclChangeSet ID or increment it by maxAclChangesets
-    Long lastAclChangesetIdDB= indexingService.getLastAclChangeSetID();
 
-    if((lastAclChangesetId+maxAclChangesets) > lastAclChangesetIdDB){
-        lastAclChangesetId=lastAclChangesetIdDB;
-    }else{
-        lastAclChangesetId+=maxAclChangesets;
+    changes.flush();
+
+    ChangesCursor nextCursor = new ChangesCursor(nextTxnId, nextTxnNodeId, nextAclChangesetId, nextAclChangesetNodeId);
+    boolean partitioned = (toTxnIdString != null || toAclChangesetIdString != null);
+    if (partitioned && headTxnId == null) {
+      headTxnId = indexingService.getLastTransactionID();
+    }
+    if (partitioned && headAclChangesetId == null) {
+      headAclChangesetId = indexingService.getLastAclChangeSetID();
     }
     
     //elapsed time
     long elapsedTime = System.currentTimeMillis() - startTime;
 
-    //Render them out
-    Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
-    model.put("qnameDao", qnameDao);
-    model.put("nsResolver", namespaceService);
-    model.put("nodes", nodes);
-    model.put("lastTxnId", lastTxnId);
-    model.put("lastAclChangesetId", lastAclChangesetId);
-    model.put("storeId", storeId);
-    model.put("storeProtocol", storeProtocol);
-    model.put("propertiesUrlTemplate", propertiesUrlTemplate);
-    model.put("elapsedTime", elapsedTime);
+    logger.debug(String.format("Wrote out %s nodes", changes.getWrittenNodes()));
 
-    //This allows to call the static method QName.createQName from the FTL template
-    try {
-      BeansWrapper wrapper = BeansWrapper.getDefaultInstance();
-      TemplateHashModel staticModels = wrapper.getStaticModels();
-      TemplateHashModel qnameStatics = (TemplateHashModel) staticModels.get("org.alfresco.service.namespace.QName");
-      model.put("QName",qnameStatics);
-    } catch (Exception e) {
-      throw new AlfrescoRuntimeException(
-          "Cannot add BeansWrapper for static QName.createQName method to be used from a Freemarker template", e);
+    writer.endArray();
+    writer.name("totalNodes").value(String.valueOf(changes.getWrittenNodes()));
+    writer.name("elapsedTime").value(String.valueOf(elapsedTime));
+    writer.name("cursor").value(nextCursor.toString());
+    writer.name("last_txn_id").value(String.valueOf(nextCursor.getLastTransactionId()));
+    writer.name("last_acl_changeset_id").value(String.valueOf(nextCursor.getLastAclChangesetId()));
+    //Heads of the logs (possibly cached), for clients splitting them in partitions
+    if (headTxnId != null) {
+      writer.name("head_txn_id").value(String.valueOf(headTxnId));
     }
-
-    logger.debug(String.format("Attaching %s nodes to the WebScript template", nodes.size()));
-
-    return model;
-  }
-
-  private void setIndexingFilters(JSONObject indexingParams)
-  {
-      
-      //Reset filters
-      this.indexingService.setSites(Collections.<String> emptySet());
-      this.indexingService.setMimeTypes(Collections.<String> emptySet());
-      this.indexingService.setAspects(Collections.<String> emptySet());
-      this.indexingService.setProperties(Collections.<String> emptySet());
-      
-      //Types filter
-      List<String> types= (List<String>) indexingParams.get("typeFilters");
-      
-      if(types!=null && types.size()>0){
-          this.indexingService.setAllowedTypes(new HashSet(types));
-      }
-      
-       //Site filter
-       List<String> sites= (List<String>) indexingParams.get("siteFilters");
-      
-       if(sites!=null && sites.size()>0){
-           this.indexingService.setSites(new HashSet(sites));
-       }
-          
-       //Mymetype filter
-       List<String> mimetypes= (List<String>) indexingParams.get("mimetypeFilters");
-       
-       if(mimetypes!=null && mimetypes.size()>0){
-           this.indexingService.setMimeTypes(new HashSet(mimetypes));
-       }
-          
-       //Aspect filter
-       List<String> aspects= (List<String>) indexingParams.get("aspectFilters");
-       
-       if(aspects!=null && aspects.size()>0){
-           this.indexingService.setAspects(new HashSet(aspects));
-       }
-          
-       //Metadata filter
-       Map<String,String> auxMap= (Map<String, String>) indexingParams.get("metadataFilters");
-       
-       if(auxMap!=null && auxMap.size()>0){
-           
-           Set<String> metadataParams= new HashSet<String>(auxMap.size());
-           Set<String> keys= auxMap.keySet();
-           StringBuilder sb= new StringBuilder();
-           
-           for(String key:keys){
-               sb.append(key).append(":").append(auxMap.get(key));
-               metadataParams.add(sb.toString());
-               //reset StringBuilder
-               sb.setLength(0);
-           }
-           this.indexingService.setProperties(metadataParams);
-       }
-      
-
+    if (headAclChangesetId != null) {
+      writer.name("head_acl_changeset_id").value(String.valueOf(headAclChangesetId));
+    }
+    writer.name("store_id").value(storeId);
+    writer.name("store_protocol").value(storeProtocol);
+    writer.endObject();
+    writer.flush();
   }
 
   private NamespaceService namespaceService;
   private QNameDAO qnameDao;
   private IndexingDaoImpl indexingService;
   private NodeDAO nodeDao;
+  private NodeDetailsBatchWebScript nodeDetailsWebScript;
 
   private String propertiesUrlTemplate;
   private int maxNodesPerAcl = 1000;
   private int maxNodesPerTxns = 1000;
+  private int maxNodesPerPage = 1000;
 
 
   public void setNamespaceService(NamespaceService namespaceService) {
@@ -242,6 +293,9 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
   public void setNodeDao(NodeDAO nodeDao) {
     this.nodeDao = nodeDao;
   }
+  public void setNodeDetailsWebScript(NodeDetailsBatchWebScript nodeDetailsWebScript) {
+    this.nodeDetailsWebScript = nodeDetailsWebScript;
+  }
 
   public void setPropertiesUrlTemplate(String propertiesUrlTemplate) {
     this.propertiesUrlTemplate = propertiesUrlTemplate;
@@ -254,4 +308,8 @@ public class NodeChangesWebScript extends DeclarativeWebScript {
   public void setMaxNodesPerTxns(int maxNodesPerTxns) {
     this.maxNodesPerTxns = maxNodesPerTxns;
   }
+
+  public void setMaxNodesPerPage(int maxNodesPerPage) {
+    this.maxNodesPerPage = maxNodesPerPage;
+  }
 }
\ No newline at end of file
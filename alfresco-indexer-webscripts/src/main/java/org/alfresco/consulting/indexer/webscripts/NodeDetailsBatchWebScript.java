@@ -0,0 +1,104 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.consulting.indexer.utils.JsonWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.Pair;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Given a list of UUIDs, renders out the same data as NodeDetailsWebScript for each of them, in one round trip.
+ * The nodes (with their aspects and properties) are bulk-loaded into the NodeDAO caches upfront, so that
+ * the repository fetches them with a handful of queries instead of several per node; likewise, the readable
+ * authorities of all their ACLs are resolved with a single query.
+ *
+ * Nodes that do not exist (anymore) are not rendered out.
+ *
+ * Please check src/main/amp/config/alfresco/extension/templates/webscripts/org/alfresco/consulting/indexer/webscripts/details.post.desc.xml
+ * to know more about the RestFul interface to invoke the WebScript
+ */
+public class NodeDetailsBatchWebScript extends NodeDetailsWebScript {
+
+  @Override
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+    //Parsing parameters passed from the WebScript invocation
+    Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
+    String storeId = templateArgs.get("storeId");
+    String storeProtocol = templateArgs.get("storeProtocol");
+
+    JSONArray uuids = getUuids(req);
+    List<NodeRef> nodeRefs = new ArrayList<NodeRef>(uuids.size());
+    for (Object uuid : uuids) {
+      nodeRefs.add(new NodeRef(storeProtocol, storeId, uuid.toString()));
+    }
+    logger.debug(String.format("Invoking Batch Details Webscript for %s nodes", nodeRefs.size()));
+
+    prefetch(nodeRefs);
+
+    JsonWriter writer = openWriter(res);
+    writer.beginObject();
+    writer.name("nodes").beginArray();
+    for (NodeRef nodeRef : nodeRefs) {
+      if (exists(nodeRef)) {
+        writeNode(writer, nodeRef, true);
+      } else {
+        logger.debug(String.format("Skipping %s, as it does not exist", nodeRef));
+      }
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+  }
+
+  /**
+   * Pre-loads nodes, aspects and properties into the NodeDAO caches, and resolves the readable authorities of
+   * all their ACLs at once; rendering the nodes then hits the caches
+   */
+  void prefetch(List<NodeRef> nodeRefs) {
+    nodeDao.cacheNodes(nodeRefs);
+
+    Set<Long> nodeAclIds = new HashSet<Long>();
+    for (NodeRef nodeRef : nodeRefs) {
+      Pair<Long, NodeRef> nodePair = nodeDao.getNodePair(nodeRef);
+      if (nodePair != null) {
+        Long nodeAclId = nodeDao.getNodeAclId(nodePair.getFirst());
+        if (nodeAclId != null) {
+          nodeAclIds.add(nodeAclId);
+        }
+      }
+    }
+    aclAuthorityCache.getReadableAuthorities(nodeAclIds);
+  }
+
+  /**
+   * @return whether the node still exists, hence has details to render
+   */
+  boolean exists(NodeRef nodeRef) {
+    return nodeService.exists(nodeRef);
+  }
+
+  private JSONArray getUuids(WebScriptRequest req) {
+    Object body;
+    try {
+      body = JSONValue.parse(req.getContent().getContent());
+    } catch (IOException e) {
+      throw new WebScriptException(e.getMessage(), e);
+    }
+    if (!(body instanceof JSONObject) || !(((JSONObject) body).get("uuids") instanceof JSONArray)) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, "The request body must be a JSON object with a uuids array");
+    }
+    return (JSONArray) ((JSONObject) body).get("uuids");
+  }
+}
@@ -1,36 +1,31 @@
 package org.alfresco.consulting.indexer.webscripts;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import org.alfresco.consulting.indexer.utils.Utils;
+import org.alfresco.consulting.indexer.dao.AclAuthorityCache;
+import org.alfresco.consulting.indexer.dao.NodePath;
+import org.alfresco.consulting.indexer.dao.NodePathCache;
+import org.alfresco.consulting.indexer.dao.TypeHierarchyCache;
+import org.alfresco.consulting.indexer.utils.JsonWriter;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.domain.node.NodeDAO;
-import org.alfresco.repo.domain.permissions.Acl;
-import org.alfresco.repo.domain.permissions.AclDAO;
-import org.alfresco.repo.security.permissions.AccessControlEntry;
-import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
-import org.alfresco.service.cmr.repository.Path;
-import org.alfresco.service.cmr.security.AccessStatus;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
-import org.alfresco.util.Pair;
+import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.extensions.webscripts.Cache;
-import org.springframework.extensions.webscripts.DeclarativeWebScript;
-import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Format;
 import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
 
 import com.google.gdata.util.common.base.StringUtil;
 
@@ -43,25 +38,18 @@ import com.google.gdata.util.common.base.StringUtil;
  * to know more about the RestFul interface to invoke the WebScript
  *
  * List of pending activities (or TODOs)
- * - Refactor recursive getAllAcls (direct recursion) . Evaluate the possibility to write a SQL statement for that
  * - Move private/static logic into the IndexingService (see notes on NodeChangesWebScript)
  * - Move the following methods (and related SQL statements) into IndexingDaoImpl
  * -- nodeService.getProperties
  * -- nodeService.getAspects
- * -- nodeDao.getNodeAclId
- * -- solrDao.getNodesByAclChangesetId
- * -- nodeService.getType and dictionaryService.isSubClass (should be merged into one)
- * - Using JSON libraries (or StringBuffer), render out the payload without passing through FreeMarker template
  */
-public class NodeDetailsWebScript extends DeclarativeWebScript {
+public class NodeDetailsWebScript extends AbstractWebScript {
 
   protected static final Log logger = LogFactory.getLog(NodeDetailsWebScript.class);
-  protected static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+  protected static final FastDateFormat dateFormat = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss'Z'");
 
   @Override
-  protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
-    final List<String> readableAuthorities = new ArrayList<String>();
-
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
     //Parsing parameters passed from the WebScript invocation
     Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
     String storeId = templateArgs.get("storeId");
@@ -71,57 +59,53 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
     logger.debug(String.format("Invoking ACLs Webscript, using the following params\n" +
         "nodeRef: %s\n", nodeRef));
 
-    //Processing properties
-    Map<QName,Serializable> propertyMap = nodeService.getProperties(nodeRef);
-    Map<String,Pair<String,String>> properties = toStringMap(propertyMap);
+    JsonWriter writer = openWriter(res);
+    writeNode(writer, nodeRef, false);
+    writer.flush();
+  }
 
-    //Processing aspects
-    Set<QName> aspectsSet = nodeService.getAspects(nodeRef);
-    Set<String> aspects = toStringSet(aspectsSet);
+  protected JsonWriter openWriter(WebScriptResponse res) throws IOException {
+    res.setContentType(Format.JSON.mimetype());
+    res.setContentEncoding("UTF-8");
+    return new JsonWriter(new BufferedWriter(new OutputStreamWriter(res.getOutputStream(), "UTF-8")));
+  }
+
+  /**
+   * Writes out the details of a single node; property values are encoded as they are read from the node,
+   * while ACLs and path (the lookups most likely to fail) are resolved before anything is written.
+   */
+  protected void writeNode(JsonWriter writer, NodeRef nodeRef, boolean withUuid) throws IOException {
+    String storeProtocol = nodeRef.getStoreRef().getProtocol();
+    String storeId = nodeRef.getStoreRef().getIdentifier();
+    String uuid = nodeRef.getId();
+
+    Map<QName,Serializable> propertyMap = nodeService.getProperties(nodeRef);
 
     //Get the node ACL Id
     Long dbId = (Long)propertyMap.get(ContentModel.PROP_NODE_DBID);
     Long nodeAclId = nodeDao.getNodeAclId(dbId);
 
-    //Get also the inherited ones
-    List<Acl> acls = getAllAcls(nodeAclId);
-    //@TODO - avoid reverse by implementing direct recursion
-    Collections.reverse(acls);
-
-    //Getting path and siteName
-    Path pathObj = nodeService.getPath(nodeRef);
-    String path = pathObj.toPrefixString(namespaceService);
-    String siteName = Utils.getSiteName(pathObj);
-
-    //Walk through ACLs and related ACEs, rendering out authority names having a granted permission on the node
-    for (Acl acl : acls) {
-      List<AccessControlEntry> aces = aclDao.getAccessControlList(acl.getId()).getEntries();
-      for(AccessControlEntry ace : aces) {
-        if (ace.getAccessStatus().equals(AccessStatus.ALLOWED)) {
-          if (!readableAuthorities.contains(ace.getAuthority())) {
-            readableAuthorities.add(ace.getAuthority());
-          }
-        }
-      }
+    //Authority names having a granted permission on the node ACL, or on the ones it inherits from
+    List<String> readableAuthorities = aclAuthorityCache.getReadableAuthorities(nodeAclId);
+
+    //Getting path and siteName, built upon the (cached) ones of the primary parent
+    NodePath nodePath = nodePathCache.getNodePath(dbId);
+    String path = nodePath.getPath();
+    String siteName = nodePath.getSiteName();
+
+    writer.beginObject();
+    if (withUuid) {
+      writer.name("uuid").value(uuid);
     }
+    writer.name("readableAuthorities").beginArray();
+    for (String readableAuthority : readableAuthorities) {
+      writer.value(readableAuthority);
+    }
+    writer.endArray();
+    writer.name("path").value(path);
 
-    Map<String, Object> model = new HashMap<String, Object>(1, 1.0f);
-    model.put("nsResolver", namespaceService);
-    model.put("readableAuthorities", readableAuthorities);
-    model.put("properties", properties);
-    model.put("aspects", aspects);
-    model.put("path", path);
-    model.put("contentUrlPrefix", contentUrlPrefix);
-    model.put("shareUrlPrefix", shareUrlPrefix);
-    model.put("thumbnailUrlPrefix", thumbnailUrlPrefix);
-    model.put("previewUrlPrefix", previewUrlPrefix);
-
-    //Calculating the contentUrlPath and adding it only if the contentType is child of cm:content
-    boolean isContentAware = isContentAware(nodeRef);
-    if (isContentAware) {
-      String contentUrlPath = String.format("/api/node/%s/%s/%s/content",storeProtocol,storeId,uuid);
-      model.put("contentUrlPath", contentUrlPath);
-      
+    //Rendering out the contentUrlPath only if the contentType is child of cm:content
+    if (isContentAware(nodeRef)) {
       //Rendering out the (relative) URL path to Alfresco Share
       String shareUrlPath = null;
       
@@ -136,90 +120,69 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
                   "/page/document-details?nodeRef=%s",
                   nodeRef.toString());
       }
-      
-      if(shareUrlPath!=null){
-          model.put("shareUrlPath", shareUrlPath);
-      }
-    }
-
+      writer.name("shareUrlPath").value(shareUrlPrefix + shareUrlPath);
 
+      String contentUrlPath = String.format("/api/node/%s/%s/%s/content",storeProtocol,storeId,uuid);
+      writer.name("contentUrlPath").value(contentUrlPrefix + contentUrlPath);
+    }
 
     String thumbnailUrlPath = String.format(
         "/api/node/%s/%s/%s/content/thumbnails/doclib?c=queue&ph=true&lastModified=1",
         storeProtocol,
         storeId,
         uuid);
-    model.put("thumbnailUrlPath", thumbnailUrlPath);
+    writer.name("thumbnailUrlPath").value(thumbnailUrlPrefix + thumbnailUrlPath);
 
     String previewUrlPath = String.format(
         "/api/node/%s/%s/%s/content/thumbnails/webpreview",
         storeProtocol,
         storeId,
         uuid);
-    model.put("previewUrlPath", previewUrlPath);
-
-
-    return model;
-  }
-
-  private boolean isContentAware(NodeRef nodeRef) {
-    QName contentType = nodeService.getType(nodeRef);
-    return dictionaryService.isSubClass(contentType, ContentModel.TYPE_CONTENT);
-  }
+    writer.name("previewUrlPath").value(previewUrlPrefix + previewUrlPath);
 
-  private Set<String> toStringSet(Set<QName> aspectsSet) {
-    Set<String> ret = new HashSet<String>();
-    for(QName aspect : aspectsSet) {
-      ret.add(aspect.toPrefixString(namespaceService));
+    //Processing aspects
+    writer.name("aspects").beginArray();
+    for (QName aspect : nodeService.getAspects(nodeRef)) {
+      writer.value(aspect.toPrefixString(namespaceService));
     }
-    return ret;
-  }
+    writer.endArray();
 
-  private Map<String, Pair<String, String>> toStringMap(Map<QName, Serializable> propertyMap) {
-    Map<String, Pair<String, String>> ret = new HashMap<String, Pair<String, String>>(1,1.0f);
-    for(QName propertyName : propertyMap.keySet()) {
-      Serializable propertyValue = propertyMap.get(propertyName);
+    //Processing properties
+    writer.name("properties").beginArray();
+    for (Map.Entry<QName,Serializable> property : propertyMap.entrySet()) {
+      Serializable propertyValue = property.getValue();
       if (propertyValue != null) {
-        String propertyType = propertyValue.getClass().getName();
-        String stringValue = propertyValue.toString();
-        if (propertyType.equals("java.util.Date")) {
-          stringValue = sdf.format(propertyValue);
-        }
-        ret.put(propertyName.toPrefixString(namespaceService), new Pair<String, String>(propertyType,stringValue));
+        Class<?> propertyType = propertyValue.getClass();
+        writer.beginObject();
+        writer.name("name").value(property.getKey().toPrefixString(namespaceService));
+        writer.name("type").value(propertyType.getName());
+        writer.name("value").value(propertyType == Date.class ?
+            dateFormat.format((Date) propertyValue) : propertyValue.toString());
+        writer.endObject();
       }
     }
-    return ret;
+    writer.endArray();
+    writer.endObject();
   }
 
-  private List<Acl> getAllAcls(Long nodeAclId) {
-    logger.debug("getAllAcls from "+nodeAclId);
-    Acl acl = aclDao.getAcl(nodeAclId);
-    Long parentNodeAclId = acl.getInheritsFrom();
-    logger.debug("parent acl is  "+parentNodeAclId);
-    if (parentNodeAclId == null || !acl.getInherits()) {
-      List<Acl> ret = new ArrayList<Acl>();
-      ret.add(acl);
-      return ret;
-    } else {
-      List<Acl> inheritedAcls = getAllAcls(parentNodeAclId);
-      logger.debug("Current acl with id "+nodeAclId+" is "+acl);
-      inheritedAcls.add(acl);
-      return inheritedAcls;
-    }
+  private boolean isContentAware(NodeRef nodeRef) {
+    QName contentType = nodeService.getType(nodeRef);
+    return typeHierarchyCache.isSubType(contentType, ContentModel.TYPE_CONTENT);
   }
 
-  private DictionaryService dictionaryService;
+  private TypeHierarchyCache typeHierarchyCache;
   private NamespaceService namespaceService;
-  private NodeService nodeService;
-  private NodeDAO nodeDao;
-  private AclDAO aclDao;
+  protected NodeService nodeService;
+  protected NodeDAO nodeDao;
+  protected AclAuthorityCache aclAuthorityCache;
+  private NodePathCache nodePathCache;
   private String contentUrlPrefix;
   private String shareUrlPrefix;
   private String previewUrlPrefix;
   private String thumbnailUrlPrefix;
 
-  public void setDictionaryService(DictionaryService dictionaryService) {
-    this.dictionaryService = dictionaryService;
+  public void setTypeHierarchyCache(TypeHierarchyCache typeHierarchyCache) {
+    this.typeHierarchyCache = typeHierarchyCache;
   }
   public void setNamespaceService(NamespaceService namespaceService) {
     this.namespaceService = namespaceService;
@@ -230,8 +193,12 @@ public class NodeDetailsWebScript extends DeclarativeWebScript {
   public void setNodeDao(NodeDAO nodeDao) {
     this.nodeDao = nodeDao;
   }
-  public void setAclDao(AclDAO aclDao) {
-    this.aclDao = aclDao;
+  public void setAclAuthorityCache(AclAuthorityCache aclAuthorityCache) {
+    this.aclAuthorityCache = aclAuthorityCache;
+  }
+
+  public void setNodePathCache(NodePathCache nodePathCache) {
+    this.nodePathCache = nodePathCache;
   }
 
   public void setContentUrlPrefix(String contentUrlPrefix) {
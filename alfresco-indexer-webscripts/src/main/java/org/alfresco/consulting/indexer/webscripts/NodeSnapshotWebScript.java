@@ -0,0 +1,154 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.consulting.indexer.dao.IndexingDaoImpl;
+import org.alfresco.consulting.indexer.dao.IndexingFilters;
+import org.alfresco.consulting.indexer.entities.NodeEntity;
+import org.alfresco.consulting.indexer.utils.ChangesCursor;
+import org.alfresco.consulting.indexer.utils.JsonWriter;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.simple.JSONObject;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Renders out a page of the live nodes (UUIDs) of a store, ordered by node id, to (re)build an index from scratch:
+ * unlike replaying the changes from the first transaction, each node is read once.
+ *
+ * Along with the nodes, it returns the cursor of the changes at the heads of the transaction and ACL changeset
+ * logs, as they were when the page was read; once the snapshot is complete, the changes can be followed from
+ * the cursor of its first page on. With include=details, each node embeds the same details as rendered by
+ * NodeDetailsWebScript.
+ *
+ * Please check src/main/amp/config/alfresco/extension/templates/webscripts/org/alfresco/consulting/indexer/webscripts/snapshot.get.desc.xml
+ * to know more about the RestFul interface to invoke the WebScript
+ */
+public class NodeSnapshotWebScript extends AbstractWebScript {
+
+  protected static final Log logger = LogFactory.getLog(NodeSnapshotWebScript.class);
+
+  @Override
+  public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+
+    //start time
+    long startTime = System.currentTimeMillis();
+
+    //Fetching request params
+    Map<String, String> templateArgs = req.getServiceMatch().getTemplateVars();
+    String storeId = templateArgs.get("storeId");
+    String storeProtocol = templateArgs.get("storeProtocol");
+    String afterNodeIdString = req.getParameter("afterNodeId");
+    String maxNodesString = req.getParameter("maxNodes");
+
+    //Parsing parameters passed from the WebScript invocation
+    long afterNodeId;
+    int maxNodes;
+    try {
+      afterNodeId = (afterNodeIdString == null ? 0 : Long.valueOf(afterNodeIdString));
+      maxNodes = (maxNodesString == null ? maxNodesPerPage : Integer.valueOf(maxNodesString));
+    } catch (NumberFormatException e) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage());
+    }
+    if (maxNodes <= 0) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, "maxNodes must be positive: " + maxNodes);
+    }
+
+    JSONObject indexingFilters = RequestFilters.parse(req);
+
+    //Details of the nodes are embedded on demand
+    boolean includeDetails = RequestFilters.parseIncludeDetails(req);
+
+    logger.debug(String.format("Invoking Snapshot Webscript, using the following params\n" +
+        "afterNodeId: %s\n" +
+        "maxNodes: %s\n" +
+        "storeId: %s\n" +
+        "storeProtocol: %s\n" +
+        "includeDetails: %s\n" +
+        "indexingFilters: %s\n", afterNodeId, maxNodes, storeId, storeProtocol, includeDetails, indexingFilters));
+
+    //Indexing filters, scoped to this request
+    IndexingFilters filters = RequestFilters.getIndexingFilters(indexingFilters, indexingService.getDefaultFilters());
+    try {
+      filters = indexingService.resolveFilters(filters);
+    } catch (IllegalArgumentException e) {
+      throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage());
+    }
+
+    //Getting the Store ID on which the snapshot is requested
+    Pair<Long,StoreRef> store = nodeDao.getStore(new StoreRef(storeProtocol, storeId));
+    if(store == null)
+    {
+        throw new IllegalArgumentException("Invalid store reference: " + storeProtocol + "://" + storeId);
+    }
+
+    //Heads of the logs before the nodes are read: whatever is changed while the snapshot is taken is
+    //(possibly also) picked up by the changes following it
+    long headTxnId = indexingService.getLastTransactionID();
+    long headAclChangesetId = indexingService.getLastAclChangeSetID();
+
+    ChangesWriter nodes = ChangesWriter.open(res, namespaceService,
+        propertiesUrlTemplate + "/" + storeProtocol + "/" + storeId + "/", store.getSecond(),
+        includeDetails ? nodeDetailsWebScript : null);
+    JsonWriter writer = nodes.getWriter();
+    indexingService.getNodesById(store, afterNodeId, maxNodes, filters, nodes);
+    nodes.flush();
+
+    //The snapshot is complete when a page is not filled up
+    NodeEntity lastNode = nodes.getPageLastNode();
+    long lastNodeId = (nodes.getPageSize() < maxNodes || lastNode == null ? afterNodeId : lastNode.getId());
+
+    //elapsed time
+    long elapsedTime = System.currentTimeMillis() - startTime;
+
+    logger.debug(String.format("Wrote out %s nodes", nodes.getWrittenNodes()));
+
+    writer.endArray();
+    writer.name("totalNodes").value(String.valueOf(nodes.getWrittenNodes()));
+    writer.name("elapsedTime").value(String.valueOf(elapsedTime));
+    writer.name("last_node_id").value(String.valueOf(lastNodeId));
+    writer.name("head_txn_id").value(String.valueOf(headTxnId));
+    writer.name("head_acl_changeset_id").value(String.valueOf(headAclChangesetId));
+    writer.name("cursor").value(ChangesCursor.afterLastIds(headTxnId, headAclChangesetId).toString());
+    writer.name("last_txn_id").value(String.valueOf(headTxnId));
+    writer.name("last_acl_changeset_id").value(String.valueOf(headAclChangesetId));
+    writer.name("store_id").value(storeId);
+    writer.name("store_protocol").value(storeProtocol);
+    writer.endObject();
+    writer.flush();
+  }
+
+  private NamespaceService namespaceService;
+  private IndexingDaoImpl indexingService;
+  private NodeDAO nodeDao;
+  private NodeDetailsBatchWebScript nodeDetailsWebScript;
+
+  private String propertiesUrlTemplate;
+  private int maxNodesPerPage = 1000;
+
+  public void setNamespaceService(NamespaceService namespaceService) {
+    this.namespaceService = namespaceService;
+  }
+  public void setIndexingService(IndexingDaoImpl indexingService) {
+    this.indexingService = indexingService;
+  }
+  public void setNodeDao(NodeDAO nodeDao) {
+    this.nodeDao = nodeDao;
+  }
+  public void setNodeDetailsWebScript(NodeDetailsBatchWebScript nodeDetailsWebScript) {
+    this.nodeDetailsWebScript = nodeDetailsWebScript;
+  }
+
+  public void setPropertiesUrlTemplate(String propertiesUrlTemplate) {
+    this.propertiesUrlTemplate = propertiesUrlTemplate;
+  }
+
+  public void setMaxNodesPerPage(int maxNodesPerPage) {
+    this.maxNodesPerPage = maxNodesPerPage;
+  }
+}
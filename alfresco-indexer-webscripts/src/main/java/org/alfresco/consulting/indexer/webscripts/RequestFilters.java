@@ -0,0 +1,94 @@
+package org.alfresco.consulting.indexer.webscripts;
+
+import org.alfresco.consulting.indexer.dao.IndexingFilters;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.*;
+
+/**
+ * Indexing filters of the "indexingFilters" parameter, and what the "include" parameter embeds in the nodes,
+ * shared by the changes and the snapshot WebScripts
+ */
+class RequestFilters {
+
+  private static final String INCLUDE_DETAILS = "details";
+
+  private RequestFilters() {
+  }
+
+  /**
+   * @return the (URL encoded) JSON of the "indexingFilters" parameter, or null if not set
+   */
+  static JSONObject parse(WebScriptRequest req) {
+    try {
+      return req.getParameter("indexingFilters") != null ?
+          (JSONObject) JSONValue.parse(URLDecoder.decode(req.getParameter("indexingFilters"), "UTF-8")) : null;
+    } catch (UnsupportedEncodingException e) {
+      throw new WebScriptException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return whether the "include" parameter asks for the details of the nodes (properties, aspects, path and
+   *         readable authorities)
+   */
+  static boolean parseIncludeDetails(WebScriptRequest req) {
+    String include = req.getParameter("include");
+    if (include == null || include.isEmpty()) {
+      return false;
+    } else if (INCLUDE_DETAILS.equals(include)) {
+      return true;
+    }
+    throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unsupported include: " + include);
+  }
+
+  /**
+   * Request filters override the configured ones, except for the excluded name extensions; types
+   * (and whether they include subtypes) fall back to the configured ones when not requested
+   */
+  @SuppressWarnings("unchecked")
+  static IndexingFilters getIndexingFilters(JSONObject indexingParams, IndexingFilters defaults) {
+    if (indexingParams == null) {
+      return defaults;
+    }
+
+    //Types filter
+    Set<String> types = toSet((List<String>) indexingParams.get("typeFilters"));
+    if (types.isEmpty()) {
+      types = defaults.getAllowedTypes();
+    }
+
+    //Site, mimetype and aspect filters
+    Set<String> sites = toSet((List<String>) indexingParams.get("siteFilters"));
+    Set<String> mimetypes = toSet((List<String>) indexingParams.get("mimetypeFilters"));
+    Set<String> aspects = toSet((List<String>) indexingParams.get("aspectFilters"));
+
+    //Metadata filter
+    Set<String> metadataParams = new HashSet<String>();
+    Map<String,String> auxMap = (Map<String, String>) indexingParams.get("metadataFilters");
+    if (auxMap != null) {
+      for (Map.Entry<String, String> entry : auxMap.entrySet()) {
+        metadataParams.add(entry.getKey() + ":" + entry.getValue());
+      }
+    }
+
+    //Subtypes matching
+    Boolean includeSubtypes = (Boolean) indexingParams.get("includeSubtypes");
+    if (includeSubtypes == null) {
+      includeSubtypes = defaults.isIncludeSubtypes();
+    }
+
+    return new IndexingFilters(types, defaults.getExcludedNameExtension(), metadataParams, aspects, mimetypes, sites,
+        includeSubtypes);
+  }
+
+  private static Set<String> toSet(List<String> values) {
+    return values == null ? Collections.<String>emptySet() : new HashSet<String>(values);
+  }
+}
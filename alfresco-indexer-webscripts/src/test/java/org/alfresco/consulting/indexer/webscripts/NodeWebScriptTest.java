@@ -1,13 +1,58 @@
 package org.alfresco.consulting.indexer.webscripts;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.alfresco.consulting.indexer.dao.AclAuthorities;
+import org.alfresco.consulting.indexer.dao.AclAuthorityCache;
+import org.alfresco.consulting.indexer.dao.IndexingDaoImpl;
+import org.alfresco.consulting.indexer.dao.LogHeadCache;
+import org.alfresco.consulting.indexer.dao.NodePathCache;
+import org.alfresco.model.ContentModel;
+import org.alfresco.model.ForumModel;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.permissions.AclDAO;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.Acl;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.repo.web.scripts.BaseWebScriptTest;
+import org.alfresco.repo.web.scripts.RepositoryContainer;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.security.PermissionService;
 import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
 import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.apache.ibatis.session.SqlSessionFactory;
 import org.json.JSONArray;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.springframework.extensions.webscripts.Description.RequiredTransaction;
+import org.springframework.extensions.webscripts.Description.TransactionCapability;
+import org.springframework.extensions.webscripts.Match;
+import org.springframework.extensions.webscripts.Registry;
 import org.springframework.extensions.webscripts.TestWebScriptServer;
 import org.springframework.extensions.webscripts.TestWebScriptServer.Response;
+import org.springframework.extensions.webscripts.TransactionParameters;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
 
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.util.ApplicationContextHelper;
@@ -26,6 +71,12 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
 
     private static final String STORE_PROTOCOL = "workspace";
     private static final String STORE_ID = "SpacesStore";
+    private static final String CHANGES_URL = String.format("/node/changes/%s/%s", STORE_PROTOCOL, STORE_ID);
+    private static final String WEBSCRIPTS_PACKAGE = "org/alfresco/consulting/indexer/webscripts/";
+
+    //Attempts (and milliseconds between them) to wait for the cached head of the transaction log
+    private static final int HEAD_ATTEMPTS = 20;
+    private static final long HEAD_WAIT = 250;
 
     private static Logger log = Logger.getLogger(NodeWebScriptTest.class);
 
@@ -36,6 +87,8 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         nodeService = (NodeService) super.getServer().getApplicationContext().getBean("NodeService");
         namespaceService = (NamespaceService) super.getServer().getApplicationContext().getBean("NamespaceService");
         transactionService = (TransactionService) super.getServer().getApplicationContext().getBean("TransactionService");
+        AuthenticationUtil.setFullyAuthenticatedUser(AuthenticationUtil.getAdminUserName());
+        setDefaultRunAs("admin");
     }
 
     @Test
@@ -51,6 +104,58 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         JSONObject result = new JSONObject(response.getContentAsString());
         assertNodeChanges(result);
 
+        //Page through the same changes with a cursor, at most 2 nodes per log and page
+        response = sendRequest(new TestWebScriptServer.GetRequest(changesUrl + "?cursor=0:0:0:0&maxNodes=2"), 200);
+        JSONObject page = new JSONObject(response.getContentAsString());
+        assertTrue(page.getJSONArray("docs").length() <= 4);
+        String cursor = page.get("cursor").toString();
+        assertFalse("0:0:0:0".equals(cursor));
+        response = sendRequest(new TestWebScriptServer.GetRequest(changesUrl + "?maxNodes=2&cursor=" + cursor), 200);
+        page = new JSONObject(response.getContentAsString());
+        assertTrue(page.getJSONArray("docs").length() <= 4);
+        assertFalse(cursor.equals(page.get("cursor").toString()));
+
+        //Transactions without any matching node are skipped, even one transaction at a time
+        String filters = URLEncoder.encode("{\"typeFilters\" : [\"" + ContentModel.TYPE_CONTENT + "\"]}", "UTF-8");
+        response = sendRequest(new TestWebScriptServer.GetRequest(changesUrl + "?maxTxns=1&indexingFilters=" + filters), 200);
+        page = new JSONObject(response.getContentAsString());
+        assertTrue(page.getJSONArray("docs").length() > 0);
+
+        //The details of the live nodes can be embedded in the changes
+        response = sendRequest(new TestWebScriptServer.GetRequest(changesUrl + "?include=details&indexingFilters=" + filters), 200);
+        page = new JSONObject(response.getContentAsString());
+        assertNodeChanges(page);
+        JSONArray detailedDocs = page.getJSONArray("docs");
+        for (int i = 0; i < detailedDocs.length(); i++) {
+            JSONObject doc = detailedDocs.getJSONObject(i);
+            NodeRef docRef = new NodeRef(STORE_PROTOCOL, STORE_ID, doc.get("uuid").toString());
+            if (nodeService.exists(docRef)) {
+                JSONObject details = doc.getJSONObject("details");
+                assertEquals(nodeService.getPath(docRef).toPrefixString(namespaceService), details.get("path").toString());
+                assertTrue(details.getJSONArray("properties").length() > 0);
+                assertNotNull(details.getJSONArray("readableAuthorities"));
+            }
+        }
+        sendRequest(new TestWebScriptServer.GetRequest(changesUrl + "?include=unknown"), 400);
+        String[] invalidParams = { "lastTxnId=a", "lastAclChangesetId=a", "maxNodes=a", "maxNodes=0", "maxNodes=-1",
+                "maxTxns=0", "toTxnId=a", "toAclChangesetId=a" };
+        for (String invalidParam : invalidParams) {
+            sendRequest(new TestWebScriptServer.GetRequest(changesUrl + "?" + invalidParam), 400);
+        }
+
+        //Page through the live nodes, which come with the cursor to follow the changes from afterwards
+        String snapshotUrl = String.format("/node/snapshot/%s/%s", STORE_PROTOCOL, STORE_ID);
+        response = sendRequest(new TestWebScriptServer.GetRequest(snapshotUrl + "?maxNodes=2"), 200);
+        page = new JSONObject(response.getContentAsString());
+        assertNodeChanges(page);
+        assertEquals(2, page.getJSONArray("docs").length());
+        String lastNodeId = page.get("last_node_id").toString();
+        assertTrue(Long.parseLong(lastNodeId) > 0);
+        assertEquals(page.get("head_txn_id").toString(), page.get("last_txn_id").toString());
+        response = sendRequest(new TestWebScriptServer.GetRequest(snapshotUrl + "?maxNodes=2&afterNodeId=" + lastNodeId), 200);
+        page = new JSONObject(response.getContentAsString());
+        assertTrue(Long.parseLong(page.get("last_node_id").toString()) > Long.parseLong(lastNodeId));
+
         //Find the uuid of a cm:content, not being deleted and that is part of an Alfresco Share site
         JSONArray docs = result.getJSONArray("docs");
         NodeRef nodeRef = null;
@@ -79,6 +184,17 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         result = new JSONObject(response.getContentAsString());
         assertNodeDetails(result, nodeRef.getId());
 
+        //Get (and assert) the same details through the batch endpoint; unknown uuids are skipped
+        String batchDetailsUrl = String.format("/node/details/%s/%s",
+                STORE_PROTOCOL,
+                STORE_ID);
+        String batchBody = String.format("{\"uuids\" : [\"%s\", \"%s\"]}", nodeRef.getId(), "not-a-node");
+        response = sendRequest(new TestWebScriptServer.PostRequest(batchDetailsUrl, batchBody, "application/json"), 200);
+        JSONArray nodes = new JSONObject(response.getContentAsString()).getJSONArray("nodes");
+        assertEquals(1, nodes.length());
+        assertEquals(nodeRef.getId(), nodes.getJSONObject(0).get("uuid").toString());
+        assertNodeDetails(nodes.getJSONObject(0), nodeRef.getId());
+
         //Testing /auth/resolve Webscript
         response = sendRequest(new TestWebScriptServer.GetRequest("/auth/resolve/admin"), 200);
         JSONArray resultList = new JSONArray(response.getContentAsString());
@@ -89,6 +205,575 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
         assertAdminAuthResolve(resultList);
     }
 
+    @Test
+    public void testTypeFiltersMatchSubtypesOnDemand() throws Exception {
+        //fm:post is a subtype of cm:content
+        NodeRef post = createNode(ForumModel.TYPE_POST);
+        long txnId = getTransactionId(post);
+        String types = "\"typeFilters\" : [\"" + ContentModel.TYPE_CONTENT + "\"]";
+
+        JSONObject page = getChangesFrom(txnId, filtersParam("{" + types + ", \"includeSubtypes\" : true}"));
+        assertNotNull(findDoc(page, post));
+
+        page = getChangesFrom(txnId, filtersParam("{" + types + ", \"includeSubtypes\" : false}"));
+        assertNull(findDoc(page, post));
+    }
+
+    @Test
+    public void testTypeAndAspectFiltersMatchQNameIds() throws Exception {
+        final NodeRef nodeRef = createNode(ContentModel.TYPE_CONTENT);
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                nodeService.addAspect(nodeRef, ContentModel.ASPECT_TITLED, null);
+                return null;
+            }
+        });
+        long txnId = getTransactionId(nodeRef);
+
+        //Any of the types
+        JSONObject page = getChangesFrom(txnId, filtersParam("{\"typeFilters\" : [\"" + ContentModel.TYPE_FOLDER
+                + "\", \"" + ContentModel.TYPE_CONTENT + "\"]}"));
+        assertNotNull(findDoc(page, nodeRef));
+        page = getChangesFrom(txnId, filtersParam("{\"typeFilters\" : [\"" + ContentModel.TYPE_FOLDER + "\"]}"));
+        assertNull(findDoc(page, nodeRef));
+
+        //All of the aspects
+        page = getChangesFrom(txnId, filtersParam("{\"aspectFilters\" : [\"" + ContentModel.ASPECT_TITLED + "\"]}"));
+        assertNotNull(findDoc(page, nodeRef));
+        page = getChangesFrom(txnId, filtersParam("{\"aspectFilters\" : [\"" + ContentModel.ASPECT_TITLED
+                + "\", \"" + ContentModel.ASPECT_VERSIONABLE + "\"]}"));
+        assertNull(findDoc(page, nodeRef));
+
+        //An aspect never persisted can not match any node
+        page = getChangesFrom(txnId, filtersParam("{\"aspectFilters\" : [\"{" + NamespaceService.CONTENT_MODEL_1_0_URI
+                + "}neverPersisted\"]}"));
+        assertNull(findDoc(page, nodeRef));
+    }
+
+    @Test
+    public void testMimetypeFiltersMatchTheContent() throws Exception {
+        final ContentService contentService = (ContentService) getBean("ContentService");
+        final NodeRef nodeRef = createNode(ContentModel.TYPE_CONTENT);
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
+                writer.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+                writer.putContent("text");
+                return null;
+            }
+        });
+        long txnId = getTransactionId(nodeRef);
+
+        JSONObject page = getChangesFrom(txnId, filtersParam("{\"mimetypeFilters\" : [\""
+                + MimetypeMap.MIMETYPE_PDF + "\", \"" + MimetypeMap.MIMETYPE_TEXT_PLAIN + "\"]}"));
+        assertNotNull(findDoc(page, nodeRef));
+        page = getChangesFrom(txnId, filtersParam("{\"mimetypeFilters\" : [\"" + MimetypeMap.MIMETYPE_PDF + "\"]}"));
+        assertNull(findDoc(page, nodeRef));
+        //A mimetype never persisted can not match any node
+        page = getChangesFrom(txnId, filtersParam("{\"mimetypeFilters\" : [\"application/x-never-persisted\"]}"));
+        assertNull(findDoc(page, nodeRef));
+    }
+
+    @Test
+    public void testExcludedNameExtensionsAreSkipped() throws Exception {
+        IndexingDaoImpl indexingService = (IndexingDaoImpl) getBean("indexingService");
+        Set<String> excludedNameExtension = indexingService.getExcludedNameExtension();
+        indexingService.setExcludedNameExtension(Collections.singleton(".excluded"));
+        try {
+            //Both in the same transaction
+            List<NodeRef> nodeRefs = createNodes(getCompanyHome(), ContentModel.TYPE_CONTENT, GUID.generate() + ".txt",
+                    GUID.generate() + ".excluded");
+            NodeRef included = nodeRefs.get(0);
+            NodeRef excluded = nodeRefs.get(1);
+
+            JSONObject page = getChangesFrom(getTransactionId(included), "");
+            assertNotNull(findDoc(page, included));
+            assertNull(findDoc(page, excluded));
+        } finally {
+            indexingService.setExcludedNameExtension(excludedNameExtension);
+        }
+    }
+
+    @Test
+    public void testDeletedNodesBypassTheFilters() throws Exception {
+        final NodeRef nodeRef = createNode(ContentModel.TYPE_CONTENT);
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                //Not archived: the node is left as a sys:deleted one
+                nodeService.addAspect(nodeRef, ContentModel.ASPECT_TEMPORARY, null);
+                nodeService.deleteNode(nodeRef);
+                return null;
+            }
+        });
+        long txnId = getTransactionId(nodeRef);
+
+        //The deleted cm:content no longer has any type the filter could match
+        JSONObject page = getChangesFrom(txnId,
+                filtersParam("{\"typeFilters\" : [\"" + ContentModel.TYPE_FOLDER + "\"]}"));
+        JSONObject doc = findDoc(page, nodeRef);
+        assertNotNull(doc);
+        assertEquals("true", doc.get("deleted").toString());
+    }
+
+    @Test
+    public void testMetadataFiltersAreCheckedBeforeMatching() throws Exception {
+        NodeRef nodeRef = createNode(ContentModel.TYPE_CONTENT);
+        long txnId = getTransactionId(nodeRef);
+        String name = nodeService.getProperty(nodeRef, ContentModel.PROP_NAME).toString();
+
+        JSONObject page = getChangesFrom(txnId, metadataFiltersParam(ContentModel.PROP_NAME.toString(), name));
+        assertNotNull(findDoc(page, nodeRef));
+
+        //Malformed, unknown or mistyped filters are rejected, rather than ignored (which would widen the results)
+        String snapshotUrl = String.format("/node/snapshot/%s/%s?maxNodes=2", STORE_PROTOCOL, STORE_ID);
+        String[][] invalidFilters = {
+                { "cm:name", name },
+                { ContentModel.PROP_NAME.toString(), "" },
+                { "{" + NamespaceService.CONTENT_MODEL_1_0_URI + "}notAProperty", name },
+                { ContentModel.PROP_LATITUDE.toString(), "north" } };
+        for (String[] filter : invalidFilters) {
+            String params = metadataFiltersParam(filter[0], filter[1]);
+            sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL + "?lastTxnId=0" + params), 400);
+            sendRequest(new TestWebScriptServer.GetRequest(snapshotUrl + params), 400);
+        }
+    }
+
+    @Test
+    public void testStreamedPagesSplitTransactionsAndWriteNodesOnce() throws Exception {
+        NodeRef folder = createNode(ContentModel.TYPE_FOLDER);
+        List<NodeRef> nodeRefs = createNodes(folder, ContentModel.TYPE_CONTENT, GUID.generate() + ".txt",
+                GUID.generate() + ".txt", GUID.generate() + ".txt", GUID.generate() + ".txt", GUID.generate() + ".txt");
+        long txnId = getTransactionId(nodeRefs.get(0));
+        //Heads are only written out for partitioning clients, or when the page reads them anyway
+        JSONObject probe = getChangesFrom(txnId, "&toAclChangesetId=" + Long.MAX_VALUE);
+        long headAclChangesetId = Long.parseLong(probe.get("head_acl_changeset_id").toString());
+        assertTrue(Long.parseLong(probe.get("head_txn_id").toString()) >= txnId);
+
+        //Pages of 2 nodes at most resume within the transaction, up to an empty page past its end
+        String partition = "&toTxnId=" + txnId + "&toAclChangesetId=" + headAclChangesetId;
+        String cursor = txnId + ":0:" + (headAclChangesetId + 1) + ":0";
+        List<String> uuids = new ArrayList<String>();
+        for (int pages = 0; ; pages++) {
+            assertTrue(pages < nodeRefs.size());
+            Response response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL + "?maxNodes=2&cursor="
+                    + cursor + partition), 200);
+            JSONObject page = new JSONObject(response.getContentAsString());
+            JSONArray docs = page.getJSONArray("docs");
+            assertTrue(docs.length() <= 2);
+            for (int i = 0; i < docs.length(); i++) {
+                uuids.add(docs.getJSONObject(i).get("uuid").toString());
+            }
+            cursor = page.get("cursor").toString();
+            if (docs.length() == 0) {
+                break;
+            }
+        }
+        assertEquals(new HashSet<String>(uuids).size(), uuids.size());
+        for (NodeRef nodeRef : nodeRefs) {
+            assertTrue(uuids.contains(nodeRef.getId()));
+        }
+        assertTrue(cursor.startsWith((txnId + 1) + ":0:"));
+
+        //A cursor built from the last ids pages within the transaction too, while the last ids alone get its whole tail
+        String lastIds = URLEncoder.encode((txnId - 1) + "|" + headAclChangesetId, "UTF-8");
+        JSONObject page = new JSONObject(sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL
+                + "?maxNodes=2&cursor=" + lastIds + partition), 200).getContentAsString());
+        assertEquals(2, page.getJSONArray("docs").length());
+        assertTrue(page.get("cursor").toString().startsWith(txnId + ":"));
+        assertFalse(page.get("cursor").toString().startsWith(txnId + ":0:"));
+        page = new JSONObject(sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL + "?maxNodes=2&lastTxnId="
+                + (txnId - 1) + "&lastAclChangesetId=" + headAclChangesetId + partition), 200).getContentAsString());
+        assertTrue(page.getJSONArray("docs").length() >= nodeRefs.size());
+        //Along with their details, the tail is read in pages of maxNodes
+        page = new JSONObject(sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL + "?maxNodes=2&lastTxnId="
+                + (txnId - 1) + "&lastAclChangesetId=" + headAclChangesetId + partition + "&include=details"), 200)
+                .getContentAsString());
+        for (NodeRef nodeRef : nodeRefs) {
+            assertNotNull(findDoc(page, nodeRef).getJSONObject("details"));
+        }
+        sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL + "?cursor=" + URLEncoder.encode("1|a", "UTF-8")), 400);
+
+        //A node changed by both logs in the same page is written once
+        final PermissionService permissionService = (PermissionService) getBean("PermissionService");
+        final NodeRef nodeRef = nodeRefs.get(0);
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                permissionService.setPermission(nodeRef, AuthenticationUtil.getGuestUserName(),
+                        PermissionService.READ, true);
+                return null;
+            }
+        });
+        final NodeDAO nodeDao = (NodeDAO) getBean("nodeDAO");
+        final AclDAO aclDao = (AclDAO) getBean("aclDAO");
+        long aclChangesetId = doInTransaction(new RetryingTransactionCallback<Long>() {
+            public Long execute() throws Throwable {
+                Long nodeAclId = nodeDao.getNodeAclId(nodeDao.getNodePair(nodeRef).getFirst());
+                return aclDao.getAcl(nodeAclId).getAclChangeSetId();
+            }
+        });
+        txnId = getTransactionId(nodeRef);
+        String url = CHANGES_URL + "?cursor=" + txnId + ":0:" + aclChangesetId + ":0&toTxnId=" + txnId
+                + "&toAclChangesetId=" + aclChangesetId;
+        int written = 0;
+        for (int attempt = 1; written == 0 && attempt <= HEAD_ATTEMPTS; attempt++) {
+            if (attempt > 1) {
+                Thread.sleep(HEAD_WAIT);
+            }
+            JSONArray docs = new JSONObject(sendRequest(new TestWebScriptServer.GetRequest(url), 200)
+                    .getContentAsString()).getJSONArray("docs");
+            for (int i = 0; i < docs.length(); i++) {
+                if (nodeRef.getId().equals(docs.getJSONObject(i).get("uuid").toString())) {
+                    written++;
+                }
+            }
+        }
+        assertEquals(1, written);
+    }
+
+    @Test
+    public void testLargePagesAreStreamedWithoutBuffering() throws Exception {
+        //The container neither buffers the pages nor holds a read-write transaction while they are written
+        Registry registry = ((RepositoryContainer) getBean("webscripts.container")).getRegistry();
+        for (String webscript : new String[] { "changes.get", "snapshot.get" }) {
+            TransactionParameters transaction = registry.getWebScript(WEBSCRIPTS_PACKAGE + webscript)
+                    .getDescription().getRequiredTransactionParameters();
+            assertEquals(RequiredTransaction.required, transaction.getRequired());
+            assertEquals(TransactionCapability.readonly, transaction.getCapability());
+            assertEquals(0, transaction.getBufferSize());
+        }
+
+        //The first bytes of a large page reach the response while the rest of it is still being rendered
+        final NodeSnapshotWebScript snapshot = (NodeSnapshotWebScript) getBean(
+                "webscript.org.alfresco.consulting.indexer.webscripts.snapshot.get");
+        final Map<String, String> params = Collections.singletonMap("maxNodes", "500");
+        final Map<String, String> templateVars = new HashMap<String, String>();
+        templateVars.put("storeProtocol", STORE_PROTOCOL);
+        templateVars.put("storeId", STORE_ID);
+        final WriteCountingOutputStream out = new WriteCountingOutputStream();
+        final WebScriptRequest req = stub(WebScriptRequest.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getServiceMatch".equals(method.getName())) {
+                    return new Match("/node/snapshot/{storeProtocol}/{storeId}", templateVars, "/node/snapshot");
+                }
+                return "getParameter".equals(method.getName()) ? params.get(args[0]) : null;
+            }
+        });
+        final WebScriptResponse res = stub(WebScriptResponse.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "getOutputStream".equals(method.getName()) ? out : null;
+            }
+        });
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                snapshot.execute(req, res);
+                return null;
+            }
+        }, true, true);
+
+        JSONObject page = new JSONObject(out.toString("UTF-8"));
+        assertTrue(page.getJSONArray("docs").length() > 100);
+        assertTrue(out.getWrites() > 1);
+        assertTrue(out.getFirstWriteSize() < out.size());
+    }
+
+    @Test
+    public void testAclChainsFollowTheInheritance() throws Exception {
+        final PermissionService permissionService = (PermissionService) getBean("PermissionService");
+        final NodeRef folder = createNode(ContentModel.TYPE_FOLDER);
+        final NodeRef nodeRef = createNode(folder, ContentModel.TYPE_CONTENT);
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                permissionService.setPermission(folder, PermissionService.ALL_AUTHORITIES, PermissionService.READ, true);
+                permissionService.setPermission(nodeRef, AuthenticationUtil.getGuestUserName(),
+                        PermissionService.COORDINATOR, true);
+                return null;
+            }
+        });
+
+        final NodeDAO nodeDao = (NodeDAO) getBean("nodeDAO");
+        final AclDAO aclDao = (AclDAO) getBean("aclDAO");
+        final IndexingDaoImpl indexingService = (IndexingDaoImpl) getBean("indexingService");
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                Long nodeAclId = nodeDao.getNodeAclId(nodeDao.getNodePair(nodeRef).getFirst());
+
+                //Walk up the inheritance chain one ACL at a time
+                List<Long> chain = new ArrayList<Long>();
+                for (Long aclId = nodeAclId; aclId != null; ) {
+                    chain.add(aclId);
+                    Acl acl = aclDao.getAcl(aclId);
+                    aclId = Boolean.TRUE.equals(acl.getInherits()) ? acl.getInheritsFrom() : null;
+                }
+                assertTrue(chain.size() > 2);
+
+                AclAuthorities authorities = indexingService.getAclAuthorities(Collections.singleton(nodeAclId))
+                        .get(nodeAclId);
+                assertEquals(chain, authorities.getAclIds());
+                //The authorities of the node ACL come first
+                assertEquals(AuthenticationUtil.getGuestUserName(), authorities.getAuthorities().get(0));
+                assertTrue(authorities.getAuthorities().contains(PermissionService.ALL_AUTHORITIES));
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testAclAuthoritiesAreEvictedOnceTheAclChanges() throws Exception {
+        final PermissionService permissionService = (PermissionService) getBean("PermissionService");
+        final NodeRef folder = createNode(ContentModel.TYPE_FOLDER);
+        final NodeRef nodeRef = createNode(folder, ContentModel.TYPE_CONTENT);
+        //The node inherits from an ACL of the folder's own
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                permissionService.setPermission(folder, PermissionService.ALL_AUTHORITIES, PermissionService.READ, true);
+                return null;
+            }
+        });
+
+        final NodeDAO nodeDao = (NodeDAO) getBean("nodeDAO");
+        final AclAuthorityCache aclAuthorityCache = (AclAuthorityCache) getBean("indexingAclAuthorityCache");
+        final IndexingDaoImpl indexingService = (IndexingDaoImpl) getBean("indexingService");
+        RetryingTransactionCallback<List<String>> readableAuthorities = new RetryingTransactionCallback<List<String>>() {
+            public List<String> execute() throws Throwable {
+                Long nodeAclId = nodeDao.getNodeAclId(nodeDao.getNodePair(nodeRef).getFirst());
+                return aclAuthorityCache.getReadableAuthorities(nodeAclId);
+            }
+        };
+        assertFalse(doInTransaction(readableAuthorities).contains(AuthenticationUtil.getGuestUserName()));
+
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                permissionService.setPermission(folder, AuthenticationUtil.getGuestUserName(), PermissionService.READ,
+                        true);
+                return null;
+            }
+        });
+
+        //Evicted once the (cached) head of the ACL changeset log moves past the change
+        List<String> authorities = doInTransaction(readableAuthorities);
+        for (int attempt = 1; !authorities.contains(AuthenticationUtil.getGuestUserName()) && attempt < HEAD_ATTEMPTS;
+                attempt++) {
+            Thread.sleep(HEAD_WAIT);
+            authorities = doInTransaction(readableAuthorities);
+        }
+        assertTrue(authorities.contains(AuthenticationUtil.getGuestUserName()));
+        assertTrue(authorities.contains(PermissionService.ALL_AUTHORITIES));
+        final List<String> cached = authorities;
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                Long nodeAclId = nodeDao.getNodeAclId(nodeDao.getNodePair(nodeRef).getFirst());
+                assertEquals(indexingService.getAclAuthorities(Collections.singleton(nodeAclId)).get(nodeAclId)
+                        .getAuthorities(), cached);
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testCachedPathsAreEvictedOnceAContainerMoves() throws Exception {
+        final NodeRef folder = createNode(ContentModel.TYPE_FOLDER);
+        final NodeRef subfolder = createNode(folder, ContentModel.TYPE_FOLDER);
+        final NodeRef nodeRef = createNode(subfolder, ContentModel.TYPE_CONTENT);
+        final NodeRef target = createNode(ContentModel.TYPE_FOLDER);
+        final NodePathCache nodePathCache = (NodePathCache) getBean("indexingNodePathCache");
+        //The path of the node, both cached and as resolved by the NodeService
+        RetryingTransactionCallback<String[]> paths = new RetryingTransactionCallback<String[]>() {
+            public String[] execute() throws Throwable {
+                return new String[] { nodePathCache.getNodePath(nodeRef).getPath(),
+                        nodeService.getPath(nodeRef).toPrefixString(namespaceService) };
+            }
+        };
+        String[] nodePaths = doInTransaction(paths);
+        assertEquals(nodePaths[1], nodePaths[0]);
+
+        //Renamed: the name of the primary association is part of the path
+        final QName renamed = QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, GUID.generate());
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                nodeService.moveNode(folder, getCompanyHome(), ContentModel.ASSOC_CONTAINS, renamed);
+                return null;
+            }
+        });
+        nodePaths = getPathsOnceEvicted(paths);
+        assertEquals(nodePaths[1], nodePaths[0]);
+        assertTrue(nodePaths[0].contains(renamed.getLocalName()));
+
+        //Moved
+        doInTransaction(new RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                nodeService.moveNode(subfolder, target, ContentModel.ASSOC_CONTAINS,
+                        nodeService.getPrimaryParent(subfolder).getQName());
+                return null;
+            }
+        });
+        nodePaths = getPathsOnceEvicted(paths);
+        assertEquals(nodePaths[1], nodePaths[0]);
+        assertFalse(nodePaths[0].contains(renamed.getLocalName()));
+    }
+
+    @Test
+    public void testLogHeadIsServedStaleWhileReloaded() throws Exception {
+        //Heads loaded one after the other: the log is empty at first
+        final LinkedList<Long> heads = new LinkedList<Long>(Arrays.asList(null, 5L));
+        SqlSessionTemplate template = new SqlSessionTemplate((SqlSessionFactory) getBean("indexingSqlSessionFactory")) {
+            @Override
+            public Object selectOne(String statement) {
+                return heads.removeFirst();
+            }
+        };
+        final List<Runnable> reloads = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            public void execute(Runnable command) {
+                reloads.add(command);
+            }
+        };
+        LogHeadCache head = new LogHeadCache(template, "select_LastTransactionID", executor, 1);
+
+        assertEquals(Long.valueOf(0), head.get());
+        assertTrue(head.reaches(0));
+        assertFalse(head.reaches(1));
+
+        //Once stale, the head is still served, while a single reload is scheduled
+        Thread.sleep(10);
+        assertEquals(Long.valueOf(0), head.get());
+        assertEquals(Long.valueOf(0), head.get());
+        assertEquals(1, reloads.size());
+
+        reloads.get(0).run();
+        assertEquals(Long.valueOf(5), head.get());
+        assertTrue(head.reaches(5));
+        assertTrue(heads.isEmpty());
+    }
+
+    /**
+     * @return the cached and the actual paths, once the cache has been evicted after the (cached) head of the
+     *         transaction log moves
+     */
+    private String[] getPathsOnceEvicted(RetryingTransactionCallback<String[]> paths) throws Exception {
+        String[] nodePaths = doInTransaction(paths);
+        for (int attempt = 1; !nodePaths[1].equals(nodePaths[0]) && attempt < HEAD_ATTEMPTS; attempt++) {
+            Thread.sleep(HEAD_WAIT);
+            nodePaths = doInTransaction(paths);
+        }
+        return nodePaths;
+    }
+
+    private NodeRef createNode(QName type) {
+        return createNode(getCompanyHome(), type);
+    }
+
+    private NodeRef createNode(NodeRef parent, QName type) {
+        return createNodes(parent, type, GUID.generate() + ".txt").get(0);
+    }
+
+    /**
+     * Creates the nodes in a single transaction of their own
+     */
+    private List<NodeRef> createNodes(final NodeRef parent, final QName type, final String... names) {
+        return doInTransaction(new RetryingTransactionCallback<List<NodeRef>>() {
+            public List<NodeRef> execute() throws Throwable {
+                List<NodeRef> nodeRefs = new ArrayList<NodeRef>(names.length);
+                for (String name : names) {
+                    nodeRefs.add(nodeService.createNode(parent, ContentModel.ASSOC_CONTAINS,
+                            QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, name), type,
+                            Collections.<QName, Serializable>singletonMap(ContentModel.PROP_NAME, name)).getChildRef());
+                }
+                return nodeRefs;
+            }
+        });
+    }
+
+    /**
+     * @return an implementation of the interface answering the calls through the handler
+     */
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    /**
+     * Keeps track of the writes of a response, to tell whether it was written out in several chunks
+     */
+    private static class WriteCountingOutputStream extends ByteArrayOutputStream {
+        private int writes;
+        private int firstWriteSize;
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            if (writes++ == 0) {
+                firstWriteSize = size();
+            }
+        }
+
+        int getWrites() {
+            return writes;
+        }
+
+        int getFirstWriteSize() {
+            return firstWriteSize;
+        }
+    }
+
+    private Object getBean(String name) {
+        return getServer().getApplicationContext().getBean(name);
+    }
+
+    private <T> T doInTransaction(RetryingTransactionCallback<T> callback) {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(callback, false, true);
+    }
+
+    private NodeRef getCompanyHome() {
+        NodeRef rootNode = nodeService.getRootNode(new StoreRef(STORE_PROTOCOL, STORE_ID));
+        return nodeService.getChildAssocs(rootNode, ContentModel.ASSOC_CHILDREN,
+                QName.createQName(NamespaceService.APP_MODEL_1_0_URI, "company_home")).get(0).getChildRef();
+    }
+
+    private long getTransactionId(NodeRef nodeRef) {
+        return nodeService.getNodeStatus(nodeRef).getDbTxnId();
+    }
+
+    /**
+     * @return the changes page starting at the given transaction, once the (cached) head of the transaction log
+     *         reaches it
+     */
+    private JSONObject getChangesFrom(long txnId, String params) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            Response response = sendRequest(new TestWebScriptServer.GetRequest(CHANGES_URL + "?lastTxnId=" + (txnId - 1)
+                    + "&lastAclChangesetId=0" + params), 200);
+            JSONObject page = new JSONObject(response.getContentAsString());
+            if (Long.parseLong(page.get("last_txn_id").toString()) >= txnId || attempt == HEAD_ATTEMPTS) {
+                return page;
+            }
+            Thread.sleep(HEAD_WAIT);
+        }
+    }
+
+    private String filtersParam(String filters) throws Exception {
+        return "&indexingFilters=" + URLEncoder.encode(filters, "UTF-8");
+    }
+
+    private String metadataFiltersParam(String property, String value) throws Exception {
+        return filtersParam(String.format("{\"metadataFilters\" : {\"%s\" : \"%s\"}}", property, value));
+    }
+
+    /**
+     * @return the doc of the node in the page, null if missing
+     */
+    private JSONObject findDoc(JSONObject page, NodeRef nodeRef) throws Exception {
+        JSONArray docs = page.getJSONArray("docs");
+        for (int i = 0; i < docs.length(); i++) {
+            if (nodeRef.getId().equals(docs.getJSONObject(i).get("uuid").toString())) {
+                return docs.getJSONObject(i);
+            }
+        }
+        return null;
+    }
+
     private void assertAdminAuthResolve(JSONArray resultList) throws Exception {
         for (int j = 0; j < resultList.length() - 1; j++) {
             JSONObject result = resultList.getJSONObject(j);
@@ -137,6 +822,8 @@ public class NodeWebScriptTest extends BaseWebScriptTest {
             assertTrue(propertiesUrl.contains(uuid));
             String deleted = doc.get("deleted").toString();
             assertNotNull(new Boolean(deleted));
+            assertTrue(Long.parseLong(doc.get("version").toString()) >= 0);
+            assertTrue(Long.parseLong(doc.get("txnId").toString()) > 0);
         }
     }
 
@@ -2,14 +2,25 @@ package org.alfresco.consulting.manifold;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.alfresco.consulting.indexer.client.AlfrescoClient;
 import org.alfresco.consulting.indexer.client.AlfrescoDownException;
+import org.alfresco.consulting.indexer.client.AlfrescoFilters;
 import org.alfresco.consulting.indexer.client.AlfrescoResponse;
+import org.alfresco.consulting.indexer.client.ChangesCursor;
 import org.alfresco.consulting.indexer.client.WebScriptsAlfrescoClient;
 import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
 import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
@@ -34,6 +45,17 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
   private static final String[] activitiesList = new String[]{ACTIVITY_FETCH};
   private AlfrescoClient alfrescoClient;
   private Boolean enableDocumentProcessing = Boolean.TRUE;
+  private int seedPartitions = 1;
+  private boolean includeDetails = false;
+  // Whether the type filters match their subtypes, null for Alfresco's default
+  private Boolean includeSubtypes;
+  // Identifies the repository in the scope of the seeded documents
+  private String repository;
+  // Prefix of the node references of the documents
+  private String storeRef;
+  
+  private static final int SEED_QUEUE_CAPACITY = 1000;
+  private static final long SEED_QUEUE_POLL_MILLIS = 100;
   
   private static final String CONTENT_URL_PROPERTY = "contentUrlPath";
   private static final String AUTHORITIES_PROPERTY = "readableAuthorities";
@@ -43,6 +65,10 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
   private static final String FIELD_NODEREF = "nodeRef";
   private static final String FIELD_TYPE = "type";
   private static final String FIELD_NAME = "name";
+  private static final String FIELD_DELETED = "deleted";
+  private static final String FIELD_VERSION = "version";
+  private static final String FIELD_TXN_ID = "txnId";
+  private static final String PROPERTY_NAME = "cm:name";
 
   @Override
   public int getConnectorModel() {
@@ -65,9 +91,25 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
     String username = getConfig(config, "username", null);
     String password = getConfig(config, "password", null);
     this.enableDocumentProcessing = new Boolean(getConfig(config, "enabledocumentprocessing", "false"));
+    int maxConnections = Math.max(1, getIntConfig(config, "maxconnections",
+            WebScriptsAlfrescoClient.DEFAULT_MAX_TOTAL_CONNECTIONS));
+    // Each partition of the initial crawl holds a connection while its documents are queued
+    this.seedPartitions = Math.max(1, getIntConfig(config, "seedpartitions", 1));
+    // Details are embedded in the seeded documents, which are then ingested without fetching them one at a time
+    this.includeDetails = Boolean.parseBoolean(getConfig(config, "includedetails", "false"));
+    String subtypes = getConfig(config, ConfigurationHandler.PARAM_INCLUDE_SUBTYPES, "");
+    this.includeSubtypes = subtypes.isEmpty() ? null : Boolean.valueOf(subtypes);
+    this.repository = String.format("%s://%s%s/%s/%s/", protocol, hostname, endpoint, storeProtocol, storeId);
+    this.storeRef = String.format("%s://%s/", storeProtocol, storeId);
 
-    alfrescoClient = new WebScriptsAlfrescoClient(protocol, hostname, endpoint,
-            storeProtocol, storeId, username, password);
+    // Reconnecting without disconnecting first releases the connection pool of the previous client
+    if (alfrescoClient != null) {
+      alfrescoClient.close();
+    }
+    WebScriptsAlfrescoClient client = new WebScriptsAlfrescoClient(protocol, hostname, endpoint,
+            storeProtocol, storeId, username, password, maxConnections, maxConnections);
+    client.setIncludeDetails(includeDetails);
+    alfrescoClient = client;
   }
 
   private static String getConfig(ConfigParams config,
@@ -80,6 +122,21 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
     return protocol;
   }
 
+  private static int getIntConfig(ConfigParams config,
+                                  String parameter,
+                                  int defaultValue) {
+    String value = getConfig(config, parameter, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      logger.warn("Invalid {} '{}', using {} instead", new Object[] {parameter, value, defaultValue});
+      return defaultValue;
+    }
+  }
+
   @Override
   public String check() throws ManifoldCFException {
     return super.check();
@@ -87,6 +144,10 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
 
   @Override
   public void disconnect() throws ManifoldCFException {
+    if (alfrescoClient != null) {
+      alfrescoClient.close();
+      alfrescoClient = null;
+    }
     super.disconnect();
   }
 
@@ -103,52 +164,228 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
   @Override
   public String addSeedDocuments(ISeedingActivity activities, Specification spec,
                                               String lastSeedVersion, long seedTime, int jobMode) throws ManifoldCFException, ServiceInterruption {
+    AlfrescoFilters filters = ConfigurationHandler.getFilters(spec);
+    filters.setIncludeSubtypes(includeSubtypes);
+    SeededDocuments.Seeding seeding = SeededDocuments.startSeeding(getSeedingScope(spec), seedTime);
     try {
-      long lastTransactionId = 0;
-      long lastAclChangesetId = 0;
-      
-      if(lastSeedVersion != null && !lastSeedVersion.isEmpty()){
-    	  StringTokenizer tokenizer = new StringTokenizer(lastSeedVersion,"|");
-
-    	  if (tokenizer.countTokens() == 2) {
-    		  lastTransactionId = new Long(tokenizer.nextToken());
-    		  lastAclChangesetId = new Long(tokenizer.nextToken());
-    	  }
+      if (SeedPartition.isPartitioned(lastSeedVersion)) {
+        return addPartitionedSeedDocuments(activities, seeding, filters, SeedPartition.parse(lastSeedVersion));
       }
-      
-      logger.info("Starting from transaction id: {} and acl changeset id: {}", lastTransactionId, lastAclChangesetId);
-      
-      long transactionIdsProcessed;
-      long aclChangesetsProcessed;
+      if ((lastSeedVersion == null || lastSeedVersion.isEmpty()) && seedPartitions > 1) {
+        // Initial crawl: the logs are split up to their current heads, later changes are crawled incrementally
+        AlfrescoResponse heads = alfrescoClient.fetchNodes(ChangesCursor.INITIAL, 0, 0, filters);
+        long headTransactionId;
+        long headAclChangesetId;
+        try {
+          headTransactionId = heads.getHeadTransactionId();
+          headAclChangesetId = heads.getHeadAclChangesetId();
+        } finally {
+          heads.close();
+        }
+        if (headTransactionId > 0 || headAclChangesetId > 0) {
+          return addPartitionedSeedDocuments(activities, seeding, filters,
+              SeedPartition.split(headTransactionId, headAclChangesetId, seedPartitions));
+        }
+        logger.warn("Alfresco does not provide the heads of its logs, seeding without partitions");
+      } else if (lastSeedVersion == null || lastSeedVersion.isEmpty()) {
+        // Initial crawl: the live nodes are read once each, later changes are crawled incrementally
+        return addSnapshotSeedDocuments(activities, seeding, filters);
+      }
+
+      // Seed versions recorded before cursors existed are "lastTxnId|lastAclChangesetId" pairs
+      String cursor = ChangesCursor.fromRecorded(lastSeedVersion);
+
+      logger.info("Starting from cursor: {}", cursor);
+
+      String previousCursor;
       do {
-        final AlfrescoResponse response = alfrescoClient.
-        		fetchNodes(lastTransactionId, 
-        				lastAclChangesetId,
-        				ConfigurationHandler.getFilters(spec));
+        final AlfrescoResponse response = alfrescoClient.fetchNodes(cursor, filters);
         int count = 0;
+        try {
+          // Documents are streamed from Alfresco, one at a time
+          for (Map<String, Object> doc : response.getDocuments()) {
+//            String json = gson.toJson(doc);
+//            activities.addSeedDocument(json);
+            activities.addSeedDocument(seedDocument(seeding, doc));
+            count++;
+          }
+          logger.info("Fetched and added {} seed documents", count);
+
+          previousCursor = cursor;
+          cursor = response.getCursor();
+        } finally {
+          response.close();
+        }
+
+        logger.info("cursor={}", cursor);
+      } while (!cursor.equals(previousCursor));
+
+      logger.info("Recording {} as last cursor", cursor);
+      return cursor;
+    } catch (AlfrescoDownException e) {
+      throw new ManifoldCFException(e);
+    }
+  }
+
+  /**
+   * Seeds the live nodes of a snapshot, page after page, rather than replaying every change from the first
+   * transaction; changes are followed from the cursor of its first page, at the heads of the logs when the
+   * snapshot started.
+   */
+  private String addSnapshotSeedDocuments(ISeedingActivity activities, SeededDocuments.Seeding seeding,
+                                          AlfrescoFilters filters) throws ManifoldCFException, ServiceInterruption {
+    String cursor = null;
+    long afterNodeId = 0;
+    long previousNodeId;
+    do {
+      AlfrescoResponse response = alfrescoClient.fetchSnapshot(afterNodeId, filters);
+      int count = 0;
+      try {
         for (Map<String, Object> doc : response.getDocuments()) {
-//          String json = gson.toJson(doc);
-//          activities.addSeedDocument(json);
-          String uuid = doc.get("uuid").toString();
+          activities.addSeedDocument(seedDocument(seeding, doc));
+          count++;
+        }
+        logger.info("Fetched and added {} snapshot seed documents", count);
+
+        if (cursor == null) {
+          cursor = response.getCursor();
+        }
+        previousNodeId = afterNodeId;
+        afterNodeId = response.getLastNodeId();
+      } finally {
+        response.close();
+      }
+
+      logger.info("afterNodeId={}", afterNodeId);
+    } while (afterNodeId > previousNodeId);
+
+    logger.info("Recording {} as last cursor", cursor);
+    return cursor;
+  }
+
+  /**
+   * Crawls the partitions in parallel, one worker each; the workers only fetch the documents, which are added by
+   * the calling thread (seeding activities are bound to it).
+   *
+   * @return the cursor following the last partition once all of them are crawled; otherwise, the partitions with
+   *         the cursors they reached, to resume from
+   */
+  private String addPartitionedSeedDocuments(ISeedingActivity activities, final SeededDocuments.Seeding seeding,
+                                             final AlfrescoFilters filters, List<SeedPartition> partitions) throws ManifoldCFException, ServiceInterruption {
+    logger.info("Seeding {} partitions: {}", partitions.size(), partitions);
+
+    final BlockingQueue<String> seeds = new ArrayBlockingQueue<String>(SEED_QUEUE_CAPACITY);
+    ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
+    List<Future<?>> workers = new ArrayList<Future<?>>(partitions.size());
+    int count = 0;
+    try {
+      for (final SeedPartition partition : partitions) {
+        workers.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws InterruptedException {
+            seedPartition(partition, seeding, filters, seeds);
+            return null;
+          }
+        }));
+      }
+
+      while (true) {
+        String uuid = seeds.poll(SEED_QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (uuid != null) {
           activities.addSeedDocument(uuid);
           count++;
+        } else if (allDone(workers)) {
+          for (uuid = seeds.poll(); uuid != null; uuid = seeds.poll()) {
+            activities.addSeedDocument(uuid);
+            count++;
+          }
+          break;
         }
-        logger.info("Fetched and added {} seed documents", count);
+      }
+    } catch (InterruptedException e) {
+      throw new ManifoldCFException(e.getMessage(), e, ManifoldCFException.INTERRUPTED);
+    } finally {
+      executor.shutdownNow();
+    }
+    logger.info("Added {} seed documents", count);
+
+    boolean crawled = true;
+    for (int i = 0; i < workers.size(); i++) {
+      try {
+        workers.get(i).get();
+      } catch (ExecutionException e) {
+        // The partition resumes from its last cursor on the next crawl
+        logger.error("Could not seed partition " + partitions.get(i), e.getCause());
+        crawled = false;
+      } catch (InterruptedException e) {
+        throw new ManifoldCFException(e.getMessage(), e, ManifoldCFException.INTERRUPTED);
+      }
+    }
 
-        transactionIdsProcessed = response.getLastTransactionId() - lastTransactionId;
-        aclChangesetsProcessed = response.getLastAclChangesetId() - lastAclChangesetId;
+    String seedVersion = crawled ? partitions.get(partitions.size() - 1).getCursor() : SeedPartition.format(partitions);
+    logger.info("Recording {} as last seed version", seedVersion);
+    return seedVersion;
+  }
 
-        lastTransactionId = response.getLastTransactionId();
-        lastAclChangesetId = response.getLastAclChangesetId();
+  /**
+   * Queues the documents of a partition, moving its cursor forward once the documents of a page are all queued
+   */
+  private void seedPartition(SeedPartition partition, SeededDocuments.Seeding seeding, AlfrescoFilters filters,
+                             BlockingQueue<String> seeds) throws InterruptedException {
+    String previousCursor;
+    do {
+      AlfrescoResponse response = alfrescoClient.fetchNodes(partition.getCursor(), partition.getToTransactionId(),
+          partition.getToAclChangesetId(), filters);
+      try {
+        for (Map<String, Object> doc : response.getDocuments()) {
+          seeds.put(seedDocument(seeding, doc));
+        }
+        previousCursor = partition.getCursor();
+        partition.setCursor(response.getCursor());
+      } finally {
+        response.close();
+      }
+    } while (!partition.getCursor().equals(previousCursor));
+  }
 
-        logger.info("transaction_id={}, acl_changeset_id={}", lastTransactionId, lastAclChangesetId);
-      } while (transactionIdsProcessed > 0 || aclChangesetsProcessed > 0);
+  /**
+   * Keeps what the seeded document tells about its node (and its details, when included), so that it is processed
+   * without fetching the node again
+   *
+   * @return the identifier of the document
+   */
+  private String seedDocument(SeededDocuments.Seeding seeding, Map<String, Object> doc) {
+    String uuid = doc.get(FIELD_UUID).toString();
+    boolean deleted = Boolean.TRUE.equals(doc.get(FIELD_DELETED));
+    // Without details (e.g. the node vanished meanwhile, or Alfresco does not embed them), they are fetched again
+    // while processing the document, which then tells whether the node still exists
+    Map<String, Object> details = includeDetails ? AlfrescoResponse.getDetails(doc) : null;
+    Object name = doc.get(FIELD_NAME);
+    SeededDocuments.Document seeded = new SeededDocuments.Document(doc.get(FIELD_TYPE).toString().intern(),
+        name == null ? null : name.toString(), deleted, getLong(doc, FIELD_VERSION), getLong(doc, FIELD_TXN_ID));
+    SeededDocuments.put(seeding, uuid, seeded, details);
+    return uuid;
+  }
 
-      logger.info("Recording {} as last transaction id and {} as last changeset id", lastTransactionId, lastAclChangesetId);
-      return lastTransactionId + "|" + lastAclChangesetId;
-    } catch (AlfrescoDownException e) {
-      throw new ManifoldCFException(e);
+  /**
+   * Jobs crawling the same repository with different specifications do not share their seeded documents
+   */
+  private String getSeedingScope(Specification spec) {
+    return repository + ConfigurationHandler.getSpecificationVersion(spec);
+  }
+
+  private static long getLong(Map<String, Object> doc, String field) {
+    Object value = doc.get(field);
+    return value == null ? 0L : Long.parseLong(value.toString());
+  }
+
+  private static boolean allDone(List<Future<?>> futures) {
+    for (Future<?> future : futures) {
+      if (!future.isDone()) {
+        return false;
+      }
     }
+    return true;
   }
 
 @Override
@@ -156,19 +393,40 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
                                IProcessActivity activities, DocumentSpecification spec,
                                boolean[] scanOnly, int jobMode) throws ManifoldCFException,
           ServiceInterruption {
+    List<PendingDocument> pendingDocuments = new ArrayList<PendingDocument>(documentIdentifiers.length);
 	int i = 0;  
     for (String doc : documentIdentifiers) {
     
       String nextVersion = versions[i++];	
+
+      // Documents still kept since their seeding are processed straight from it
+      SeededDocuments.Document seeded = SeededDocuments.remove(getSeedingScope(spec), doc);
+      if (seeded != null) {
+        logger.debug("Processing seeded Document with ID {}: {}", doc, seeded);
+        if (seeded.isDeleted()) {
+          activities.deleteDocument(doc);
+          continue;
+        }
+        RepositoryDocument rd = new RepositoryDocument();
+        String nodeRef = storeRef + doc;
+        rd.addField(FIELD_NODEREF, nodeRef);
+        rd.addField(FIELD_TYPE, seeded.getType());
+        if (seeded.getName() != null) {
+          rd.setFileName(seeded.getName());
+        }
+        pendingDocuments.add(new PendingDocument(doc, nextVersion, doc, nodeRef, rd, seeded.getDetails()));
+        continue;
+      }
     	
       // Calling again Alfresco API because Document's actions are lost from seeding method
       AlfrescoResponse response = alfrescoClient.fetchNode(doc);
-      if(response.getDocumentList().isEmpty()){ // Not found seeded document. Could reflect an error in Alfresco
+      List<Map<String, Object>> nodes = response.getDocumentList();
+      if(nodes.isEmpty()){ // Not found seeded document. Could reflect an error in Alfresco
     	  logger.error("Invalid Seeded Document from Alfresco with ID {}", doc);
     	  activities.noDocument(doc, nextVersion);
     	  continue;
       }
-      Map<String, Object> map = response.getDocumentList().get(0); // Should be only one
+      Map<String, Object> map = nodes.get(0); // Should be only one
       RepositoryDocument rd = new RepositoryDocument();
       String uuid = map.get(FIELD_UUID).toString();
       String nodeRef = map.get(FIELD_NODEREF).toString();
@@ -178,33 +436,98 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
       String name = map.get(FIELD_NAME).toString();
       rd.setFileName(name);
 
-      if ((Boolean) map.get("deleted")) {
+      if ((Boolean) map.get(FIELD_DELETED)) {
         activities.deleteDocument(uuid);
       } else {
-        if (this.enableDocumentProcessing) {
-          try{
-          	processMetaData(rd,uuid);
-          }catch(AlfrescoDownException e){
-        	  logger.error("Invalid Document from Alfresco with ID {}", uuid, e);
-        	  activities.noDocument(doc, nextVersion);
-        	  continue; // No Metadata, No Content....skip document
-          }
+        pendingDocuments.add(new PendingDocument(doc, nextVersion, uuid, nodeRef, rd, null));
+      }
+    }
+
+    if (pendingDocuments.isEmpty()) {
+      return;
+    }
+
+    // Details of the whole batch (but the ones seeded with them) are fetched in a single round trip
+    Map<String, Map<String, Object>> metadata = new HashMap<String, Map<String, Object>>();
+    if (this.enableDocumentProcessing) {
+      List<String> uuids = new ArrayList<String>(pendingDocuments.size());
+      for (PendingDocument pending : pendingDocuments) {
+        if (pending.details != null) {
+          metadata.put(pending.uuid, pending.details);
+        } else {
+          uuids.add(pending.uuid);
         }
+      }
+      if (!uuids.isEmpty()) {
         try {
-        	if(rd.getBinaryStream() == null){
-        		byte[] empty = new byte[0];
-        		rd.setBinary(new ByteInputStream(empty, 0), 0L);
-        	}
-        	logger.info("Ingesting with id: {}, URI {} and rd {}", uuid, nodeRef, rd.getFileName());
-			activities.ingestDocumentWithException(uuid, "", uuid, rd);
-		} catch (IOException e) {
-			throw new ManifoldCFException(
-					"Error Ingesting Document with ID " + String.valueOf(uuid), e);
-		}
+          metadata.putAll(alfrescoClient.fetchMetadataBatch(uuids));
+        } catch (AlfrescoDownException e) {
+          // Falls back to one round trip per document, so that only the failing ones are skipped
+          logger.warn("Could not fetch the metadata of Documents with IDs {} at once", uuids, e);
+          for (String uuid : uuids) {
+            try {
+              metadata.put(uuid, alfrescoClient.fetchMetadata(uuid));
+            } catch (AlfrescoDownException de) {
+              logger.error("Invalid Document from Alfresco with ID {}", uuid, de);
+            }
+          }
+        }
+      }
+    }
+
+    for (PendingDocument pending : pendingDocuments) {
+      String uuid = pending.uuid;
+      RepositoryDocument rd = pending.rd;
+      if (this.enableDocumentProcessing) {
+        Map<String, Object> properties = metadata.get(uuid);
+        if (properties == null) { // Removed from Alfresco since it was seeded, or its metadata failed
+          logger.error("Invalid Document from Alfresco with ID {}", uuid);
+          activities.noDocument(pending.doc, pending.version);
+          continue;
+        }
+        try{
+        	processMetaData(rd,properties);
+        }catch(AlfrescoDownException e){
+      	  logger.error("Invalid Document from Alfresco with ID {}", uuid, e);
+      	  closeBinary(rd);
+      	  activities.noDocument(pending.doc, pending.version);
+      	  continue; // No Metadata, No Content....skip document
+        }
+      }
+      if (rd.getFileName() == null) { // Seeded without its name
+        Object name = this.enableDocumentProcessing ? metadata.get(uuid).get(PROPERTY_NAME) : null;
+        rd.setFileName(name == null ? uuid : name.toString());
       }
+      try {
+      	if(rd.getBinaryStream() == null){
+      		byte[] empty = new byte[0];
+      		rd.setBinary(new ByteInputStream(empty, 0), 0L);
+      	}
+      	logger.info("Ingesting with id: {}, URI {} and rd {}", uuid, pending.nodeRef, rd.getFileName());
+		activities.ingestDocumentWithException(uuid, "", uuid, rd);
+	} catch (IOException e) {
+		throw new ManifoldCFException(
+				"Error Ingesting Document with ID " + String.valueOf(uuid), e);
+	} finally {
+		closeBinary(rd);
+	}
     }
   }
   
+  /**
+   * Closing the content stream hands the pooled HTTP connection back to the client
+   */
+  private void closeBinary(RepositoryDocument rd) {
+    InputStream binary = rd.getBinaryStream();
+    if (binary != null) {
+      try {
+        binary.close();
+      } catch (IOException e) {
+        logger.debug("Failed to close content stream", e);
+      }
+    }
+  }
+
   @Override
   public String[] getDocumentVersions(String[] documentIdentifiers, DocumentSpecification spec)
 		    throws ManifoldCFException, ServiceInterruption{
@@ -215,8 +538,7 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
   }
 
   private void processMetaData(RepositoryDocument rd,
-		  String uuid) throws ManifoldCFException, AlfrescoDownException {
-    Map<String,Object> properties = alfrescoClient.fetchMetadata(uuid);
+		  Map<String,Object> properties) throws ManifoldCFException, AlfrescoDownException {
     for(String property : properties.keySet()) {
       Object propertyValue = properties.get(property);
       rd.addField(property,propertyValue.toString());
@@ -294,5 +616,27 @@ public class AlfrescoConnector extends BaseRepositoryConnector {
 			  int connectionSequenceNumber) throws ManifoldCFException, IOException{
 	   ConfigurationHandler.viewSpecification(out, locale, os, connectionSequenceNumber);
    }
-  
+
+  /**
+   * A seeded document which still has to be ingested, once the details of its batch are fetched
+   */
+  private static final class PendingDocument {
+    final String doc;
+    final String version;
+    final String uuid;
+    final String nodeRef;
+    final RepositoryDocument rd;
+    // Embedded in the seeded document, null if they have to be fetched
+    final Map<String, Object> details;
+
+    PendingDocument(String doc, String version, String uuid, String nodeRef, RepositoryDocument rd,
+                    Map<String, Object> details) {
+      this.doc = doc;
+      this.version = version;
+      this.uuid = uuid;
+      this.nodeRef = nodeRef;
+      this.rd = rd;
+      this.details = details;
+    }
+  }
 }
@@ -35,8 +35,17 @@ public class ConfigurationHandler {
   private static final String PARAM_STORE_ID = "storeid";
   private static final String PARAM_USERNAME = "username";
   private static final String PARAM_PASSWORD = "password";
+  private static final String PARAM_MAX_CONNECTIONS = "maxconnections";
+  private static final String PARAM_SEED_PARTITIONS = "seedpartitions";
+  private static final String PARAM_INCLUDE_DETAILS = "includedetails";
+  public static final String PARAM_INCLUDE_SUBTYPES = "includesubtypes";
   
   // Output Specification for Filtering
+  /** Node describing a Type */
+  public static final String NODE_TYPE = "type";
+  /** Attribute describing a type name */
+  public static final String ATTRIBUTE_TYPE = "type_name";
+  
   /** Node describing a Site */
   public static final String NODE_SITE = "site";
   /** Attribute describing a site name */
@@ -61,6 +70,7 @@ public class ConfigurationHandler {
   
   public static final ImmutableMultimap<String, String> SPECIFICATION_MAP =
 	        ImmutableMultimap.<String, String>builder().
+	        put(NODE_TYPE, ATTRIBUTE_TYPE).
 	        put(NODE_SITE, ATTRIBUTE_SITE).
 	        put(NODE_MIMETYPE, ATTRIBUTE_MIMETYPE).
 	        put(NODE_ASPECT, ATTRIBUTE_ASPECT).
@@ -81,6 +91,11 @@ public class ConfigurationHandler {
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_STORE_ID, "SpacesStore");
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_USERNAME, "");
     DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_PASSWORD, "");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_MAX_CONNECTIONS, "20");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_SEED_PARTITIONS, "1");
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_INCLUDE_DETAILS, "false");
+    // Empty for Alfresco's default (indexer.changes.includeSubtypes)
+    DEFAULT_CONFIGURATION_PARAMETERS.put(PARAM_INCLUDE_SUBTYPES, "");
   }
   
   private static final Logger logger = LoggerFactory.getLogger(ConfigurationHandler.class);
@@ -137,6 +152,10 @@ public class ConfigurationHandler {
       throws ManifoldCFException {
     for (String paramName : DEFAULT_CONFIGURATION_PARAMETERS.keySet()) {
       String paramValue = variableContext.getParameter(paramName);
+      if (paramValue == null && PARAM_INCLUDE_DETAILS.equals(paramName)) {
+        // Unticked checkboxes are not posted (the other tabs post it as a hidden field)
+        paramValue = "false";
+      }
       if (paramValue != null) {
         parameters.setParameter(paramName, paramValue);
       }
@@ -454,7 +473,9 @@ public class ConfigurationHandler {
 		AlfrescoFilters filters = new AlfrescoFilters();
 		for(int i = 0; i < spec.getChildCount(); i++){
 			SpecificationNode node = spec.getChild(i);
-			if(node.getType().equals(NODE_SITE))
+			if(node.getType().equals(NODE_TYPE))
+				filters.addTypeFilter(node.getAttributeValue(ATTRIBUTE_TYPE));
+			else if(node.getType().equals(NODE_SITE))
 				filters.addSiteFilter(node.getAttributeValue(ATTRIBUTE_SITE));
 			else if(node.getType().equals(NODE_MIMETYPE))
 				filters.addMimetypeFilter(node.getAttributeValue(ATTRIBUTE_MIMETYPE));
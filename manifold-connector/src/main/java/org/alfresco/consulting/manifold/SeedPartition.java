@@ -0,0 +1,92 @@
+package org.alfresco.consulting.manifold;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.consulting.indexer.client.ChangesCursor;
+
+/**
+ * Range of the Alfresco transaction and ACL changeset logs crawled by one of the parallel workers of an initial
+ * crawl, along with the cursor it reached (its high-water mark).
+ *
+ * Partitioned seed versions are recorded as "cursor@toTxnId:toAclChangesetId" entries separated by ";".
+ */
+class SeedPartition {
+  private static final String PARTITION_SEPARATOR = ";";
+  private static final String BOUNDS_SEPARATOR = "@";
+  private static final String IDS_SEPARATOR = ":";
+
+  private final long toTransactionId;
+  private final long toAclChangesetId;
+  private volatile String cursor;
+
+  SeedPartition(String cursor, long toTransactionId, long toAclChangesetId) {
+    this.cursor = cursor;
+    this.toTransactionId = toTransactionId;
+    this.toAclChangesetId = toAclChangesetId;
+  }
+
+  /**
+   * Splits [1, headTransactionId] and [1, headAclChangesetId] in count partitions; when there are fewer ids than
+   * partitions, some of them are empty.
+   */
+  static List<SeedPartition> split(long headTransactionId, long headAclChangesetId, int count) {
+    List<SeedPartition> partitions = new ArrayList<SeedPartition>(count);
+    for (int i = 0; i < count; i++) {
+      long fromTransactionId = 1 + headTransactionId * i / count;
+      long fromAclChangesetId = 1 + headAclChangesetId * i / count;
+      String cursor = ChangesCursor.fromLastIds(fromTransactionId - 1, fromAclChangesetId - 1);
+      partitions.add(new SeedPartition(cursor, headTransactionId * (i + 1) / count,
+          headAclChangesetId * (i + 1) / count));
+    }
+    return partitions;
+  }
+
+  static boolean isPartitioned(String seedVersion) {
+    return seedVersion != null && seedVersion.contains(BOUNDS_SEPARATOR);
+  }
+
+  static List<SeedPartition> parse(String seedVersion) {
+    List<SeedPartition> partitions = new ArrayList<SeedPartition>();
+    for (String partition : seedVersion.split(PARTITION_SEPARATOR)) {
+      int bounds = partition.lastIndexOf(BOUNDS_SEPARATOR);
+      String[] ids = partition.substring(bounds + 1).split(IDS_SEPARATOR);
+      partitions.add(new SeedPartition(partition.substring(0, bounds), Long.parseLong(ids[0]),
+          Long.parseLong(ids[1])));
+    }
+    return partitions;
+  }
+
+  static String format(List<SeedPartition> partitions) {
+    StringBuilder seedVersion = new StringBuilder();
+    for (SeedPartition partition : partitions) {
+      if (seedVersion.length() > 0) {
+        seedVersion.append(PARTITION_SEPARATOR);
+      }
+      seedVersion.append(partition.cursor).append(BOUNDS_SEPARATOR).append(partition.toTransactionId)
+          .append(IDS_SEPARATOR).append(partition.toAclChangesetId);
+    }
+    return seedVersion.toString();
+  }
+
+  long getToTransactionId() {
+    return toTransactionId;
+  }
+
+  long getToAclChangesetId() {
+    return toAclChangesetId;
+  }
+
+  String getCursor() {
+    return cursor;
+  }
+
+  void setCursor(String cursor) {
+    this.cursor = cursor;
+  }
+
+  @Override
+  public String toString() {
+    return cursor + BOUNDS_SEPARATOR + toTransactionId + IDS_SEPARATOR + toAclChangesetId;
+  }
+}
@@ -0,0 +1,195 @@
+package org.alfresco.consulting.manifold;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps what the seeding learned about the documents (type, name, deleted flag, node version and transaction, and
+ * the details embedded in them, if any) until they are processed; they are then processed without asking Alfresco
+ * about them again, but for the metadata and content still missing.
+ *
+ * Seeding and processing run in the same JVM, though not necessarily through the same connector instance, so the
+ * documents are kept in a store shared by all of them. The documents are scoped by repository and job
+ * specification, so that jobs crawling the same repository with different filters never share them, and by
+ * seeding: once a seeding starts, the documents of the previous seedings of its scope are dropped. The store is
+ * bounded, evicting the documents seeded first; details are bulkier, so fewer of them are kept. Documents evicted
+ * (or seeded by another process) are fetched from Alfresco as usual.
+ */
+class SeededDocuments {
+  private static final int MAX_DOCUMENTS = 100000;
+  private static final int MAX_DETAILS = 10000;
+
+  private static final Map<String, Document> documents = new BoundedMap<Document>(MAX_DOCUMENTS);
+  private static final Map<String, Map<String, Object>> details = new BoundedMap<Map<String, Object>>(MAX_DETAILS);
+  // Current seeding of each scope
+  private static final Map<String, Seeding> seedings = new HashMap<String, Seeding>();
+
+  private SeededDocuments() {
+  }
+
+  /**
+   * Starts a seeding, dropping the documents kept from the previous seedings of the same scope
+   *
+   * @param scope
+   *         identifies the Alfresco repository and the job specification the documents are seeded with
+   * @param seedTime
+   *         start time of the seeding
+   * @return the seeding to keep the documents of
+   */
+  static synchronized Seeding startSeeding(String scope, long seedTime) {
+    Seeding current = seedings.get(scope);
+    if (current != null && current.seedTime >= seedTime) {
+      return current;
+    }
+    Seeding seeding = new Seeding(scope, seedTime);
+    seedings.put(scope, seeding);
+    if (current != null) {
+      Iterator<Map.Entry<String, Document>> entries = documents.entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<String, Document> entry = entries.next();
+        if (entry.getValue().seeding.isBefore(seeding)) {
+          entries.remove();
+          details.remove(entry.getKey());
+        }
+      }
+    }
+    return seeding;
+  }
+
+  /**
+   * Keeps a seeded document, unless a later change of the same node has been seeded already (the partitions
+   * of the logs are seeded in parallel, so the changes of a node are not always seeded in order)
+   *
+   * @param nodeDetails
+   *         the details embedded in the document, null if not included
+   */
+  static synchronized void put(Seeding seeding, String uuid, Document document, Map<String, Object> nodeDetails) {
+    if (seeding != seedings.get(seeding.scope)) { // A later seeding started meanwhile
+      return;
+    }
+    String key = seeding.scope + uuid;
+    Document seeded = documents.get(key);
+    if (seeded != null && seeded.seeding == seeding && seeded.isAfter(document)) {
+      return;
+    }
+    document.seeding = seeding;
+    documents.put(key, document);
+    if (nodeDetails != null) {
+      details.put(key, nodeDetails);
+    } else {
+      details.remove(key);
+    }
+  }
+
+  /**
+   * @param scope
+   *         the scope the document has been seeded in, see {@link #startSeeding(String, long)}
+   * @return the document seeded last by the current seeding of the scope, null if it is not kept (anymore)
+   */
+  static synchronized Document remove(String scope, String uuid) {
+    String key = scope + uuid;
+    Document document = documents.remove(key);
+    Map<String, Object> nodeDetails = details.remove(key);
+    if (document == null || document.seeding != seedings.get(scope)) {
+      return null;
+    }
+    if (nodeDetails != null) {
+      document.details = nodeDetails;
+    }
+    return document;
+  }
+
+  static class Seeding {
+    private final String scope;
+    private final long seedTime;
+
+    private Seeding(String scope, long seedTime) {
+      this.scope = scope;
+      this.seedTime = seedTime;
+    }
+
+    private boolean isBefore(Seeding other) {
+      return scope.equals(other.scope) && seedTime < other.seedTime;
+    }
+  }
+
+  static class Document {
+    private final String type;
+    private final String name;
+    private final boolean deleted;
+    private final long version;
+    private final long transactionId;
+    private Seeding seeding;
+    private Map<String, Object> details;
+
+    /**
+     * @param name
+     *         name of the node, null if unknown
+     * @param version
+     *         version of the node, 0 if unknown
+     * @param transactionId
+     *         last transaction of the node, 0 if unknown
+     */
+    Document(String type, String name, boolean deleted, long version, long transactionId) {
+      this.type = type;
+      this.name = name;
+      this.deleted = deleted;
+      this.version = version;
+      this.transactionId = transactionId;
+    }
+
+    String getType() {
+      return type;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    boolean isDeleted() {
+      return deleted;
+    }
+
+    long getVersion() {
+      return version;
+    }
+
+    long getTransactionId() {
+      return transactionId;
+    }
+
+    /**
+     * @return the details embedded in the seeded document, null if not included or not kept
+     */
+    Map<String, Object> getDetails() {
+      return details;
+    }
+
+    private boolean isAfter(Document other) {
+      return transactionId > other.transactionId
+          || (transactionId == other.transactionId && version > other.version);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Document [type=%s, name=%s, deleted=%s, version=%d, txnId=%d]", type, name, deleted,
+          version, transactionId);
+    }
+  }
+
+  private static class BoundedMap<V> extends LinkedHashMap<String, V> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+
+    BoundedMap(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+      return size() > maxSize;
+    }
+  }
+}
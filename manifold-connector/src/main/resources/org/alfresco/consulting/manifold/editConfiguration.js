@@ -35,6 +35,18 @@ function checkConfigForSave() {
 		editconnection.storeid.focus();
 		return false;
 	}
+	if (editconnection.maxconnections.value == "" || isNaN(parseInt(editconnection.maxconnections.value)) || parseInt(editconnection.maxconnections.value) < 1) {
+		alert("Max connections must be a positive number!");
+		SelectTab("Server");
+		editconnection.maxconnections.focus();
+		return false;
+	}
+	if (editconnection.seedpartitions.value == "" || isNaN(parseInt(editconnection.seedpartitions.value)) || parseInt(editconnection.seedpartitions.value) < 1) {
+		alert("Seed partitions must be a positive number!");
+		SelectTab("Server");
+		editconnection.seedpartitions.focus();
+		return false;
+	}
 	return true;
 }
 // -->
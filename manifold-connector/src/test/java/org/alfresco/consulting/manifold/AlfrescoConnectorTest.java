@@ -1,15 +1,16 @@
 package org.alfresco.consulting.manifold;
 
-import com.google.gson.Gson;
-
 import org.alfresco.consulting.indexer.client.AlfrescoClient;
+import org.alfresco.consulting.indexer.client.AlfrescoDownException;
 import org.alfresco.consulting.indexer.client.AlfrescoFilters;
 import org.alfresco.consulting.indexer.client.AlfrescoResponse;
+import org.alfresco.consulting.indexer.client.ChangesCursor;
 import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
-import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
 import org.apache.manifoldcf.crawler.interfaces.DocumentSpecification;
 import org.apache.manifoldcf.crawler.interfaces.IProcessActivity;
-import org.apache.manifoldcf.crawler.system.SeedingActivity;
+import org.apache.manifoldcf.crawler.interfaces.ISeedingActivity;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -19,140 +20,343 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import java.util.*;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class AlfrescoConnectorTest {
-  private final Gson gson = new Gson();
+  private static final String NODEREF_PREFIX = "workspace://SpacesStore/";
+
+  // Each test seeds in a later seeding than the previous ones, which drops the documents they kept
+  private static long seedTime = System.currentTimeMillis();
 
   @Mock
   private AlfrescoClient client;
   private AlfrescoConnector connector;
+  private DocumentSpecification spec;
 
   @Before
   public void setup() throws Exception {
-    connector = new AlfrescoConnector();
+    connector = connect(new ConfigParams());
+    spec = new DocumentSpecification();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    connector.disconnect();
+  }
+
+  private AlfrescoConnector connect(ConfigParams config) {
+    AlfrescoConnector connector = new AlfrescoConnector();
+    connector.connect(config);
     connector.setClient(client);
+    return connector;
+  }
+
+  private String addSeedDocuments(ISeedingActivity activities, String lastSeedVersion) throws Exception {
+    return connector.addSeedDocuments(activities, spec, lastSeedVersion, ++seedTime, 0);
+  }
 
-    when(client.fetchNodes(anyInt(), anyInt(), new AlfrescoFilters()))
-            .thenReturn(new AlfrescoResponse(
-                    0, 0, "", "", Collections.<Map<String, Object>>emptyList()));
+  @Test
+  public void whenAddingSeedDocumentsTheRecordedCursorShouldBeFollowed() throws Exception {
+    TestDocument testDocument = new TestDocument();
+    when(client.fetchNodes(eq("5|7"), any(AlfrescoFilters.class)))
+            .thenReturn(changes("8:0:9:0", testDocument));
+    when(client.fetchNodes(eq("8:0:9:0"), any(AlfrescoFilters.class)))
+            .thenReturn(changes("8:0:9:0"));
+
+    ISeedingActivity activities = mock(ISeedingActivity.class);
+    String seedVersion = addSeedDocuments(activities, "5|7");
+
+    assertEquals("8:0:9:0", seedVersion);
+    verify(activities).addSeedDocument(eq(TestDocument.uuid));
+    verify(client, never()).fetchNodes(anyLong(), anyLong(), any(AlfrescoFilters.class));
   }
 
   @Test
-  public void whenAddingSeedDocumentTheAlfrescoClientShouldBeUsed() throws Exception {
-    SeedingActivity activities = mock(SeedingActivity.class);
-    DocumentSpecification spec = new DocumentSpecification();
-    long startTime = 1;
-    long endTime = 3;
+  public void whenNoSeedVersionIsRecordedTheSnapshotShouldBeSeeded() throws Exception {
+    TestDocument testDocument = new TestDocument();
+    AlfrescoResponse firstPage = snapshot(42, "41:0:21:0", testDocument);
+    AlfrescoResponse lastPage = snapshot(42, "45:0:22:0");
+    when(client.fetchSnapshot(eq(0L), any(AlfrescoFilters.class))).thenReturn(firstPage);
+    when(client.fetchSnapshot(eq(42L), any(AlfrescoFilters.class))).thenReturn(lastPage);
 
-    connector.addSeedDocuments(activities, spec, startTime, endTime);
+    ISeedingActivity activities = mock(ISeedingActivity.class);
+    String seedVersion = addSeedDocuments(activities, null);
 
-    verify(client).fetchNodes(anyInt(), anyInt(), new AlfrescoFilters());
+    // The changes are followed from the heads of the logs when the snapshot started
+    assertEquals("41:0:21:0", seedVersion);
+    verify(activities).addSeedDocument(eq(TestDocument.uuid));
+    verify(client, never()).fetchNodes(anyString(), any(AlfrescoFilters.class));
+    verify(firstPage).close();
+    verify(lastPage).close();
   }
 
   @Test
-  public void whenTheClientIsCalledItShouldUseThePreviouslySentLastTransactionId() throws
-          Exception {
-    long firstTransactionId = 0;
-    long lastTransactionId = 5;
-    long firstAclChangesetId = 0;
-    long lastAclChangesetId = 5;
+  public void whenSeedingInPartitionsTheyShouldBeCrawledUpToTheHeads() throws Exception {
+    connector = partitionedConnector();
+    TestDocument firstDocument = new TestDocument();
+    TestDocument lastDocument = new TestDocument();
+    lastDocument.put("uuid", "def456");
+    when(client.fetchNodes(eq(ChangesCursor.INITIAL), eq(0L), eq(0L), any(AlfrescoFilters.class)))
+            .thenReturn(heads(10, 4));
+    when(client.fetchNodes(eq("0|0"), eq(5L), eq(2L), any(AlfrescoFilters.class)))
+            .thenReturn(changes("6:0:3:0", firstDocument));
+    when(client.fetchNodes(eq("6:0:3:0"), eq(5L), eq(2L), any(AlfrescoFilters.class)))
+            .thenReturn(changes("6:0:3:0"));
+    when(client.fetchNodes(eq("5|2"), eq(10L), eq(4L), any(AlfrescoFilters.class)))
+            .thenReturn(changes("11:0:5:0", lastDocument));
+    when(client.fetchNodes(eq("11:0:5:0"), eq(10L), eq(4L), any(AlfrescoFilters.class)))
+            .thenReturn(changes("11:0:5:0"));
 
-    when(client.fetchNodes(anyInt(), anyInt(), new AlfrescoFilters()))
-            .thenReturn(new AlfrescoResponse(
-                    lastTransactionId, lastAclChangesetId));
+    ISeedingActivity activities = mock(ISeedingActivity.class);
+    String seedVersion = addSeedDocuments(activities, null);
+
+    // The changes are followed from the end of the last partition
+    assertEquals("11:0:5:0", seedVersion);
+    verify(activities).addSeedDocument(eq(TestDocument.uuid));
+    verify(activities).addSeedDocument(eq("def456"));
+    verify(client, never()).fetchSnapshot(anyLong(), any(AlfrescoFilters.class));
+  }
+
+  @Test
+  public void whenAPartitionFailsTheSeedingShouldResumeFromTheCursorsReached() throws Exception {
+    connector = partitionedConnector();
+    when(client.fetchNodes(eq(ChangesCursor.INITIAL), eq(0L), eq(0L), any(AlfrescoFilters.class)))
+            .thenReturn(heads(10, 4));
+    when(client.fetchNodes(eq("0|0"), eq(5L), eq(2L), any(AlfrescoFilters.class)))
+            .thenThrow(new AlfrescoDownException("down"))
+            .thenReturn(changes("6:0:3:0"));
+    when(client.fetchNodes(eq("6:0:3:0"), eq(5L), eq(2L), any(AlfrescoFilters.class)))
+            .thenReturn(changes("6:0:3:0"));
+    when(client.fetchNodes(eq("5|2"), eq(10L), eq(4L), any(AlfrescoFilters.class)))
+            .thenReturn(changes("11:0:5:0", new TestDocument()));
+    when(client.fetchNodes(eq("11:0:5:0"), eq(10L), eq(4L), any(AlfrescoFilters.class)))
+            .thenReturn(changes("11:0:5:0"));
 
-    connector.addSeedDocuments(mock(SeedingActivity.class),
-            new DocumentSpecification(), 0, 0);
-    verify(client, times(1)).fetchNodes(eq(firstTransactionId), eq(firstAclChangesetId), new AlfrescoFilters());
+    String seedVersion = addSeedDocuments(mock(ISeedingActivity.class), null);
+    assertEquals("0|0@5:2;11:0:5:0@10:4", seedVersion);
 
-    verify(client, times(1)).fetchNodes(eq(lastTransactionId), eq(lastAclChangesetId), new AlfrescoFilters());
+    // Only the failed partition is crawled again, the other one resumes from its end
+    seedVersion = addSeedDocuments(mock(ISeedingActivity.class), seedVersion);
+    assertEquals("11:0:5:0", seedVersion);
+    verify(client, times(1)).fetchNodes(eq("5|2"), eq(10L), eq(4L), any(AlfrescoFilters.class));
+    verify(client, times(2)).fetchNodes(eq("11:0:5:0"), eq(10L), eq(4L), any(AlfrescoFilters.class));
+    verify(client, times(1)).fetchNodes(eq(ChangesCursor.INITIAL), eq(0L), eq(0L), any(AlfrescoFilters.class));
   }
 
-  @SuppressWarnings("unchecked")
   @Test
-  public void whenADocumentIsReturnedItShouldBeAddedToManifold() throws Exception {
+  public void whenTheConnectionLimitsAreInvalidTheConnectorShouldStillConnect() throws Exception {
+    connector.disconnect();
+    ConfigParams config = new ConfigParams();
+    config.setParameter("maxconnections", "0");
+    config.setParameter("seedpartitions", "many");
+    connector = connect(config);
+
+    connector.disconnect();
+    config.setParameter("maxconnections", "twenty");
+    config.setParameter("seedpartitions", "-2");
+    connector = connect(config);
+  }
+
+  private AlfrescoConnector partitionedConnector() throws Exception {
+    connector.disconnect();
+    ConfigParams config = new ConfigParams();
+    config.setParameter("seedpartitions", "2");
+    return connect(config);
+  }
+
+  @Test
+  public void whenProcessingASeededDocumentItShouldNotBeFetchedAgain() throws Exception {
+    when(client.fetchNodes(eq(ChangesCursor.INITIAL), any(AlfrescoFilters.class)))
+            .thenReturn(changes("1:0:1:0", new TestDocument()));
+    when(client.fetchNodes(eq("1:0:1:0"), any(AlfrescoFilters.class)))
+            .thenReturn(changes("1:0:1:0"));
+    addSeedDocuments(mock(ISeedingActivity.class), ChangesCursor.INITIAL);
+
+    IProcessActivity activities = mock(IProcessActivity.class);
+    processDocument(activities, TestDocument.uuid);
+
+    RepositoryDocument rd = captureIngested(activities);
+    assertEquals(NODEREF_PREFIX + TestDocument.uuid, rd.getField("nodeRef")[0]);
+    assertEquals(TestDocument.type, rd.getField("type")[0]);
+    assertEquals(TestDocument.name, rd.getFileName());
+    verify(client, never()).fetchNode(anyString());
+
+    // Processed once from the seeding, fetched from Alfresco afterwards
+    when(client.fetchNode(TestDocument.uuid)).thenReturn(node(new TestDocument()));
+    processDocument(mock(IProcessActivity.class), TestDocument.uuid);
+    verify(client).fetchNode(TestDocument.uuid);
+  }
+
+  @Test
+  public void whenProcessingASeededDeletionItShouldBeRegisteredWithoutFetchingIt() throws Exception {
     TestDocument testDocument = new TestDocument();
-    when(client.fetchNodes(anyInt(), anyInt(), new AlfrescoFilters()))
-            .thenReturn(new AlfrescoResponse(0, 0, "", "",
-                    Arrays.<Map<String, Object>>asList(testDocument)));
+    testDocument.setDeleted(true);
+    when(client.fetchNodes(eq(ChangesCursor.INITIAL), any(AlfrescoFilters.class)))
+            .thenReturn(changes("1:0:1:0", testDocument));
+    when(client.fetchNodes(eq("1:0:1:0"), any(AlfrescoFilters.class)))
+            .thenReturn(changes("1:0:1:0"));
+    addSeedDocuments(mock(ISeedingActivity.class), ChangesCursor.INITIAL);
 
-    SeedingActivity seedingActivity = mock(SeedingActivity.class);
-    connector.addSeedDocuments(seedingActivity, new DocumentSpecification(), 0, 0);
+    IProcessActivity activities = mock(IProcessActivity.class);
+    processDocument(activities, TestDocument.uuid);
 
-    String json = gson.toJson(testDocument);
-    verify(seedingActivity).addSeedDocument(eq(json));
+    verify(activities).deleteDocument(eq(TestDocument.uuid));
+    verify(activities, never()).ingestDocumentWithException(anyString(), anyString(), anyString(),
+            any(RepositoryDocument.class));
+    verify(client, never()).fetchNode(anyString());
   }
 
   @Test
-  public void whenProcessingDocumentsNodeRefsAreUsedAsDocumentURI() throws Exception {
+  public void whenDetailsAreSeededTheyShouldBeIngestedWithoutFetchingThem() throws Exception {
+    connector.disconnect();
+    ConfigParams config = new ConfigParams();
+    config.setParameter("includedetails", "true");
+    config.setParameter("enabledocumentprocessing", "true");
+    connector = connect(config);
+
+    Map<String, Object> details = new HashMap<String, Object>();
+    details.put("cm:title", "A");
+    details.put("readableAuthorities", new ArrayList<String>(Arrays.asList("GROUP_EVERYONE")));
     TestDocument testDocument = new TestDocument();
-    String json = gson.toJson(testDocument);
+    testDocument.put(AlfrescoResponse.DETAILS, details);
+    when(client.fetchNodes(eq(ChangesCursor.INITIAL), any(AlfrescoFilters.class)))
+            .thenReturn(changes("1:0:1:0", testDocument));
+    when(client.fetchNodes(eq("1:0:1:0"), any(AlfrescoFilters.class)))
+            .thenReturn(changes("1:0:1:0"));
+    addSeedDocuments(mock(ISeedingActivity.class), ChangesCursor.INITIAL);
+
     IProcessActivity activities = mock(IProcessActivity.class);
-    connector.processDocuments(new String[]{json}, null, activities, null, null, 0);
+    processDocument(activities, TestDocument.uuid);
 
-    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
-    verify(activities)
-            .ingestDocumentWithException(eq(TestDocument.uuid), anyString(),
-                    eq(TestDocument.uuid), rd.capture());
-
-    Iterator<String> i = rd.getValue().getFields();
-    while(i.hasNext()) {
-      String fieldName = i.next();
-      Object value1 = rd.getValue().getField(fieldName)[0];
-      Object value2 = testDocument.getRepositoryDocument().getField(fieldName)[0];
-      assert value1.equals(value2);
-    }
+    RepositoryDocument rd = captureIngested(activities);
+    assertEquals("A", rd.getField("cm:title")[0]);
+    verify(client, never()).fetchNode(anyString());
+    verify(client, never()).fetchMetadataBatch(anyCollectionOf(String.class));
+    verify(client, never()).fetchMetadata(anyString());
+  }
+
+  @Test
+  public void whenDetailsAreMissingFromASeededDocumentTheyShouldBeFetchedInsteadOfDeletingIt() throws Exception {
+    connector.disconnect();
+    ConfigParams config = new ConfigParams();
+    config.setParameter("includedetails", "true");
+    config.setParameter("enabledocumentprocessing", "true");
+    connector = connect(config);
+
+    when(client.fetchNodes(eq(ChangesCursor.INITIAL), any(AlfrescoFilters.class)))
+            .thenReturn(changes("1:0:1:0", new TestDocument()));
+    when(client.fetchNodes(eq("1:0:1:0"), any(AlfrescoFilters.class)))
+            .thenReturn(changes("1:0:1:0"));
+    Map<String, Object> details = new HashMap<String, Object>();
+    details.put("cm:title", "A");
+    details.put("readableAuthorities", new ArrayList<String>(Arrays.asList("GROUP_EVERYONE")));
+    when(client.fetchMetadataBatch(anyCollectionOf(String.class)))
+            .thenReturn(Collections.<String, Map<String, Object>>singletonMap(TestDocument.uuid, details));
+    addSeedDocuments(mock(ISeedingActivity.class), ChangesCursor.INITIAL);
+
+    IProcessActivity activities = mock(IProcessActivity.class);
+    processDocument(activities, TestDocument.uuid);
+
+    RepositoryDocument rd = captureIngested(activities);
+    assertEquals("A", rd.getField("cm:title")[0]);
+    verify(activities, never()).deleteDocument(anyString());
+    verify(client, never()).fetchNode(anyString());
+  }
+
+  @Test
+  public void whenProcessingDocumentsNotSeededTheyShouldBeFetched() throws Exception {
+    when(client.fetchNode(TestDocument.uuid)).thenReturn(node(new TestDocument()));
+
+    IProcessActivity activities = mock(IProcessActivity.class);
+    processDocument(activities, TestDocument.uuid);
+
+    RepositoryDocument rd = captureIngested(activities);
+    assertEquals(NODEREF_PREFIX + TestDocument.uuid, rd.getField("nodeRef")[0]);
+    assertEquals(TestDocument.name, rd.getFileName());
   }
 
   @Test
   public void whenProcessingDeletionShouldBeRegisteredAsDeletions() throws Exception {
     TestDocument testDocument = new TestDocument();
     testDocument.setDeleted(true);
+    when(client.fetchNode(TestDocument.uuid)).thenReturn(node(testDocument));
 
-    String json = gson.toJson(testDocument);
     IProcessActivity activities = mock(IProcessActivity.class);
-    connector.processDocuments(new String[]{json}, null, activities, null, null, 0);
+    processDocument(activities, TestDocument.uuid);
 
     verify(activities).deleteDocument(eq(TestDocument.uuid));
-    verify(activities, never()).ingestDocumentWithException(eq(TestDocument.uuid), anyString(), anyString(),
+    verify(activities, never()).ingestDocumentWithException(anyString(), anyString(), anyString(),
             any(RepositoryDocument.class));
+  }
 
+  @Test
+  public void whenReconnectingThePreviousClientShouldBeClosed() throws Exception {
+    connector.connect(new ConfigParams());
+
+    verify(client).close();
+  }
+
+  private void processDocument(IProcessActivity activities, String uuid) throws Exception {
+    connector.processDocuments(new String[]{uuid}, new String[]{uuid}, activities, spec, new boolean[]{false}, 0);
+  }
+
+  private static RepositoryDocument captureIngested(IProcessActivity activities) throws Exception {
+    ArgumentCaptor<RepositoryDocument> rd = ArgumentCaptor.forClass(RepositoryDocument.class);
+    verify(activities).ingestDocumentWithException(eq(TestDocument.uuid), anyString(), eq(TestDocument.uuid),
+            rd.capture());
+    return rd.getValue();
+  }
+
+  private static AlfrescoResponse changes(String cursor, Map<String, Object>... documents) {
+    return new AlfrescoResponse(0, 0, cursor, "", "", Arrays.<Map<String, Object>>asList(documents));
+  }
+
+  private static AlfrescoResponse node(Map<String, Object> document) {
+    return new AlfrescoResponse(0, 0, "", "", Arrays.<Map<String, Object>>asList(document));
+  }
+
+  private static AlfrescoResponse heads(long headTransactionId, long headAclChangesetId) {
+    AlfrescoResponse response = mock(AlfrescoResponse.class);
+    when(response.getHeadTransactionId()).thenReturn(headTransactionId);
+    when(response.getHeadAclChangesetId()).thenReturn(headAclChangesetId);
+    return response;
+  }
+
+  private static AlfrescoResponse snapshot(long lastNodeId, String cursor, Map<String, Object>... documents) {
+    AlfrescoResponse response = mock(AlfrescoResponse.class);
+    when(response.getDocuments()).thenReturn(Arrays.<Map<String, Object>>asList(documents));
+    when(response.getLastNodeId()).thenReturn(lastNodeId);
+    when(response.getCursor()).thenReturn(cursor);
+    return response;
   }
 
   @SuppressWarnings("serial")
-  private class TestDocument extends HashMap<String, Object> {
+  private static class TestDocument extends HashMap<String, Object> {
     static final String uuid = "abc123";
     static final String type = "cm:content";
+    static final String name = "abc123.txt";
     static final boolean deleted = false;
-    static final String storeId = "SpacesStore";
-    static final String storeProtocol = "workspace";
 
     public TestDocument() {
       super();
       put("uuid", uuid);
+      put("nodeRef", NODEREF_PREFIX + uuid);
       put("type", type);
+      put("name", name);
       put("deleted", deleted);
-      put("store_id", storeId);
-      put("store_protocol", storeProtocol);
+      put("version", "1");
+      put("txnId", "1");
     }
 
     public void setDeleted(boolean deleted) {
       put("deleted", deleted);
     }
-
-    public RepositoryDocument getRepositoryDocument() throws ManifoldCFException {
-      RepositoryDocument rd = new RepositoryDocument();
-      rd.setFileName(uuid);
-      for(String property : keySet()) {
-        rd.addField(property,get(property).toString());
-      }
-      return rd;
-    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,35 @@
+package org.alfresco.consulting.manifold;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
+import org.apache.manifoldcf.core.interfaces.IPostParameters;
+import org.junit.Test;
+
+public class ConfigurationHandlerTest {
+
+  @Test
+  public void whenIncludeDetailsIsTickedItShouldBeEnabled() throws Exception {
+    IPostParameters post = mock(IPostParameters.class);
+    when(post.getParameter("includedetails")).thenReturn("true");
+    ConfigParams parameters = new ConfigParams();
+
+    ConfigurationHandler.processConfigurationPost(null, post, null, parameters);
+
+    assertEquals("true", parameters.getParameter("includedetails"));
+  }
+
+  @Test
+  public void whenIncludeDetailsIsUntickedItShouldBeDisabled() throws Exception {
+    ConfigParams parameters = new ConfigParams();
+    parameters.setParameter("includedetails", "true");
+    parameters.setParameter("hostname", "alfresco");
+
+    ConfigurationHandler.processConfigurationPost(null, mock(IPostParameters.class), null, parameters);
+
+    assertEquals("false", parameters.getParameter("includedetails"));
+    assertEquals("alfresco", parameters.getParameter("hostname"));
+  }
+}
@@ -0,0 +1,74 @@
+package org.alfresco.consulting.manifold;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.alfresco.consulting.indexer.client.ChangesCursor;
+import org.junit.Test;
+
+public class SeedPartitionTest {
+
+  @Test
+  public void whenTheLogsAreSplitThePartitionsShouldCoverThemWithoutOverlapping() {
+    long[][] heads = { { 10, 7 }, { 100, 3 }, { 1, 0 }, { 1001, 999 } };
+    int[] counts = { 1, 3, 4, 7 };
+    for (long[] head : heads) {
+      for (int count : counts) {
+        List<SeedPartition> partitions = SeedPartition.split(head[0], head[1], count);
+        assertEquals(count, partitions.size());
+        long lastTransactionId = 0;
+        long lastAclChangesetId = 0;
+        for (SeedPartition partition : partitions) {
+          // Each partition starts right after the end of the previous one
+          assertEquals(ChangesCursor.fromLastIds(lastTransactionId, lastAclChangesetId), partition.getCursor());
+          assertTrue(partition.getToTransactionId() >= lastTransactionId);
+          assertTrue(partition.getToAclChangesetId() >= lastAclChangesetId);
+          lastTransactionId = partition.getToTransactionId();
+          lastAclChangesetId = partition.getToAclChangesetId();
+        }
+        assertEquals(head[0], lastTransactionId);
+        assertEquals(head[1], lastAclChangesetId);
+      }
+    }
+  }
+
+  @Test
+  public void whenTheLogsAreSplitEvenlyThePartitionsShouldHaveTheSameSize() {
+    List<SeedPartition> partitions = SeedPartition.split(9, 6, 3);
+
+    assertEquals("0|0", partitions.get(0).getCursor());
+    assertEquals(3, partitions.get(0).getToTransactionId());
+    assertEquals(2, partitions.get(0).getToAclChangesetId());
+    assertEquals("3|2", partitions.get(1).getCursor());
+    assertEquals(6, partitions.get(1).getToTransactionId());
+    assertEquals(4, partitions.get(1).getToAclChangesetId());
+    assertEquals("6|4", partitions.get(2).getCursor());
+    assertEquals(9, partitions.get(2).getToTransactionId());
+    assertEquals(6, partitions.get(2).getToAclChangesetId());
+  }
+
+  @Test
+  public void whenPartitionsAreRecordedTheyShouldResumeFromTheCursorsReached() {
+    List<SeedPartition> partitions = SeedPartition.split(100, 50, 2);
+    partitions.get(0).setCursor("20:7:10:0");
+    String seedVersion = SeedPartition.format(partitions);
+
+    assertTrue(SeedPartition.isPartitioned(seedVersion));
+    assertFalse(SeedPartition.isPartitioned("20:7:10:0"));
+    assertFalse(SeedPartition.isPartitioned("20|10"));
+    assertFalse(SeedPartition.isPartitioned(null));
+
+    List<SeedPartition> resumed = SeedPartition.parse(seedVersion);
+    assertEquals(2, resumed.size());
+    assertEquals("20:7:10:0", resumed.get(0).getCursor());
+    assertEquals(50, resumed.get(0).getToTransactionId());
+    assertEquals(25, resumed.get(0).getToAclChangesetId());
+    assertEquals("50|25", resumed.get(1).getCursor());
+    assertEquals(100, resumed.get(1).getToTransactionId());
+    assertEquals(50, resumed.get(1).getToAclChangesetId());
+    assertEquals(seedVersion, SeedPartition.format(resumed));
+  }
+}
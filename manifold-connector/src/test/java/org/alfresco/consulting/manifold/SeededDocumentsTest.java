@@ -0,0 +1,94 @@
+package org.alfresco.consulting.manifold;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SeededDocumentsTest {
+  private static final String UUID = "abc123";
+
+  @Test
+  public void whenADocumentIsSeededItShouldBeRemovedOnce() {
+    String scope = "whenADocumentIsSeededItShouldBeRemovedOnce";
+    SeededDocuments.Seeding seeding = SeededDocuments.startSeeding(scope, 1);
+    Map<String, Object> details = Collections.<String, Object>singletonMap("cm:name", "a.txt");
+    SeededDocuments.put(seeding, UUID, document(false, 1, 10), details);
+
+    SeededDocuments.Document seeded = SeededDocuments.remove(scope, UUID);
+    assertNotNull(seeded);
+    assertEquals("cm:content", seeded.getType());
+    assertEquals("a.txt", seeded.getName());
+    assertFalse(seeded.isDeleted());
+    assertEquals(details, seeded.getDetails());
+    assertNull(SeededDocuments.remove(scope, UUID));
+  }
+
+  @Test
+  public void whenDocumentsAreSeededInAnotherScopeTheyShouldNotBeShared() {
+    String scope = "whenDocumentsAreSeededInAnotherScopeTheyShouldNotBeShared";
+    SeededDocuments.put(SeededDocuments.startSeeding(scope + "-a", 1), UUID, document(false, 1, 10), null);
+    SeededDocuments.startSeeding(scope + "-b", 1);
+
+    assertNull(SeededDocuments.remove(scope + "-b", UUID));
+    assertNotNull(SeededDocuments.remove(scope + "-a", UUID));
+  }
+
+  @Test
+  public void whenALaterSeedingStartsTheDocumentsOfThePreviousOneShouldBeDropped() {
+    String scope = "whenALaterSeedingStartsTheDocumentsOfThePreviousOneShouldBeDropped";
+    SeededDocuments.Seeding previous = SeededDocuments.startSeeding(scope, 1);
+    SeededDocuments.put(previous, UUID, document(false, 1, 10), null);
+    SeededDocuments.put(previous, "def456", document(false, 1, 10), null);
+
+    SeededDocuments.Seeding seeding = SeededDocuments.startSeeding(scope, 2);
+    assertSame(seeding, SeededDocuments.startSeeding(scope, 2));
+    assertSame(seeding, SeededDocuments.startSeeding(scope, 1));
+    SeededDocuments.put(seeding, "def456", document(true, 2, 20), null);
+    // Seeded by the previous seeding after the later one started
+    SeededDocuments.put(previous, "ghi789", document(false, 1, 10), null);
+
+    assertNull(SeededDocuments.remove(scope, UUID));
+    assertNull(SeededDocuments.remove(scope, "ghi789"));
+    assertTrue(SeededDocuments.remove(scope, "def456").isDeleted());
+  }
+
+  @Test
+  public void whenANodeIsSeededTwiceTheLaterChangeShouldBeKept() {
+    String scope = "whenANodeIsSeededTwiceTheLaterChangeShouldBeKept";
+    SeededDocuments.Seeding seeding = SeededDocuments.startSeeding(scope, 1);
+
+    // The partitions are seeded in parallel: the later transaction wins, whatever the order
+    SeededDocuments.put(seeding, UUID, document(true, 3, 30), null);
+    SeededDocuments.put(seeding, UUID, document(false, 2, 20), null);
+    SeededDocuments.Document seeded = SeededDocuments.remove(scope, UUID);
+    assertTrue(seeded.isDeleted());
+    assertEquals(30, seeded.getTransactionId());
+
+    // Within the same transaction, the later version wins
+    SeededDocuments.put(seeding, UUID, document(false, 5, 40), null);
+    SeededDocuments.put(seeding, UUID, document(true, 4, 40), null);
+    seeded = SeededDocuments.remove(scope, UUID);
+    assertFalse(seeded.isDeleted());
+    assertEquals(5, seeded.getVersion());
+
+    // A later change replaces the details of an earlier one
+    SeededDocuments.put(seeding, UUID, document(false, 1, 10),
+        Collections.<String, Object>singletonMap("cm:name", "a.txt"));
+    SeededDocuments.put(seeding, UUID, document(true, 2, 20), null);
+    seeded = SeededDocuments.remove(scope, UUID);
+    assertTrue(seeded.isDeleted());
+    assertNull(seeded.getDetails());
+  }
+
+  private static SeededDocuments.Document document(boolean deleted, long version, long transactionId) {
+    return new SeededDocuments.Document("cm:content", "a.txt", deleted, version, transactionId);
+  }
+}